@@ -0,0 +1,125 @@
+package http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mesure l'analyse de l'en-tete d'une requete ({@link RequestParser}) et la construction des reponses par
+ * {@link WebServer#handleRequest(Request)}, sans reseau. Le fichier servi est cree dans le repertoire "resources" du
+ * repertoire courant : les benchmarks doivent donc etre lances depuis la racine du projet, faute de quoi ils
+ * s'arretent des leur initialisation.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHandlingBenchmark {
+
+    private static final Path RESOURCES = Path.of("resources");
+    private static final Path BENCH_FILE = RESOURCES.resolve("jmh-bench.html");
+
+    /**
+     * Une requete GET typique d'un navigateur.
+     */
+    private static final byte[] GET_REQUEST = request("/jmh-bench.html");
+    private static final byte[] MISSING_REQUEST = request("/jmh-missing.html");
+
+    private final RequestParser parser = new RequestParser(16 * 1024, 100);
+    private final Request request = new Request();
+    private final ByteBuffer input = ByteBuffer.wrap(GET_REQUEST);
+
+    private WebServer server;
+    private Request fileRequest;
+    private Request missingRequest;
+    private boolean createdFile;
+
+    private static byte[] request(String resource) {
+        return ("GET " + resource + " HTTP/1.1\r\n"
+                + "Host: localhost:8080\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+                + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+                + "Accept-Language: fr-FR,fr;q=0.8,en-US;q=0.5,en;q=0.3\r\n"
+                + "Accept-Encoding: gzip, deflate\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        if (!Files.isDirectory(RESOURCES)) {
+            throw new IllegalStateException("Repertoire '" + RESOURCES.toAbsolutePath()
+                    + "' introuvable : les benchmarks doivent etre lances depuis la racine du projet");
+        }
+        if (!Files.exists(BENCH_FILE)) {
+            Files.writeString(BENCH_FILE, "<html><body>" + "<p>Lorem ipsum dolor sit amet.</p>\n".repeat(64)
+                    + "</body></html>\n");
+            createdFile = true;
+        }
+        server = new WebServer(ServerConfig.fromArgs(new String[] {"--access-log=false"}));
+        fileRequest = parse(GET_REQUEST);
+        missingRequest = parse(MISSING_REQUEST);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (createdFile) {
+            Files.deleteIfExists(BENCH_FILE);
+        }
+    }
+
+    private static Request parse(byte[] bytes) throws BadRequestException {
+        Request parsed = new Request();
+        new RequestParser(16 * 1024, 100).parse(ByteBuffer.wrap(bytes), parsed);
+        return parsed;
+    }
+
+    /**
+     * Analyse de la ligne de requete et des en-tetes d'une requete GET, dans une requete reutilisee.
+     */
+    @Benchmark
+    public Request parseRequest() throws BadRequestException {
+        input.clear();
+        parser.parse(input, request);
+        return request;
+    }
+
+    /**
+     * Reponse a une requete GET sur un petit fichier (servi depuis le cache des reponses).
+     */
+    @Benchmark
+    public Response buildFileResponse() throws IOException {
+        try (Response response = server.handleRequest(fileRequest)) {
+            return response;
+        }
+    }
+
+    /**
+     * Reponse 404 a une requete GET sur un fichier inexistant.
+     */
+    @Benchmark
+    public Response buildNotFoundResponse() throws IOException {
+        try (Response response = server.handleRequest(missingRequest)) {
+            return response;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mesure l'ecriture d'une reponse sur un stream par {@link Response#printOnStream(java.io.OutputStream)}, vers un
+ * stream qui ignore les octets (seul le cout de mise en forme et de copie est mesure).
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    /**
+     * La taille du contenu de la reponse, en octets.
+     */
+    @Param({"512", "65536"})
+    public int size;
+
+    private final OutputStream out = OutputStream.nullOutputStream();
+    private byte[] content;
+
+    @Setup
+    public void setUp() {
+        content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+    }
+
+    @Benchmark
+    public Response printOnStream() throws IOException {
+        Response response = new Response(HttpStatus.OK.getHtmlHead(), content);
+        response.setKeepAlive(true);
+        response.printOnStream(out);
+        return response;
+    }
+}
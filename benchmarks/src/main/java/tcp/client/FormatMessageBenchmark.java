@@ -0,0 +1,42 @@
+package tcp.client;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mesure la mise en forme HTML d'un message de chat par {@link Client#formatMessage(String, boolean)}.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatMessageBenchmark {
+
+    private static final String MESSAGE = "Bonjour a tous, quelqu'un a fini le TP de reseaux ?";
+
+    // Never started: formatting needs no connection
+    private final Client client = new Client("localhost", 0, message -> { });
+
+    @Benchmark
+    public String formatWithPseudo() {
+        return client.formatMessage(MESSAGE, true);
+    }
+
+    @Benchmark
+    public String formatWithoutPseudo() {
+        return client.formatMessage(MESSAGE);
+    }
+}
@@ -0,0 +1,56 @@
+package tcp.ihm;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mesure l'ajout d'une ligne a une zone de chat contenant deja un certain nombre de lignes
+ * ({@link ChatArea#addLine(String)}), mise a jour du document HTML comprise. La zone est recreee avant chaque appel
+ * pour que sa taille reste celle indiquee ; la JVM est lancee sans affichage.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ChatAreaBenchmark {
+
+    private static final String LINE = "<b>&lt;<i>[14:2:7]</i> Lola&gt;</b> Bonjour a tous !";
+
+    /**
+     * Le nombre de lignes deja presentes dans la zone de chat.
+     */
+    @Param({"10", "100"})
+    public int history;
+
+    private ChatArea area;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        area = new ChatArea();
+        for (int i = 0; i < history; i++) {
+            area.addLine(LINE);
+        }
+    }
+
+    @Benchmark
+    public ChatArea addLine() {
+        area.addLine(LINE);
+        return area;
+    }
+}
@@ -0,0 +1,82 @@
+package tcp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.ConnectionReaper;
+
+/**
+ * Mesure le renvoi d'un message a tous les clients du chat par {@link ClientThread#broadcast(String)}. Les streams
+ * des clients ignorent les octets : seul le cout de la diffusion elle-meme (verrou, echeance de chaque envoi,
+ * encodage) est mesure, pas celui du reseau.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final ConnectionReaper REAPER = new ConnectionReaper("reaper", 1000, phase -> {});
+    private static final String MESSAGE = "<b>&lt;<i>[14:2:7]</i> Lola&gt;</b> Bonjour a tous !";
+
+    /**
+     * Le nombre de clients connectes.
+     */
+    @Param({"10", "100"})
+    public int clients;
+
+    private ServerSocket serverSocket;
+    private Socket clientSocket;
+    private ClientThread thread;
+
+    @Setup
+    public void setUp() throws IOException {
+        // The client thread needs a connected socket for its own client
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        clientSocket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+
+        Map<Socket, PrintStream> outputs = Collections.synchronizedMap(new HashMap<>());
+        outputs.put(clientSocket, new PrintStream(OutputStream.nullOutputStream()));
+        for (int i = 1; i < clients; i++) {
+            outputs.put(new Socket(), new PrintStream(OutputStream.nullOutputStream()));
+        }
+        thread = new ClientThread(clientSocket, outputs, new StringBuilder(), REAPER, new AtomicLong(),
+                ServerControlThread.DEFAULT_IDLE_TIMEOUT, ServerControlThread.DEFAULT_WRITE_TIMEOUT);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        clientSocket.close();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        thread.broadcast(MESSAGE);
+    }
+}
@@ -0,0 +1,249 @@
+package http.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Connexion HTTP/1.1 minimale d'un client de test de charge : envoie une requete, lit la reponse en entier (sans la
+ * garder en memoire) et garde la connexion ouverte pour la requete suivante si possible. La connexion est rouverte
+ * automatiquement apres une fermeture par le serveur.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class ClientConnection implements Closeable {
+
+    /**
+     * La longueur maximale d'une ligne de l'en-tete d'une reponse.
+     */
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+
+    private final String host;
+    private final int port;
+    private final int timeout;
+    private final boolean keepAlive;
+    private final byte[] skipBuffer = new byte[16 * 1024];
+
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    /**
+     * Le nombre d'octets reçus depuis la creation de la connexion.
+     */
+    private long bytesReceived = 0;
+
+    /**
+     * Cree une connexion (ouverte a la premiere requete).
+     * @param host Le nom de la machine du serveur.
+     * @param port Le port du serveur.
+     * @param timeout Le delai maximal (en millisecondes) de connexion et d'attente d'une reponse.
+     * @param keepAlive La connexion doit-elle etre gardee ouverte entre les requetes ?
+     */
+    ClientConnection(String host, int port, int timeout, boolean keepAlive) {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Envoie une requete et lit sa reponse en entier.
+     * @param entry La requete a envoyer.
+     * @param body Le corps a envoyer si la requete en a un.
+     * @return Le code de retour de la reponse.
+     * @throws IOException En cas d'erreur de connexion, si le delai d'attente est depasse ou si la reponse est mal
+     * formee. La connexion est alors fermee.
+     */
+    int send(RequestMix.Entry entry, byte[] body) throws IOException {
+        try {
+            if (socket == null) {
+                open();
+            }
+
+            StringBuilder header = new StringBuilder(128);
+            header.append(entry.getMethod()).append(' ').append(entry.getPath()).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append(':').append(port).append("\r\n");
+            if (entry.hasBody()) {
+                header.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            if (!keepAlive) {
+                header.append("Connection: close\r\n");
+            }
+            header.append("\r\n");
+            out.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (entry.hasBody()) {
+                out.write(body);
+            }
+            out.flush();
+
+            return readResponse(entry.getMethod().equals("HEAD"));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Lit une reponse et ignore son corps, puis ferme la connexion si le serveur ou la configuration l'exige.
+     * @param head La requete etait-elle une requete HEAD (dont la reponse n'a pas de corps) ?
+     * @return Le code de retour de la reponse.
+     * @throws IOException En cas d'erreur de lecture ou si la reponse est mal formee.
+     */
+    private int readResponse(boolean head) throws IOException {
+        String statusLine = readLine();
+        String[] parts = statusLine.split(" ", 3);
+        int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Ligne de statut invalide : '" + statusLine + "'");
+        }
+
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = !keepAlive || statusLine.startsWith("HTTP/1.0");
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Longueur de corps invalide : '" + value + "'");
+                }
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                close |= value.equalsIgnoreCase("close");
+            }
+        }
+
+        if (head || status == 204 || status == 304) {
+            // No body
+        } else if (chunked) {
+            for (long size = readChunkSize(); size > 0; size = readChunkSize()) {
+                skip(size);
+                readLine();
+            }
+            while (!readLine().isEmpty()) ;
+        } else if (contentLength >= 0) {
+            skip(contentLength);
+        } else {
+            // The end of the body is the end of the connection
+            while (skipSome(Long.MAX_VALUE) > 0) ;
+            close = true;
+        }
+
+        if (close) {
+            close();
+        }
+        return status;
+    }
+
+    /**
+     * @return La taille du morceau suivant d'un corps envoye par morceaux.
+     */
+    private long readChunkSize() throws IOException {
+        String line = readLine();
+        int extension = line.indexOf(';');
+        try {
+            return Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Taille de morceau invalide : '" + line + "'");
+        }
+    }
+
+    /**
+     * Lit une ligne de la reponse (terminee par LF ou CRLF), en interpretant chaque octet comme un caractere
+     * ISO-8859-1.
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new EOFException("Connexion fermee au milieu d'une reponse");
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("Ligne de reponse trop longue");
+            }
+            line.append((char) c);
+        }
+        bytesReceived += line.length() + 1;
+
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Lit et ignore exactement le nombre d'octets passe en parametre.
+     */
+    private void skip(long count) throws IOException {
+        while (count > 0) {
+            int read = skipSome(count);
+            if (read < 0) {
+                throw new EOFException("Connexion fermee au milieu d'une reponse");
+            }
+            count -= read;
+        }
+    }
+
+    /**
+     * Lit et ignore au plus le nombre d'octets passe en parametre.
+     * @return Le nombre d'octets lus, ou -1 si la connexion a ete fermee.
+     */
+    private int skipSome(long max) throws IOException {
+        int read = in.read(skipBuffer, 0, (int) Math.min(max, skipBuffer.length));
+        if (read > 0) {
+            bytesReceived += read;
+        }
+        return read;
+    }
+
+    /**
+     * Ouvre la connexion avec le serveur.
+     */
+    private void open() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), timeout);
+        socket.setSoTimeout(timeout);
+        in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+        out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+    }
+
+    /**
+     * @return Le nombre d'octets reçus depuis la creation de la connexion.
+     */
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Ferme la connexion ; la requete suivante en ouvrira une nouvelle.
+     */
+    @Override
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+}
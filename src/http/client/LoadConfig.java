@@ -0,0 +1,158 @@
+package http.client;
+
+/**
+ * Configuration d'un test de charge (voir {@link LoadGenerator}), construite a partir des arguments passes en ligne de
+ * commande. Chaque argument est de la forme {@code --option=valeur} ; les options absentes gardent leur valeur par
+ * defaut.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public class LoadConfig {
+
+    /**
+     * Le nom de la machine du serveur teste.
+     */
+    private String host = "localhost";
+    /**
+     * Le port du serveur teste.
+     */
+    private int port = 80;
+    /**
+     * Le nombre de connexions ouvertes en parallele (une par thread).
+     */
+    private int connections = 16;
+    /**
+     * La duree du test (en secondes), apres l'echauffement.
+     */
+    private int duration = 10;
+    /**
+     * La duree (en secondes) pendant laquelle les requetes sont envoyees sans etre comptees, pour laisser le serveur
+     * et la JVM atteindre leur regime normal.
+     */
+    private int warmup = 2;
+    /**
+     * Le debit total vise (en requetes par seconde). 0 signifie un test en boucle fermee : chaque connexion envoie sa
+     * requete suivante des la reception de la reponse precedente.
+     */
+    private double rate = 0;
+    /**
+     * Les connexions sont-elles gardees ouvertes entre les requetes ?
+     */
+    private boolean keepAlive = true;
+    /**
+     * Les requetes a envoyer et leurs proportions (voir {@link RequestMix#parse(String)}).
+     */
+    private RequestMix mix = RequestMix.parse("GET:/index.html");
+    /**
+     * La taille (en octets) du corps des requetes PUT et POST.
+     */
+    private int bodySize = 1024;
+    /**
+     * Le delai maximal (en millisecondes) de connexion et d'attente d'une reponse.
+     */
+    private int timeout = 5000;
+
+    /**
+     * Construit une configuration a partir des arguments de la ligne de commande.
+     * @param args Les arguments, chacun de la forme --option=valeur.
+     * @return La configuration construite.
+     * @throws IllegalArgumentException Si une option est inconnue ou si sa valeur est invalide.
+     */
+    public static LoadConfig fromArgs(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Argument mal forme : '" + arg + "'");
+            }
+            String option = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            try {
+                switch (option) {
+                    case "host" -> config.host = value;
+                    case "port" -> config.port = Integer.parseInt(value);
+                    case "connections" -> config.connections = Integer.parseInt(value);
+                    case "duration" -> config.duration = Integer.parseInt(value);
+                    case "warmup" -> config.warmup = Integer.parseInt(value);
+                    case "rate" -> config.rate = Double.parseDouble(value);
+                    case "keep-alive" -> config.keepAlive = parseBoolean(value);
+                    case "mix" -> config.mix = RequestMix.parse(value);
+                    case "body-size" -> config.bodySize = Integer.parseInt(value);
+                    case "timeout" -> config.timeout = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("Option inconnue : '" + option + "'");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Valeur invalide pour l'option '" + option + "' : '" + value + "'");
+            }
+        }
+        if (config.connections <= 0 || config.duration <= 0 || config.warmup < 0 || config.rate < 0
+                || config.bodySize < 0) {
+            throw new IllegalArgumentException("Valeur negative ou nulle invalide");
+        }
+        return config;
+    }
+
+    /**
+     * Convertit une valeur booleenne ("true" ou "false", insensible a la casse).
+     * @param value La valeur.
+     * @return Le booleen correspondant.
+     * @throws IllegalArgumentException Si la valeur n'est ni "true" ni "false".
+     */
+    private static boolean parseBoolean(String value) {
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException("Valeur booleenne invalide : '" + value + "' (true ou false)");
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * @return Le texte d'aide decrivant les options disponibles.
+     */
+    public static String usage() {
+        return "Usage: java LoadGenerator [--host=localhost] [--port=80] [--connections=16]"
+                + " [--duration=10] [--warmup=2] [--rate=0] [--keep-alive=true]"
+                + " [--mix=GET:/index.html:8,PUT:/load.txt:1,DELETE:/load.txt:1]"
+                + " [--body-size=1024] [--timeout=5000]";
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getWarmup() {
+        return warmup;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public RequestMix getMix() {
+        return mix;
+    }
+
+    public int getBodySize() {
+        return bodySize;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+}
@@ -0,0 +1,180 @@
+package http.client;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import utils.LatencyHistogram;
+
+/**
+ * Client de test de charge d'un serveur HTTP (successeur de {@link WebPing}) : plusieurs connexions, chacune dans son
+ * thread, envoient des requetes tirees d'un melange (voir {@link RequestMix}) pendant une duree donnee, puis le debit
+ * obtenu et la distribution des latences sont affiches.
+ *
+ * Deux modes sont disponibles :
+ * - en boucle fermee (par defaut), chaque connexion envoie sa requete suivante des la reception de la reponse
+ *   precedente, ce qui mesure le debit maximal du serveur ;
+ * - en boucle ouverte (option --rate), les requetes sont envoyees a debit constant selon un calendrier fixe, et la
+ *   latence de chaque requete est mesuree depuis l'instant ou elle aurait du partir. Un serveur qui ralentit retarde
+ *   donc les requetes suivantes sans que ce retard disparaisse des mesures (pas d'omission coordonnee).
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public class LoadGenerator {
+
+    private final LoadConfig config;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    /**
+     * Le nombre de reponses reçues, par classe de code de retour (indice 1 pour 1xx, ..., 5 pour 5xx).
+     */
+    private final LongAdder[] responses = new LongAdder[6];
+    /**
+     * Le nombre de requetes n'ayant pas obtenu de reponse (erreur de connexion, delai depasse...).
+     */
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    /**
+     * Cree un test de charge.
+     * @param config La configuration du test.
+     */
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Lance le test, attend sa fin et affiche ses resultats.
+     * @throws InterruptedException Si le thread est interrompu pendant le test.
+     */
+    public void run() throws InterruptedException {
+        byte[] body = new byte[config.getBodySize()];
+        ThreadLocalRandom.current().nextBytes(body);
+
+        long start = System.nanoTime();
+        long measureStart = start + config.getWarmup() * 1_000_000_000L;
+        long end = measureStart + config.getDuration() * 1_000_000_000L;
+
+        System.out.println("Load test of " + config.getHost() + ":" + config.getPort() + " with "
+                + config.getConnections() + " connections"
+                + (config.getRate() > 0 ? " at " + config.getRate() + " req/s" : " (closed loop)")
+                + ", " + config.getWarmup() + "s warmup + " + config.getDuration() + "s");
+
+        Thread[] threads = new Thread[config.getConnections()];
+        for (int i = 0; i < threads.length; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> runConnection(index, body, start, measureStart, end), "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        report((System.nanoTime() - measureStart) / 1e9);
+    }
+
+    /**
+     * Boucle d'une connexion : envoie des requetes jusqu'a la fin du test, et compte celles envoyees apres
+     * l'echauffement.
+     * @param index Le numero de la connexion.
+     * @param body Le corps des requetes PUT et POST.
+     * @param start L'instant du debut du test (selon {@link System#nanoTime()}).
+     * @param measureStart L'instant de la fin de l'echauffement.
+     * @param end L'instant de la fin du test.
+     */
+    private void runConnection(int index, byte[] body, long start, long measureStart, long end) {
+        // In open loop, each connection sends at rate/connections, the schedules being shifted from one another
+        double interval = config.getRate() > 0 ? config.getConnections() * 1e9 / config.getRate() : 0;
+        long offset = (long) (interval * index / config.getConnections());
+
+        try (ClientConnection connection = new ClientConnection(
+                config.getHost(), config.getPort(), config.getTimeout(), config.isKeepAlive())) {
+            for (long sent = 0; ; sent++) {
+                long sendTime;
+                if (interval > 0) {
+                    sendTime = start + offset + (long) (sent * interval);
+                    if (sendTime >= end) {
+                        break;
+                    }
+                    for (long now = System.nanoTime(); now < sendTime; now = System.nanoTime()) {
+                        LockSupport.parkNanos(sendTime - now);
+                    }
+                } else {
+                    sendTime = System.nanoTime();
+                    if (sendTime >= end) {
+                        break;
+                    }
+                }
+
+                boolean measured = sendTime >= measureStart;
+                long receivedBefore = connection.getBytesReceived();
+                try {
+                    int status = connection.send(config.getMix().next(), body);
+                    if (measured) {
+                        responses[Math.min(Math.max(status / 100, 0), 5)].increment();
+                        // Measured from the intended send time, so that a late request also counts its waiting time
+                        latencies.record(System.nanoTime() - sendTime);
+                        bytesReceived.add(connection.getBytesReceived() - receivedBefore);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // A failed request has no latency: it is only counted apart, not in the throughput
+                    if (measured) {
+                        errors.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Affiche les resultats du test : debit, codes de retour, erreurs et distribution des latences. Le debit et les
+     * latences ne portent que sur les requetes ayant obtenu une reponse.
+     * @param seconds La duree effective de la mesure, en secondes.
+     */
+    private void report(double seconds) {
+        long count = latencies.getCount();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Requests:   %d in %.2fs, %.1f req/s, %.2f MB/s received%n",
+                count, seconds, count / seconds, bytesReceived.sum() / seconds / 1e6);
+        System.out.printf(Locale.ROOT, "Responses:  2xx=%d 3xx=%d 4xx=%d 5xx=%d%n",
+                responses[2].sum(), responses[3].sum(), responses[4].sum(), responses[5].sum());
+        System.out.printf(Locale.ROOT, "Errors:     %d requests without response, %.1f/s%n",
+                errors.sum(), errors.sum() / seconds);
+        if (count == 0) {
+            return;
+        }
+        System.out.printf(Locale.ROOT,
+                "Latency:    mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms%n",
+                latencies.getSum() / (double) count / 1e6,
+                latencies.valueAtQuantile(0.5) / 1e6,
+                latencies.valueAtQuantile(0.9) / 1e6,
+                latencies.valueAtQuantile(0.99) / 1e6,
+                latencies.valueAtQuantile(0.999) / 1e6,
+                latencies.getMax() / 1e6);
+        if (config.getRate() > 0 && count / seconds < config.getRate() * 0.95) {
+            System.out.printf(Locale.ROOT, "Warning:    target rate of %.1f req/s not reached%n", config.getRate());
+        }
+    }
+
+    /**
+     * Fonction principale : lance un test de charge.
+     * @param args Les options du test, voir {@link LoadConfig#fromArgs(String[])}.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        LoadConfig config;
+        try {
+            config = LoadConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(LoadConfig.usage());
+            System.exit(1);
+            return;
+        }
+
+        new LoadGenerator(config).run();
+    }
+}
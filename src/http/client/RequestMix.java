@@ -0,0 +1,105 @@
+package http.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ensemble pondere de requetes envoyees par un test de charge : chaque requete envoyee est tiree au hasard parmi
+ * celles du melange, proportionnellement a leur poids.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public class RequestMix {
+
+    /**
+     * Les methodes que le test de charge sait envoyer.
+     */
+    private static final List<String> METHODS = List.of("GET", "HEAD", "PUT", "POST", "DELETE");
+
+    /**
+     * Une requete du melange : sa methode, sa ressource et son poids.
+     */
+    public static class Entry {
+        private final String method;
+        private final String path;
+        private final int weight;
+
+        private Entry(String method, String path, int weight) {
+            this.method = method;
+            this.path = path;
+            this.weight = weight;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return true si cette requete envoie un corps (PUT et POST).
+         */
+        public boolean hasBody() {
+            return method.equals("PUT") || method.equals("POST");
+        }
+    }
+
+    private final List<Entry> entries;
+    private final int totalWeight;
+
+    private RequestMix(List<Entry> entries) {
+        this.entries = entries;
+        this.totalWeight = entries.stream().mapToInt(entry -> entry.weight).sum();
+    }
+
+    /**
+     * Lit un melange de requetes de la forme {@code METHODE:/chemin[:poids],...}, par exemple
+     * "GET:/index.html:8,PUT:/load.txt:1,DELETE:/load.txt:1". Le poids d'une requete vaut 1 s'il est omis.
+     * @param spec La description du melange.
+     * @return Le melange lu.
+     * @throws IllegalArgumentException Si la description est mal formee.
+     */
+    public static RequestMix parse(String spec) {
+        List<Entry> entries = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] fields = part.trim().split(":");
+            if (fields.length < 2 || fields.length > 3 || !fields[1].startsWith("/")) {
+                throw new IllegalArgumentException("Requete mal formee : '" + part + "' (METHODE:/chemin[:poids])");
+            }
+            String method = fields[0].toUpperCase(Locale.ROOT);
+            if (!METHODS.contains(method)) {
+                throw new IllegalArgumentException("Methode non supportee : '" + fields[0] + "'");
+            }
+            int weight;
+            try {
+                weight = fields.length == 3 ? Integer.parseInt(fields[2]) : 1;
+            } catch (NumberFormatException e) {
+                weight = -1;
+            }
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Poids invalide : '" + part + "'");
+            }
+            entries.add(new Entry(method, fields[1], weight));
+        }
+        return new RequestMix(entries);
+    }
+
+    /**
+     * @return Une requete du melange, tiree au hasard selon les poids.
+     */
+    public Entry next() {
+        int draw = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Entry entry : entries) {
+            draw -= entry.weight;
+            if (draw < 0) {
+                return entry;
+            }
+        }
+        return entries.get(entries.size() - 1);
+    }
+}
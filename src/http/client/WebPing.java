@@ -5,6 +5,7 @@ import java.net.Socket;
 
 /**
  * Classe WebPing fournie sur Moodle (mais pas utilisée dans notre application).
+ * Pour mesurer les performances du serveur, voir {@link LoadGenerator}.
  */
 @Deprecated
 public class WebPing {
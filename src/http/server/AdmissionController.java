@@ -0,0 +1,159 @@
+package http.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Controle d'admission des requetes : borne le nombre de requetes traitees en meme temps, pour qu'un afflux de
+ * requetes soit rejete rapidement (reponse 503) plutot que de faire croitre sans fin la latence de toutes les
+ * requetes.
+ *
+ * La borne est soit fixe, soit adaptee en continu a la latence observee, a la maniere de TCP Vegas : la plus petite
+ * duree de traitement recente sert de reference (serveur non charge), et l'ecart entre cette reference et chaque
+ * nouvelle duree donne une estimation du nombre de requetes qui attendent une ressource (disque, CPU...) au lieu
+ * d'etre traitees. Tant que cette file estimee est courte, la borne augmente ; lorsqu'elle s'allonge, la borne
+ * diminue, sans jamais depasser la borne maximale configuree.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class AdmissionController {
+
+    /**
+     * La borne minimale de la limite adaptative.
+     */
+    private static final int MIN_LIMIT = 8;
+    /**
+     * La limite adaptative initiale (si la borne maximale est plus grande).
+     */
+    private static final int INITIAL_LIMIT = 64;
+    /**
+     * Le nombre de mesures apres lequel la duree de reference est oubliee, pour suivre un changement durable de la
+     * duree de traitement (fichiers plus gros, machine plus chargee...).
+     */
+    private static final int MIN_LATENCY_WINDOW = 1000;
+
+    /**
+     * La borne maximale du nombre de requetes traitees en meme temps (0 si le controle est desactive).
+     */
+    private final int maxLimit;
+    private final boolean adaptive;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    /**
+     * Verrou des mises a jour de la limite : une mesure arrivant pendant une mise a jour est ignoree plutot que
+     * d'attendre, pour ne pas serialiser les threads de traitement.
+     */
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    /**
+     * La limite courante (non entiere, pour que les petits ajustements s'accumulent).
+     */
+    private volatile double limit;
+    /**
+     * La plus petite duree de traitement de la fenetre courante, en nanosecondes (protegee par {@link #updateLock}).
+     */
+    private long minLatency = Long.MAX_VALUE;
+    private int samples = 0;
+
+    /**
+     * Cree un controleur d'admission.
+     * @param maxLimit Le nombre maximal de requetes traitees en meme temps. 0 desactive le controle.
+     * @param adaptive La limite doit-elle s'adapter a la latence observee (sans depasser maxLimit) ?
+     */
+    AdmissionController(int maxLimit, boolean adaptive) {
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive && maxLimit > 0;
+        this.limit = this.adaptive ? Math.min(maxLimit, INITIAL_LIMIT) : maxLimit;
+    }
+
+    /**
+     * Tente d'admettre une requete. Chaque requete admise doit ensuite etre terminee par
+     * {@link #release(long, int)}.
+     * @return Le nombre de requetes en cours une fois celle-ci admise, ou 0 si elle doit etre rejetee.
+     */
+    int tryAcquire() {
+        if (maxLimit <= 0) {
+            return inFlight.incrementAndGet();
+        }
+        int limit = (int) this.limit;
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return 0;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return current + 1;
+            }
+        }
+    }
+
+    /**
+     * Termine une requete admise, et ajuste la limite d'apres sa duree de traitement.
+     * @param latency La duree de traitement de la requete, en nanosecondes.
+     * @param inFlightAtStart Le nombre de requetes en cours lorsqu'elle a ete admise (valeur renvoyee par
+     *                        {@link #tryAcquire()}).
+     */
+    void release(long latency, int inFlightAtStart) {
+        inFlight.decrementAndGet();
+        if (adaptive && updateLock.tryLock()) {
+            try {
+                update(latency, inFlightAtStart);
+            } finally {
+                updateLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return Le nombre de requetes en cours de traitement.
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return La limite courante du nombre de requetes traitees en meme temps (0 si le controle est desactive).
+     */
+    int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return Le nombre de requetes rejetees depuis le demarrage du serveur.
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Ajuste la limite adaptative d'apres une nouvelle mesure.
+     */
+    private void update(long latency, int inFlightAtStart) {
+        latency = Math.max(1, latency);
+        if (++samples >= MIN_LATENCY_WINDOW) {
+            samples = 0;
+            minLatency = latency;
+        } else {
+            minLatency = Math.min(minLatency, latency);
+        }
+
+        double current = limit;
+        // A server far below its limit says nothing about whether the limit could be higher
+        if (inFlightAtStart * 2 < current) {
+            return;
+        }
+
+        // Estimated number of requests waiting instead of being served, compared to thresholds growing with the limit
+        double queue = current * (1 - (double) minLatency / latency);
+        double log = Math.max(1, Math.log10(current));
+        if (queue <= 3 * log) {
+            current += log;
+        } else if (queue >= 6 * log) {
+            current -= log;
+        }
+        limit = Math.max(Math.min(MIN_LIMIT, maxLimit), Math.min(maxLimit, current));
+    }
+}
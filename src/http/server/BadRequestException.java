@@ -0,0 +1,21 @@
+package http.server;
+
+import java.io.IOException;
+
+/**
+ * Exception levee lorsqu'une requete reçue ne respecte pas le protocole HTTP (ligne de requete invalide, en-tete trop
+ * long...). Le serveur y repond par une erreur 400 puis ferme la connexion.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public class BadRequestException extends IOException {
+
+    /**
+     * Cree une exception de requete mal formee.
+     * @param message La raison pour laquelle la requete est invalide.
+     */
+    public BadRequestException(String message) {
+        super(message);
+    }
+}
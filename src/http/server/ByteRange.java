@@ -0,0 +1,143 @@
+package http.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plage d'octets d'une ressource demandee par l'en-tete Range d'une requete (bornes incluses, comme dans le protocole
+ * HTTP).
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public class ByteRange {
+
+    /**
+     * Le nombre maximal de plages acceptees dans une meme requete. Au dela, l'en-tete Range est ignore et la ressource
+     * est envoyee en entier.
+     */
+    private static final int MAX_RANGES = 16;
+
+    private final long first;
+    private final long last;
+
+    /**
+     * Cree une plage d'octets.
+     * @param first La position du premier octet de la plage.
+     * @param last La position du dernier octet de la plage (incluse).
+     */
+    public ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Analyse la valeur d'un en-tete Range (par exemple "bytes=0-499, -500") pour une ressource de la taille passee en
+     * parametre. Les plages commençant apres la fin de la ressource sont ignorees, et celles la depassant sont
+     * tronquees.
+     * @param rangeHeader La valeur de l'en-tete Range.
+     * @param size La taille de la ressource.
+     * @return Les plages demandees pouvant etre satisfaites (une liste vide si aucune ne peut l'etre), ou null si
+     * l'en-tete est invalide ou doit etre ignore, auquel cas la ressource doit etre envoyee en entier.
+     */
+    public static List<ByteRange> parse(String rangeHeader, long size) {
+        int equals = rangeHeader.indexOf('=');
+        if (equals < 0 || !rangeHeader.substring(0, equals).trim().equalsIgnoreCase("bytes")) {
+            return null;
+        }
+
+        String[] specs = rangeHeader.substring(equals + 1).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+
+            try {
+                if (start.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    long suffixLength = Long.parseLong(end);
+                    if (suffixLength < 0) {
+                        return null;
+                    }
+                    if (suffixLength > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffixLength), size - 1));
+                    }
+                } else {
+                    long first = Long.parseLong(start);
+                    long last = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    if (first < size) {
+                        ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Analyse la valeur d'un en-tete Content-Range d'une requete (par exemple "bytes 500-999/1234" ou
+     * "bytes 500-999/*"), qui indique la position d'un morceau de ressource envoye dans le corps.
+     * @param contentRange La valeur de l'en-tete Content-Range.
+     * @return La plage decrite par l'en-tete, ou null si l'en-tete est invalide (la taille totale, si elle est donnee,
+     * doit contenir la plage).
+     */
+    public static ByteRange parseContentRange(String contentRange) {
+        String value = contentRange.trim();
+        int space = value.indexOf(' ');
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (space < 0 || dash < space || slash < dash || !value.substring(0, space).equalsIgnoreCase("bytes")) {
+            return null;
+        }
+
+        try {
+            long first = Long.parseLong(value.substring(space + 1, dash).trim());
+            long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+            String size = value.substring(slash + 1).trim();
+            if (first < 0 || last < first || (!size.equals("*") && Long.parseLong(size) <= last)) {
+                return null;
+            }
+            return new ByteRange(first, last);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * @return Le nombre d'octets de la plage.
+     */
+    public long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * Construit la valeur de l'en-tete Content-Range decrivant cette plage.
+     * @param size La taille totale de la ressource.
+     * @return La valeur de l'en-tete (par exemple "bytes 0-499/1234").
+     */
+    public String toContentRange(long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+}
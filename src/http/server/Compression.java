@@ -0,0 +1,165 @@
+package http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Methodes utilitaires pour la compression des reponses HTTP : choix de l'encodage d'apres l'en-tete Accept-Encoding
+ * d'une requete, et compression d'un contenu avec cet encodage, d'un coup ou au fur et a mesure de son envoi.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+final class Compression {
+
+    /**
+     * L'encodage "identite", c'est a dire l'absence de compression.
+     */
+    static final String IDENTITY = "identity";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    /**
+     * Tous les encodages que le serveur peut produire.
+     */
+    static final List<String> ENCODINGS = List.of(IDENTITY, GZIP, DEFLATE);
+
+    /**
+     * La taille des blocs lus dans un fichier compresse au fur et a mesure de son envoi.
+     */
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private Compression() {
+    }
+
+    /**
+     * Choisit l'encodage a utiliser pour une reponse d'apres l'en-tete Accept-Encoding de la requete : l'encodage
+     * accepte avec la plus grande preference (gzip en cas d'egalite), ou l'identite si aucun ne l'est.
+     * @param acceptEncoding La valeur de l'en-tete Accept-Encoding, ou null s'il est absent.
+     * @return L'encodage choisi ({@link #GZIP}, {@link #DEFLATE} ou {@link #IDENTITY}).
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return IDENTITY;
+        }
+
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            switch (name) {
+                case GZIP, "x-gzip" -> gzip = quality;
+                case DEFLATE -> deflate = quality;
+                case "*" -> any = quality;
+                default -> { }
+            }
+        }
+
+        // Codings not listed explicitly get the quality of "*", if present
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        } else if (deflate > 0) {
+            return DEFLATE;
+        }
+        return IDENTITY;
+    }
+
+    /**
+     * Indique si un contenu du type passe en parametre gagne a etre compresse (contenus textuels).
+     * @param contentType Le type MIME du contenu (eventuellement null).
+     * @return true si le contenu doit etre compresse.
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/")
+                || type.startsWith("application/javascript")
+                || type.startsWith("application/json")
+                || type.startsWith("application/xml")
+                || type.startsWith("image/svg+xml");
+    }
+
+    /**
+     * Compresse un contenu avec l'encodage passe en parametre.
+     * @param content Le contenu a compresser.
+     * @param encoding L'encodage a utiliser ({@link #GZIP} ou {@link #DEFLATE}).
+     * @return Le contenu compresse.
+     * @throws IOException En cas d'erreur de compression.
+     */
+    static byte[] compress(byte[] content, String encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 3 + 64);
+        try (OutputStream out = GZIP.equals(encoding)
+                ? new GZIPOutputStream(compressed)
+                : new DeflaterOutputStream(compressed)) {
+            out.write(content);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Cree une source de corps de reponse compressant le contenu d'un fichier au fur et a mesure de son envoi, bloc
+     * par bloc, sans jamais le charger entierement en memoire.
+     * @param file Le fichier ouvert en lecture, dont la source devient responsable.
+     * @param encoding L'encodage a utiliser ({@link #GZIP} ou {@link #DEFLATE}).
+     * @return La source du corps compresse.
+     * @throws IOException En cas d'erreur de compression.
+     */
+    static Response.BodySupplier compress(FileChannel file, String encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(BLOCK_SIZE);
+        DeflaterOutputStream out = GZIP.equals(encoding)
+                ? new GZIPOutputStream(compressed)
+                : new DeflaterOutputStream(compressed);
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        return new Response.BodySupplier() {
+            private boolean finished = false;
+
+            @Override
+            public byte[] next() throws IOException {
+                if (finished) {
+                    return null;
+                }
+                // The deflater may keep a whole block to itself: read until it produces something
+                while (compressed.size() == 0 && !finished) {
+                    block.clear();
+                    if (file.read(block) < 0) {
+                        out.finish();
+                        finished = true;
+                    } else {
+                        out.write(block.array(), 0, block.position());
+                    }
+                }
+                byte[] part = compressed.toByteArray();
+                compressed.reset();
+                return part;
+            }
+
+            @Override
+            public void close() throws IOException {
+                file.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream bufferise des octets reçus sur une connexion bloquante. Son buffer est expose tel quel a
+ * {@link RequestParser}, qui analyse l'en-tete des requetes sans copie ; le corps des requetes est ensuite lu a
+ * travers ce stream, en commençant par les octets deja presents dans le buffer.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class ConnectionInput extends InputStream {
+
+    private final InputStream in;
+    /**
+     * Les octets reçus et pas encore consommes, en mode lecture.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * Les statistiques du serveur, comptant les octets reçus.
+     */
+    private final ServerMetrics metrics;
+    /**
+     * Le nombre d'octets reçus depuis la creation du stream, lu par le thread surveillant les delais des connexions
+     * (un seul thread l'incremente).
+     */
+    private volatile long bytesRead = 0;
+
+    /**
+     * Cree un stream bufferise.
+     * @param in Le stream de la connexion.
+     * @param bufferSize La taille du buffer.
+     * @param metrics Les statistiques du serveur.
+     */
+    ConnectionInput(InputStream in, int bufferSize, ServerMetrics metrics) {
+        this.in = in;
+        this.metrics = metrics;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+    }
+
+    /**
+     * @return Le buffer des octets reçus et pas encore consommes, en mode lecture.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Lit sur la connexion de nouveaux octets a la suite de ceux du buffer, en bloquant jusqu'a ce qu'il en arrive.
+     * @return false si la connexion a ete fermee par le client.
+     * @throws IOException En cas d'erreur de lecture (notamment si le delai de lecture du socket est depasse).
+     */
+    boolean fill() throws IOException {
+        buffer.compact();
+        try {
+            int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read < 0) {
+                return false;
+            }
+            received(read);
+            buffer.position(buffer.position() + read);
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * @return Le nombre d'octets reçus depuis la creation du stream.
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    private void received(int count) {
+        metrics.addBytesReceived(count);
+        bytesRead += count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            // Large reads go straight to the connection, without going through the buffer
+            if (length >= buffer.capacity()) {
+                int read = in.read(bytes, offset, length);
+                if (read > 0) {
+                    received(read);
+                }
+                return read;
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int read = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, read);
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return buffer.remaining() + in.available();
+    }
+}
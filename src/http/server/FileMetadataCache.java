@@ -0,0 +1,275 @@
+package http.server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Cache des metadonnees (existence, type, taille, date de modification et permissions) des fichiers du repertoire
+ * servi, pour repondre aux requetes GET et HEAD sans appel systeme sur le disque.
+ *
+ * Le cache est tenu a jour par un {@link WatchService} surveillant toute l'arborescence : chaque creation, modification
+ * ou suppression d'un fichier invalide ses metadonnees, ainsi que les reponses du {@link ResponseCache} construites a
+ * partir de ce fichier. Le serveur invalide aussi lui-meme les fichiers qu'il modifie, pour ne pas dependre du delai
+ * de notification. Si la surveillance est impossible, les metadonnees sont lues a chaque demande.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class FileMetadataCache {
+
+    /**
+     * Le nombre maximal de chemins gardes (au dela, le cache est vide avant d'en accepter de nouveaux, pour que des
+     * requetes sur des chemins inexistants ne puissent pas le faire grossir indefiniment).
+     */
+    private static final int MAX_ENTRIES = 10_000;
+    /**
+     * Les noms des fichiers temporaires du serveur, crees a cote des fichiers qu'ils remplacent (corps d'une requete
+     * PUT, morceaux d'un televersement) : leurs notifications ne concernent aucun fichier servi.
+     */
+    private static final Pattern STAGING_FILE = Pattern.compile("\\..+\\.[0-9a-f]+\\.(tmp|upload)");
+
+    /**
+     * Les metadonnees d'un fichier, telles que lues a un instant donne.
+     */
+    static class Metadata {
+        private final boolean exists;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+        private final boolean readable;
+        private final boolean writable;
+
+        private Metadata(boolean exists, boolean directory, long size, long lastModified, boolean readable,
+                         boolean writable) {
+            this.exists = exists;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.readable = readable;
+            this.writable = writable;
+        }
+
+        boolean exists() {
+            return exists;
+        }
+
+        boolean isDirectory() {
+            return directory;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * @return La date de derniere modification du fichier (en millisecondes depuis l'epoch).
+         */
+        long getLastModified() {
+            return lastModified;
+        }
+
+        boolean isReadable() {
+            return readable;
+        }
+
+        boolean isWritable() {
+            return writable;
+        }
+    }
+
+    /**
+     * Les metadonnees d'un fichier inexistant.
+     */
+    private static final Metadata MISSING = new Metadata(false, false, 0, 0, false, false);
+
+    private final Map<Path, Metadata> entries = new ConcurrentHashMap<>();
+    /**
+     * Les repertoires surveilles, pour reconnaitre la suppression d'un repertoire dont les metadonnees ne sont pas en
+     * cache.
+     */
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+    /**
+     * Compteur incremente a chaque invalidation, permettant d'ignorer des metadonnees lues pendant une modification.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+    /**
+     * Le nombre de demandes satisfaites depuis le cache, ou ayant du lire le disque.
+     */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final ResponseCache responses;
+    private WatchService watchService;
+
+    /**
+     * Cree un cache de metadonnees et lance la surveillance de l'arborescence passee en parametre.
+     * @param root Le repertoire dont surveiller les fichiers.
+     * @param responses Le cache des reponses a invalider lorsqu'un fichier est modifie hors du serveur.
+     */
+    FileMetadataCache(Path root, ResponseCache responses) {
+        this.responses = responses;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            registerTree(root);
+            Thread watcher = new Thread(this::watch, "webserver-file-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            WebServer.LOG.warn("Surveillance de '" + root + "' impossible, metadonnees non gardees en cache : " + e);
+            watchService = null;
+        }
+    }
+
+    /**
+     * Renvoie les metadonnees du fichier passe en parametre, lues sur le disque si elles ne sont pas en cache.
+     * @param path Le chemin du fichier.
+     * @return Ses metadonnees (celles d'un fichier inexistant s'il n'a pas pu etre lu).
+     */
+    Metadata get(Path path) {
+        if (watchService == null) {
+            misses.increment();
+            return load(path);
+        }
+
+        Path key = path.normalize();
+        Metadata metadata = entries.get(key);
+        if (metadata != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            long readInvalidations = invalidations.get();
+            metadata = load(key);
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.clear();
+            }
+            entries.put(key, metadata);
+            if (invalidations.get() != readInvalidations) {
+                entries.remove(key, metadata);
+            }
+        }
+        return metadata;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Oublie les metadonnees du fichier passe en parametre, a appeler apres chaque modification du fichier.
+     * @param path Le chemin du fichier modifie.
+     */
+    void invalidate(Path path) {
+        invalidations.incrementAndGet();
+        entries.remove(path.normalize());
+    }
+
+    /**
+     * Lit les metadonnees d'un fichier sur le disque.
+     * @param path Le chemin du fichier.
+     * @return Ses metadonnees, ou {@link #MISSING} s'il n'existe pas.
+     */
+    private static Metadata load(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Metadata(
+                    true,
+                    attributes.isDirectory(),
+                    attributes.size(),
+                    attributes.lastModifiedTime().toMillis(),
+                    Files.isReadable(path),
+                    Files.isWritable(path)
+            );
+        } catch (IOException e) {
+            return MISSING;
+        }
+    }
+
+    /**
+     * Enregistre aupres du service de surveillance un repertoire et tous ses sous-repertoires.
+     * @param root Le repertoire a surveiller.
+     * @throws IOException Si un repertoire n'a pas pu etre enregistre.
+     */
+    private void registerTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                directories.add(dir.normalize());
+                dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Boucle du thread de surveillance : invalide les fichiers a chaque notification, et surveille les repertoires
+     * nouvellement crees.
+     */
+    private void watch() {
+        try {
+            for (;;) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Some events were lost: nothing cached can be trusted anymore
+                        invalidations.incrementAndGet();
+                        entries.clear();
+                        responses.clear();
+                        continue;
+                    }
+
+                    Path changed = dir.resolve((Path) event.context()).normalize();
+                    if (STAGING_FILE.matcher(changed.getFileName().toString()).matches()) {
+                        continue;
+                    }
+                    invalidations.incrementAndGet();
+                    Metadata previous = entries.remove(changed);
+                    boolean deleted = event.kind() == StandardWatchEventKinds.ENTRY_DELETE;
+                    boolean watchedDirectory = deleted && directories.remove(changed);
+                    if (deleted && (watchedDirectory || (previous != null && previous.isDirectory()))) {
+                        // The files of a deleted directory are not notified one by one
+                        entries.keySet().removeIf(path -> path.startsWith(changed));
+                        directories.removeIf(path -> path.startsWith(changed));
+                        responses.invalidateTree(changed);
+                        continue;
+                    }
+                    responses.invalidate(changed);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        try {
+                            // Files may have been created before the directory was watched
+                            registerTree(changed);
+                            entries.keySet().removeIf(path -> path.startsWith(changed));
+                        } catch (IOException e) {
+                            WebServer.LOG.warn("Surveillance de '" + changed + "' impossible : " + e);
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The server is stopping
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package http.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compression des en-tetes HTTP/2 (HPACK, RFC 7541). Chaque en-tete est envoye soit comme un index dans une table
+ * partagee par les deux extremites de la connexion (une table statique des en-tetes les plus courants, et une table
+ * dynamique des derniers en-tetes envoyes), soit comme un litteral dont les chaines peuvent etre compressees par un
+ * code de Huffman fixe. Un en-tete deja envoye sur la connexion (type de contenu, nom du serveur...) ne coute donc
+ * ensuite qu'un ou deux octets.
+ *
+ * Une connexion utilise un {@link Decoder} pour les en-tetes reçus et un {@link Encoder} pour ceux envoyes, chacun
+ * avec sa propre table dynamique. Aucun des deux n'est thread-safe : les blocs d'en-tetes doivent etre decodes (et
+ * encodes) dans l'ordre de leur reception (et de leur envoi).
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+final class Hpack {
+
+    /**
+     * La taille par defaut d'une table dynamique, en octets.
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    /**
+     * Le surcout compte pour chaque entree d'une table dynamique, en plus des octets de son nom et de sa valeur.
+     */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * La table statique (RFC 7541, annexe A), dont les index commencent a 1.
+     */
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"}, {":status", "404"},
+            {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""},
+            {"host", ""}, {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+            {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+            {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""}, {"set-cookie", ""},
+            {"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""},
+            {"via", ""}, {"www-authenticate", ""}
+    };
+    /**
+     * Les index de la table statique, par en-tete complet (nom et valeur separes par un octet nul) et par nom.
+     */
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    /**
+     * Les en-tetes dont la valeur change d'une reponse a l'autre : ils ne sont pas ajoutes a la table dynamique, ou
+     * ils ne feraient qu'evincer des entrees utiles.
+     */
+    private static final Set<String> VOLATILE_NAMES = Set.of(
+            "content-length", "content-range", "date", "etag", "last-modified", "location", "set-cookie");
+
+    /**
+     * Le code de Huffman de chaque symbole (les 256 octets, puis la fin de chaine), aligne a droite, et sa longueur
+     * en bits (RFC 7541, annexe B).
+     */
+    private static final int[] HUFFMAN_CODES = {
+            8184, 8388568, 268435426, 268435427, 268435428, 268435429, 268435430, 268435431, 268435432, 16777194,
+            1073741820, 268435433, 268435434, 1073741821, 268435435, 268435436, 268435437, 268435438, 268435439,
+            268435440, 268435441, 268435442, 1073741822, 268435443, 268435444, 268435445, 268435446, 268435447,
+            268435448, 268435449, 268435450, 268435451, 20, 1016, 1017, 4090, 8185, 21, 248, 2042, 1018, 1019, 249,
+            2043, 250, 22, 23, 24, 0, 1, 2, 25, 26, 27, 28, 29, 30, 31, 92, 251, 32764, 32, 4091, 1020, 8186, 33, 93,
+            94, 95, 96, 97, 98, 99, 100, 101, 102, 103, 104, 105, 106, 107, 108, 109, 110, 111, 112, 113, 114, 252,
+            115, 253, 8187, 524272, 8188, 16380, 34, 32765, 3, 35, 4, 36, 5, 37, 38, 39, 6, 116, 117, 40, 41, 42, 7,
+            43, 118, 44, 8, 9, 45, 119, 120, 121, 122, 123, 32766, 2044, 16381, 8189, 268435452, 1048550, 4194258,
+            1048551, 1048552, 4194259, 4194260, 4194261, 8388569, 4194262, 8388570, 8388571, 8388572, 8388573, 8388574,
+            16777195, 8388575, 16777196, 16777197, 4194263, 8388576, 16777198, 8388577, 8388578, 8388579, 8388580,
+            2097116, 4194264, 8388581, 4194265, 8388582, 8388583, 16777199, 4194266, 2097117, 1048553, 4194267,
+            4194268, 8388584, 8388585, 2097118, 8388586, 4194269, 4194270, 16777200, 2097119, 4194271, 8388587,
+            8388588, 2097120, 2097121, 4194272, 2097122, 8388589, 4194273, 8388590, 8388591, 1048554, 4194274, 4194275,
+            4194276, 8388592, 4194277, 4194278, 8388593, 67108832, 67108833, 1048555, 524273, 4194279, 8388594,
+            4194280, 33554412, 67108834, 67108835, 67108836, 134217694, 134217695, 67108837, 16777201, 33554413,
+            524274, 2097123, 67108838, 134217696, 134217697, 67108839, 134217698, 16777202, 2097124, 2097125, 67108840,
+            67108841, 268435453, 134217699, 134217700, 134217701, 1048556, 16777203, 1048557, 2097126, 4194281,
+            2097127, 2097128, 8388595, 4194282, 4194283, 33554414, 33554415, 16777204, 16777205, 67108842, 8388596,
+            67108843, 134217702, 67108844, 67108845, 134217703, 134217704, 134217705, 134217706, 134217707, 268435454,
+            134217708, 134217709, 134217710, 134217711, 134217712, 67108846, 1073741823
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28,
+            28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6,
+            7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13,
+            19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11,
+            14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23,
+            23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22,
+            21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26,
+            24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22,
+            22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30
+    };
+    /**
+     * Le symbole de fin de chaine, qui ne doit jamais apparaitre dans une chaine decodee.
+     */
+    private static final int EOS = 256;
+    /**
+     * L'arbre de decodage des codes de Huffman : les fils (bit 0 puis bit 1) du noeud n sont aux indices 2n et
+     * 2n + 1. Une valeur positive designe un noeud interne, une valeur negative la feuille du symbole -(valeur + 1),
+     * et 0 un code inexistant (la racine n'etant le fils d'aucun noeud).
+     */
+    private static final int[] HUFFMAN_TREE;
+
+    static {
+        for (int i = STATIC_TABLE.length; i > 0; i--) {
+            // Going backwards so that a name maps to its first index
+            String[] field = STATIC_TABLE[i - 1];
+            STATIC_FIELDS.put(field[0] + '\0' + field[1], i);
+            STATIC_NAMES.put(field[0], i);
+        }
+
+        int[] tree = new int[2 * 512];
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[child] = -(symbol + 1);
+                } else {
+                    if (tree[child] == 0) {
+                        tree[child] = nodes++;
+                    }
+                    node = tree[child];
+                }
+            }
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Exception levee lorsqu'un bloc d'en-tetes reçu ne peut pas etre decode. La table dynamique du decodeur n'est
+     * alors plus synchronisee avec celle du client : la connexion doit etre fermee (erreur COMPRESSION_ERROR).
+     */
+    static class CompressionException extends Exception {
+        CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Table dynamique : les derniers en-tetes ajoutes, du plus recent au plus ancien, dont la taille totale est bornee.
+     * Les plus anciens sont evinces pour faire de la place aux nouveaux.
+     */
+    private static class DynamicTable {
+        private final ArrayDeque<String[]> entries = new ArrayDeque<>();
+        private int size = 0;
+        private int maxSize;
+
+        private DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @param index L'index de l'entree, a partir de 0 pour la plus recente.
+         * @return L'entree (nom et valeur), ou null si l'index depasse la table.
+         */
+        private String[] get(int index) {
+            if (index >= entries.size()) {
+                return null;
+            }
+            Iterator<String[]> iterator = entries.iterator();
+            for (int i = 0; i < index; i++) {
+                iterator.next();
+            }
+            return iterator.next();
+        }
+
+        private void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            evict(maxSize - entrySize);
+            // An entry larger than the whole table just empties it
+            if (entrySize <= maxSize) {
+                entries.addFirst(new String[] {name, value});
+                size += entrySize;
+            }
+        }
+
+        private void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int targetSize) {
+            while (size > targetSize && !entries.isEmpty()) {
+                String[] evicted = entries.removeLast();
+                size -= entrySize(evicted[0], evicted[1]);
+            }
+        }
+
+        private static int entrySize(String name, String value) {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Decodeur des blocs d'en-tetes reçus sur une connexion.
+     */
+    static final class Decoder {
+        /**
+         * La taille maximale de la table dynamique annoncee au client (SETTINGS_HEADER_TABLE_SIZE).
+         */
+        private final int maxTableSize;
+        /**
+         * La taille maximale de la liste d'en-tetes decodee (noms et valeurs, plus 32 octets par en-tete).
+         */
+        private final int maxHeaderListSize;
+        private final DynamicTable table;
+
+        /**
+         * Cree un decodeur.
+         * @param maxTableSize La taille maximale de la table dynamique annoncee au client.
+         * @param maxHeaderListSize La taille maximale d'une liste d'en-tetes decodee.
+         */
+        Decoder(int maxTableSize, int maxHeaderListSize) {
+            this.maxTableSize = maxTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decode un bloc d'en-tetes complet.
+         * @param block Les octets du bloc (consommes).
+         * @return Les en-tetes (nom et valeur), dans l'ordre du bloc.
+         * @throws CompressionException Si le bloc est mal forme, ou si la liste d'en-tetes depasse la taille maximale.
+         */
+        List<String[]> decode(ByteBuffer block) throws CompressionException {
+            List<String[]> fields = new ArrayList<>();
+            int listSize = 0;
+            boolean fieldSeen = false;
+            while (block.hasRemaining()) {
+                int first = block.get(block.position()) & 0xFF;
+                String[] field;
+                if ((first & 0x80) != 0) {
+                    // Indexed field
+                    field = lookup(decodeInteger(block, 7));
+                } else if ((first & 0x40) != 0) {
+                    // Literal with incremental indexing
+                    field = decodeLiteral(block, 6);
+                    table.add(field[0], field[1]);
+                } else if ((first & 0x20) != 0) {
+                    // Dynamic table size update, only allowed before the first field of a block
+                    int newSize = decodeInteger(block, 5);
+                    if (fieldSeen || newSize > maxTableSize) {
+                        throw new CompressionException("Mise a jour de la table dynamique invalide");
+                    }
+                    table.setMaxSize(newSize);
+                    continue;
+                } else {
+                    // Literal without indexing, or never indexed: the same for a server that does not forward them
+                    field = decodeLiteral(block, 4);
+                }
+                fieldSeen = true;
+                listSize += DynamicTable.entrySize(field[0], field[1]);
+                if (listSize > maxHeaderListSize) {
+                    throw new CompressionException("Liste d'en-tetes trop longue");
+                }
+                fields.add(field);
+            }
+            return fields;
+        }
+
+        private String[] lookup(int index) throws CompressionException {
+            if (index <= 0) {
+                throw new CompressionException("Index d'en-tete invalide : " + index);
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            String[] field = table.get(index - STATIC_TABLE.length - 1);
+            if (field == null) {
+                throw new CompressionException("Index d'en-tete invalide : " + index);
+            }
+            return field;
+        }
+
+        private String[] decodeLiteral(ByteBuffer block, int prefixBits) throws CompressionException {
+            int nameIndex = decodeInteger(block, prefixBits);
+            String name = nameIndex > 0 ? lookup(nameIndex)[0] : decodeString(block);
+            return new String[] {name, decodeString(block)};
+        }
+
+        private String decodeString(ByteBuffer block) throws CompressionException {
+            if (!block.hasRemaining()) {
+                throw new CompressionException("Bloc d'en-tetes tronque");
+            }
+            boolean huffman = (block.get(block.position()) & 0x80) != 0;
+            int length = decodeInteger(block, 7);
+            if (length > block.remaining() || length > maxHeaderListSize) {
+                throw new CompressionException("Bloc d'en-tetes tronque");
+            }
+            byte[] bytes = new byte[length];
+            block.get(bytes);
+            return huffman ? decodeHuffman(bytes) : new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Encodeur des blocs d'en-tetes envoyes sur une connexion. Les en-tetes deja presents dans une table sont envoyes
+     * comme un index ; les autres sont ajoutes a la table dynamique, sauf ceux dont la valeur change a chaque reponse.
+     */
+    static final class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        /**
+         * La taille de table annoncee par le client, a signaler au debut du prochain bloc (-1 si elle n'a pas change).
+         */
+        private int pendingTableSize = -1;
+
+        /**
+         * Applique la taille maximale de la table dynamique annoncee par le client (SETTINGS_HEADER_TABLE_SIZE).
+         * @param maxSize La nouvelle taille maximale.
+         */
+        void setMaxTableSize(int maxSize) {
+            // Never grow past the default, which is enough for response headers
+            int size = Math.min(maxSize, DEFAULT_TABLE_SIZE);
+            if (size != table.maxSize) {
+                table.setMaxSize(size);
+                pendingTableSize = size;
+            }
+        }
+
+        /**
+         * Encode une liste d'en-tetes en un bloc.
+         * @param fields Les en-tetes (nom en minuscules et valeur), dans l'ordre d'envoi.
+         * @return Les octets du bloc, en mode lecture.
+         */
+        ByteBuffer encode(List<String[]> fields) {
+            ByteBuffer block = ByteBuffer.allocate(256);
+            if (pendingTableSize >= 0) {
+                block = encodeInteger(block, 0x20, 5, pendingTableSize);
+                pendingTableSize = -1;
+            }
+            for (String[] field : fields) {
+                block = encodeField(block, field[0], field[1]);
+            }
+            return block.flip();
+        }
+
+        private ByteBuffer encodeField(ByteBuffer block, String name, String value) {
+            Integer index = STATIC_FIELDS.get(name + '\0' + value);
+            int nameIndex = 0;
+            int position = STATIC_TABLE.length + 1;
+            for (String[] entry : table.entries) {
+                if (index == null && entry[0].equals(name) && entry[1].equals(value)) {
+                    index = position;
+                } else if (nameIndex == 0 && entry[0].equals(name)) {
+                    nameIndex = position;
+                }
+                position++;
+            }
+            if (index != null) {
+                return encodeInteger(block, 0x80, 7, index);
+            }
+
+            Integer staticName = STATIC_NAMES.get(name);
+            if (staticName != null) {
+                nameIndex = staticName;
+            }
+            if (VOLATILE_NAMES.contains(name)) {
+                block = encodeInteger(block, 0x00, 4, nameIndex);
+            } else {
+                block = encodeInteger(block, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if (nameIndex == 0) {
+                block = encodeString(block, name);
+            }
+            return encodeString(block, value);
+        }
+
+        /**
+         * Encode une chaine, compressee par le code de Huffman si elle y gagne.
+         */
+        private static ByteBuffer encodeString(ByteBuffer block, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            long bits = 0;
+            for (byte b : bytes) {
+                bits += HUFFMAN_LENGTHS[b & 0xFF];
+            }
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength >= bytes.length) {
+                block = encodeInteger(block, 0x00, 7, bytes.length);
+                return ensureCapacity(block, bytes.length).put(bytes);
+            }
+
+            block = ensureCapacity(encodeInteger(block, 0x80, 7, huffmanLength), huffmanLength);
+            long pending = 0;
+            int pendingBits = 0;
+            for (byte b : bytes) {
+                int symbol = b & 0xFF;
+                pending = (pending << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+                pendingBits += HUFFMAN_LENGTHS[symbol];
+                while (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    block.put((byte) (pending >>> pendingBits));
+                }
+            }
+            if (pendingBits > 0) {
+                // Padded with the most significant bits of the end of string code (all ones)
+                block.put((byte) ((pending << (8 - pendingBits)) | (0xFF >>> pendingBits)));
+            }
+            return block;
+        }
+    }
+
+    /**
+     * Decode un entier a prefixe (RFC 7541, section 5.1).
+     * @param block Le bloc, positionne sur l'octet contenant le prefixe.
+     * @param prefixBits Le nombre de bits du prefixe dans le premier octet.
+     * @return L'entier decode.
+     * @throws CompressionException Si l'entier est tronque ou depasse la capacite d'un int.
+     */
+    private static int decodeInteger(ByteBuffer block, int prefixBits) throws CompressionException {
+        int max = (1 << prefixBits) - 1;
+        int value = block.get() & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; shift <= 28; shift += 7) {
+            if (!block.hasRemaining()) {
+                throw new CompressionException("Bloc d'en-tetes tronque");
+            }
+            int b = block.get() & 0xFF;
+            value += (b & 0x7F) << shift;
+            if (value < 0) {
+                break;
+            }
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CompressionException("Entier trop grand dans un bloc d'en-tetes");
+    }
+
+    /**
+     * Encode un entier a prefixe a la suite du bloc passe en parametre.
+     * @param block Le bloc, en mode ecriture.
+     * @param flags Les bits precedant le prefixe dans le premier octet.
+     * @param prefixBits Le nombre de bits du prefixe.
+     * @param value L'entier (positif) a encoder.
+     * @return Le bloc, agrandi si necessaire.
+     */
+    private static ByteBuffer encodeInteger(ByteBuffer block, int flags, int prefixBits, int value) {
+        block = ensureCapacity(block, 6);
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            return block.put((byte) (flags | value));
+        }
+        block.put((byte) (flags | max));
+        for (value -= max; value >= 0x80; value >>>= 7) {
+            block.put((byte) (0x80 | (value & 0x7F)));
+        }
+        return block.put((byte) value);
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer block, int needed) {
+        if (block.remaining() >= needed) {
+            return block;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(block.capacity() * 2, block.position() + needed));
+        return larger.put(block.flip());
+    }
+
+    /**
+     * Decode une chaine compressee par le code de Huffman.
+     * @param bytes Les octets de la chaine.
+     * @return La chaine decodee, chaque octet etant interprete comme un caractere ISO-8859-1.
+     * @throws CompressionException Si la chaine contient le symbole de fin, ou si son bourrage est invalide (plus de
+     * 7 bits, ou autre chose que le debut du code de fin de chaine).
+     */
+    private static String decodeHuffman(byte[] bytes) throws CompressionException {
+        StringBuilder decoded = new StringBuilder(bytes.length * 8 / 5);
+        int node = 0;
+        // Bits read since the last complete symbol, all ones as long as they may be padding
+        int pendingBits = 0;
+        boolean allOnes = true;
+        for (byte b : bytes) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int child = HUFFMAN_TREE[2 * node + one];
+                pendingBits++;
+                allOnes &= one == 1;
+                if (child > 0) {
+                    node = child;
+                } else if (child < 0 && -child - 1 != EOS) {
+                    decoded.append((char) (-child - 1));
+                    node = 0;
+                    pendingBits = 0;
+                    allOnes = true;
+                } else {
+                    throw new CompressionException("Code de Huffman invalide");
+                }
+            }
+        }
+        if (pendingBits > 7 || !allOnes) {
+            throw new CompressionException("Bourrage de Huffman invalide");
+        }
+        return decoded.toString();
+    }
+}
@@ -0,0 +1,1288 @@
+package http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import utils.ConnectionReaper;
+
+/**
+ * Connexion HTTP/2 en clair (h2c, RFC 9113) du moteur bloquant, etablie soit d'emblee par le client (preface
+ * "PRI * HTTP/2.0" a la place d'une premiere requete), soit par une requete HTTP/1.1 demandant le changement de
+ * protocole (en-tete "Upgrade: h2c"), a laquelle il est alors repondu sur le flux 1.
+ *
+ * Chaque requete est un flux independant de la connexion : le thread de la connexion ne fait que lire les trames et
+ * les repartir entre les flux, et chaque flux est traite dans son propre thread par
+ * {@link WebServer#handleRequest(Request)}, comme une requete HTTP/1.1. Une page chargeant de nombreuses ressources les
+ * obtient ainsi en parallele sur une seule connexion, sans qu'une reponse lente ou volumineuse retarde les autres.
+ *
+ * Les trames envoyees par les differents flux sont serialisees par un verrou d'ecriture, une trame de donnees ne
+ * depassant jamais la taille maximale annoncee par le client. Le controle de flux est respecte dans les deux sens :
+ * un flux n'envoie que ce que les fenetres du client autorisent, et les donnees reçues ne sont creditees au client
+ * qu'une fois lues par le traitement du flux, ce qui borne la memoire occupee par les corps de requetes en attente.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class Http2Connection {
+
+    /**
+     * La preface envoyee par le client au debut d'une connexion HTTP/2.
+     */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * La reponse acceptant le passage a HTTP/2 demande par une requete HTTP/1.1.
+     */
+    private static final byte[] SWITCHING_PROTOCOLS_RESPONSE =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes();
+
+    /**
+     * Les types de trames.
+     */
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    /**
+     * Les indicateurs des trames (ACK et END_STREAM partagent la meme valeur, sur des types differents).
+     */
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    /**
+     * Les codes d'erreur des trames RST_STREAM et GOAWAY.
+     */
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    /**
+     * Les parametres des trames SETTINGS.
+     */
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    /**
+     * La taille maximale des trames reçues (la valeur par defaut du protocole, qui n'est donc pas annoncee) et la
+     * borne superieure de celle que le client peut annoncer.
+     */
+    private static final int MAX_FRAME_SIZE = 16 * 1024;
+    private static final int MAX_ALLOWED_FRAME_SIZE = (1 << 24) - 1;
+    /**
+     * La taille initiale des fenetres de controle de flux, avant tout ajustement, et leur taille maximale.
+     */
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    /**
+     * La fenetre de reception de chaque flux et celle de la connexion : les octets de corps de requete reçus et pas
+     * encore lus par le traitement de leur flux ne depassent jamais ces tailles.
+     */
+    private static final int STREAM_WINDOW_SIZE = 256 * 1024;
+    private static final int CONNECTION_WINDOW_SIZE = 1024 * 1024;
+    private static final byte[] NO_BYTES = {};
+
+    /**
+     * Erreur de protocole, touchant soit un seul flux (qui est alors annule par une trame RST_STREAM), soit toute la
+     * connexion (qui est alors fermee apres une trame GOAWAY).
+     */
+    private static class Http2Exception extends IOException {
+        private final int errorCode;
+        /**
+         * Le flux touche, ou 0 pour une erreur de connexion.
+         */
+        private final int streamId;
+
+        private Http2Exception(int errorCode, int streamId, String message) {
+            super(message);
+            this.errorCode = errorCode;
+            this.streamId = streamId;
+        }
+    }
+
+    /**
+     * Un flux ouvert de la connexion : une requete, depuis la reception de son en-tete jusqu'a l'envoi de la fin de
+     * sa reponse.
+     */
+    private final class Stream {
+        private final int id;
+        private final StreamInput input;
+        /**
+         * Le nombre d'octets de donnees que le client accepte encore sur ce flux (protege par le moniteur de la
+         * connexion, qui protege toutes les fenetres d'envoi).
+         */
+        private long sendWindow;
+        /**
+         * Le flux a-t-il ete annule (par le client ou par le serveur) ? (protege par le moniteur de la connexion)
+         */
+        private boolean reset = false;
+
+        private Stream(int id, boolean endStream) {
+            this.id = id;
+            this.input = new StreamInput(id, endStream);
+        }
+    }
+
+    /**
+     * Corps d'une requete HTTP/2 : les donnees des trames DATA de son flux, dans l'ordre de leur reception. Le thread
+     * de la connexion y depose les donnees reçues, et le traitement du flux les lit ; chaque moitie de fenetre lue est
+     * creditee au client, qui peut alors envoyer la suite.
+     */
+    private final class StreamInput extends InputStream {
+        private final int streamId;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        /**
+         * La position de lecture dans le premier morceau de {@link #chunks}.
+         */
+        private int chunkPosition = 0;
+        /**
+         * Le nombre d'octets que le client peut encore envoyer sur ce flux.
+         */
+        private int window = STREAM_WINDOW_SIZE;
+        /**
+         * Le nombre d'octets lus qui n'ont pas encore ete credites au client.
+         */
+        private int unacknowledged = 0;
+        /**
+         * Le client a-t-il termine le corps (indicateur END_STREAM) ?
+         */
+        private boolean ended;
+        /**
+         * Le traitement du flux est-il termine ? Les donnees reçues ensuite ne sont plus gardees.
+         */
+        private boolean closed = false;
+        /**
+         * L'erreur a transmettre au lecteur si le flux a ete annule ou la connexion fermee, ou null.
+         */
+        private IOException failure;
+
+        private StreamInput(int streamId, boolean ended) {
+            this.streamId = streamId;
+            this.ended = ended;
+        }
+
+        /**
+         * Depose les donnees d'une trame DATA reçue. Toute la trame compte dans la fenetre du flux, bourrage compris :
+         * le bourrage, qui ne sera jamais lu, est compte d'emblee parmi les octets a crediter au client.
+         * @param data Les donnees de la trame.
+         * @param offset La position des donnees (sans le bourrage) dans le tableau.
+         * @param length La longueur des donnees.
+         * @param endStream La trame termine-t-elle le corps ?
+         * @return false si les donnees n'ont pas ete gardees (traitement du flux deja termine), auquel cas toute la
+         * trame doit etre creditee a la connexion par l'appelant.
+         * @throws Http2Exception Si le corps etait deja termine, ou si le client a depasse la fenetre du flux.
+         */
+        private synchronized boolean receive(byte[] data, int offset, int length, boolean endStream)
+                throws Http2Exception {
+            if (ended) {
+                throw new Http2Exception(STREAM_CLOSED, streamId, "Donnees apres la fin du flux");
+            }
+            if (data.length > window) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "Fenetre du flux depassee");
+            }
+            ended = endStream;
+            if (closed) {
+                return false;
+            }
+            window -= data.length;
+            unacknowledged += data.length - length;
+            if (length > 0) {
+                chunks.add(Arrays.copyOfRange(data, offset, offset + length));
+            }
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Prend les octets a crediter au client si la moitie de la fenetre du flux est atteinte, plutot que d'envoyer
+         * une trame pour chaque lecture. A appeler sous le moniteur du corps.
+         * @return Le nombre d'octets a crediter par une trame WINDOW_UPDATE du flux, ou 0.
+         */
+        private int takeUpdate() {
+            if (ended || unacknowledged < STREAM_WINDOW_SIZE / 2) {
+                return 0;
+            }
+            int update = unacknowledged;
+            window += update;
+            unacknowledged = 0;
+            return update;
+        }
+
+        /**
+         * @return Le nombre d'octets de bourrage a crediter au client par une trame WINDOW_UPDATE du flux, ou 0 (voir
+         * {@link #takeUpdate()}).
+         */
+        private synchronized int takePaddingUpdate() {
+            return takeUpdate();
+        }
+
+        /**
+         * Fait echouer les lectures en cours et a venir, apres l'annulation du flux ou la fermeture de la connexion.
+         * @param failure L'erreur a transmettre au lecteur.
+         */
+        private synchronized void fail(IOException failure) {
+            if (this.failure == null) {
+                this.failure = failure;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Termine le corps a la fin du traitement du flux, en oubliant les donnees qui n'ont pas ete lues.
+         * @return Le nombre d'octets oublies, a crediter a la connexion.
+         */
+        private synchronized int close(IOException failure) {
+            closed = true;
+            fail(failure);
+            int discarded = -chunkPosition;
+            for (byte[] chunk : chunks) {
+                discarded += chunk.length;
+            }
+            chunks.clear();
+            chunkPosition = 0;
+            return discarded;
+        }
+
+        private synchronized boolean isEnded() {
+            return ended;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            int read;
+            int update = 0;
+            synchronized (this) {
+                try {
+                    while (chunks.isEmpty() && !ended && failure == null) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Lecture du corps interrompue");
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (chunks.isEmpty()) {
+                    return -1;
+                }
+
+                byte[] chunk = chunks.peek();
+                read = Math.min(count, chunk.length - chunkPosition);
+                System.arraycopy(chunk, chunkPosition, buffer, offset, read);
+                chunkPosition += read;
+                if (chunkPosition == chunk.length) {
+                    chunks.poll();
+                    chunkPosition = 0;
+                }
+                unacknowledged += read;
+                update = takeUpdate();
+            }
+            releaseConnectionWindow(read);
+            if (update > 0) {
+                writeFrame(WINDOW_UPDATE, 0, streamId, intPayload(update));
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized int available() {
+            return chunks.isEmpty() ? 0 : chunks.peek().length - chunkPosition;
+        }
+    }
+
+    /**
+     * Canal d'envoi du corps d'une reponse : chaque ecriture devient une trame DATA, limitee par la taille maximale
+     * des trames et attendant si necessaire que le client ouvre ses fenetres de controle de flux.
+     */
+    private final class DataChannel implements WritableByteChannel {
+        private final Stream stream;
+        /**
+         * Le nombre d'octets du corps restant a envoyer, ou -1 si sa taille est inconnue.
+         */
+        private long remaining;
+        /**
+         * La derniere trame envoyee portait-elle l'indicateur END_STREAM ?
+         */
+        private boolean ended = false;
+
+        private DataChannel(Stream stream, long contentLength) {
+            this.stream = stream;
+            this.remaining = contentLength;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (!source.hasRemaining()) {
+                return 0;
+            }
+            int length = reserveWindow(stream, Math.min(source.remaining(), peerMaxFrameSize));
+            ByteBuffer data = source.slice();
+            data.limit(length);
+            source.position(source.position() + length);
+            if (remaining > 0) {
+                remaining -= length;
+            }
+            // The last bytes of a body of known size end the stream, without an empty frame afterwards
+            ended = remaining == 0;
+            writeFrame(DATA, ended ? FLAG_END_STREAM : 0, stream.id, data);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final WebServer server;
+    private final ServerConfig config;
+    private final SocketChannel channel;
+    private final ConnectionInput in;
+    private final ConnectionReaper.Deadline deadline;
+    /**
+     * Les threads traitant les flux, partages par toutes les connexions HTTP/2 du serveur.
+     */
+    private final ExecutorService streamWorkers;
+    private final SocketAddress address;
+
+    /**
+     * Le decodeur des en-tetes reçus (utilise seulement par le thread de la connexion) et l'encodeur des en-tetes
+     * envoyes (protege par {@link #writeLock}).
+     */
+    private final Hpack.Decoder decoder;
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    /**
+     * Le verrou serialisant l'ecriture des trames, et l'en-tete de trame qu'il protege.
+     */
+    private final Object writeLock = new Object();
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+
+    /**
+     * Les flux ouverts, par identifiant.
+     */
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    /**
+     * Le plus grand identifiant de flux ouvert par le client (seulement utilise par le thread de la connexion).
+     */
+    private int lastStreamId = 0;
+    /**
+     * Le client a-t-il annonce la fin de la connexion (trame GOAWAY) ? Il n'ouvrira alors plus de flux.
+     */
+    private boolean goingAway = false;
+
+    /**
+     * L'etat du controle de flux en envoi, protege par le moniteur de la connexion : la fenetre de la connexion, la
+     * fenetre initiale des nouveaux flux, et la fermeture de la connexion qui debloque les flux en attente.
+     */
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindow = DEFAULT_WINDOW_SIZE;
+    private boolean closed = false;
+    /**
+     * La fenetre de reception de la connexion et les octets lus pas encore credites au client, proteges par le
+     * moniteur de la connexion.
+     */
+    private int connectionReceiveWindow = CONNECTION_WINDOW_SIZE;
+    private int connectionUnacknowledged = 0;
+    /**
+     * La taille maximale des trames annoncee par le client.
+     */
+    private volatile int peerMaxFrameSize = MAX_FRAME_SIZE;
+    /**
+     * Le nombre d'octets envoyes sur la connexion, lu par le thread surveillant les delais.
+     */
+    private volatile long bytesSent = 0;
+    /**
+     * L'echeance actuellement armee : aucune, attente d'un nouveau flux, ou flux en cours (protegee par le moniteur
+     * de la connexion).
+     */
+    private String armedPhase = null;
+    /**
+     * Le nombre de flux confies a un thread dont le traitement n'est pas termine, et le client a-t-il ferme sa moitie
+     * de la connexion (proteges par le moniteur de la connexion) ?
+     */
+    private int openStreams = 0;
+    private boolean peerClosed = false;
+
+    /**
+     * Cree une connexion HTTP/2.
+     * @param server Le serveur traitant les requetes.
+     * @param config La configuration du serveur.
+     * @param channel Le canal (bloquant) connecte au client.
+     * @param in Le stream de la connexion, positionne apres la preface du client ou la requete HTTP/1.1.
+     * @param deadline L'echeance de la connexion.
+     * @param streamWorkers Les threads traitant les flux.
+     */
+    Http2Connection(WebServer server, ServerConfig config, SocketChannel channel, ConnectionInput in,
+                    ConnectionReaper.Deadline deadline, ExecutorService streamWorkers) {
+        this.server = server;
+        this.config = config;
+        this.channel = channel;
+        this.in = in;
+        this.deadline = deadline;
+        this.streamWorkers = streamWorkers;
+        this.address = channel.socket().getRemoteSocketAddress();
+        this.decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, config.getMaxHeaderSize());
+    }
+
+    /**
+     * Indique si une requete HTTP/1.1 demande le passage a HTTP/2 en clair, et si ce passage peut etre accepte : la
+     * requete ne doit pas avoir de corps (qui devrait etre lu avant de changer de protocole), et ses parametres
+     * HTTP/2 (en-tete HTTP2-Settings) doivent etre valides.
+     * @param request La requete reçue, dont l'en-tete a ete lu.
+     * @return true si la connexion doit passer a HTTP/2 apres cette requete.
+     */
+    static boolean isUpgrade(Request request) {
+        String upgrade = request.getHeader("Upgrade");
+        String connection = request.getHeader("Connection");
+        String settings = request.getHeader("HTTP2-Settings");
+        if (upgrade == null || connection == null || settings == null || !"HTTP/1.1".equals(request.getVersion())
+                || !hasToken(upgrade, "h2c") || !hasToken(connection, "upgrade")
+                || request.getHeader("Transfer-Encoding") != null) {
+            return false;
+        }
+        String contentLength = request.getHeader("Content-Length");
+        return (contentLength == null || contentLength.trim().equals("0")) && decodeSettings(settings) != null;
+    }
+
+    /**
+     * @return true si la liste de valeurs (separees par des virgules) contient la valeur passee en parametre,
+     * sans tenir compte de la casse.
+     */
+    private static boolean hasToken(String values, String token) {
+        for (String value : values.split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode la valeur de l'en-tete HTTP2-Settings : les parametres d'une trame SETTINGS, en base64url.
+     * @return Les parametres, ou null si la valeur est invalide.
+     */
+    private static byte[] decodeSettings(String value) {
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(value.trim());
+            return settings.length % 6 == 0 ? settings : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Traite la connexion jusqu'a ce que le client la ferme ou qu'une erreur de protocole y mette fin. Si le client
+     * ferme sa moitie de la connexion, les reponses des flux en cours lui sont encore envoyees avant de rendre la
+     * main (voir {@link #awaitStreams()}).
+     * @param upgrade La requete HTTP/1.1 ayant demande le passage a HTTP/2 (voir {@link #isUpgrade(Request)}), a
+     *                traiter comme le flux 1, ou null si le client a envoye la preface d'emblee (deja lue).
+     * @throws IOException En cas d'erreur de lecture ou d'ecriture sur la connexion.
+     */
+    void serve(Request upgrade) throws IOException {
+        try {
+            if (upgrade != null) {
+                ByteBuffer response = ByteBuffer.wrap(SWITCHING_PROTOCOLS_RESPONSE);
+                while (response.hasRemaining()) {
+                    channel.write(response);
+                }
+            }
+            ByteBuffer settings = ByteBuffer.allocate(18)
+                    .putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(config.getHttp2MaxStreams())
+                    .putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW_SIZE)
+                    .putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(config.getMaxHeaderSize())
+                    .flip();
+            writeFrame(SETTINGS, 0, 0, settings);
+            writeFrame(WINDOW_UPDATE, 0, 0, intPayload(CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE));
+
+            if (upgrade != null) {
+                applySettings(decodeSettings(upgrade.getHeader("HTTP2-Settings")));
+                readPreface();
+                // The upgrade request becomes stream 1, whose request side is already complete
+                lastStreamId = 1;
+                startStream(openStream(1, true), upgrade);
+            }
+            readFrames();
+            awaitStreams();
+        } catch (Http2Exception e) {
+            WebServer.LOG.debug("Erreur HTTP/2 avec " + address + " : " + e.getMessage());
+            goAway(e.errorCode, e.getMessage());
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            for (Stream stream : streams.values()) {
+                stream.input.fail(new EOFException("Connexion fermee"));
+            }
+        }
+    }
+
+    /**
+     * Attend la fin du traitement des flux en cours une fois que le client a ferme sa moitie de la connexion, pour
+     * que leurs reponses lui parviennent entieres. Les flux dont le corps de requete n'etait pas termine ne le seront
+     * plus : leur lecture echoue. L'attente est bornee par l'echeance d'envoi ({@link ServerConfig#getWriteTimeout()},
+     * prolongee selon le debit minimal) : une fois depassee, les flux encore en cours echouent a la fermeture de la
+     * connexion.
+     * @throws InterruptedIOException Si l'attente est interrompue.
+     */
+    private void awaitStreams() throws InterruptedIOException {
+        for (Stream stream : streams.values()) {
+            if (!stream.input.isEnded()) {
+                stream.input.fail(new EOFException("Connexion fermee par le client"));
+            }
+        }
+        synchronized (this) {
+            peerClosed = true;
+            deadline.arm(WebServer.WRITE_PHASE, config.getWriteTimeout(), () -> bytesSent, config.getMinDataRate());
+            try {
+                while (openStreams > 0 && deadline.getExpiredPhase() == null) {
+                    wait(WebServer.DEADLINE_CHECK_PERIOD);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente des flux interrompue");
+            }
+        }
+    }
+
+    /**
+     * Lit la preface du client, qui suit la reponse acceptant le passage a HTTP/2.
+     * @throws Http2Exception Si les octets reçus ne sont pas la preface.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    private void readPreface() throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        readFully(preface);
+        if (!Arrays.equals(preface, PREFACE)) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Preface HTTP/2 invalide");
+        }
+    }
+
+    /**
+     * Lit les trames de la connexion une a une et les traite, jusqu'a la fermeture de la connexion par le client.
+     * @throws Http2Exception En cas d'erreur de protocole touchant toute la connexion.
+     * @throws IOException En cas d'erreur de lecture ou d'ecriture.
+     */
+    private void readFrames() throws IOException {
+        byte[] header = new byte[FRAME_HEADER_SIZE];
+        boolean first = true;
+        for (;;) {
+            updateDeadline();
+            if (!in.buffer().hasRemaining() && !in.fill()) {
+                return;
+            }
+            readFully(header);
+            int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+            int type = header[3] & 0xFF;
+            int flags = header[4] & 0xFF;
+            int streamId = ByteBuffer.wrap(header, 5, 4).getInt() & 0x7FFFFFFF;
+            if (length > MAX_FRAME_SIZE) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Trame trop grande : " + length + " octets");
+            }
+            byte[] payload = length > 0 ? new byte[length] : NO_BYTES;
+            readFully(payload);
+            // The client preface ends with a SETTINGS frame
+            if (first && type != SETTINGS) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "La preface ne se termine pas par SETTINGS");
+            }
+            first = false;
+
+            try {
+                handleFrame(type, flags, streamId, payload);
+            } catch (Http2Exception e) {
+                if (e.streamId == 0) {
+                    throw e;
+                }
+                resetStream(e.streamId, e.errorCode);
+            }
+        }
+    }
+
+    /**
+     * Traite une trame reçue selon son type ; les types inconnus sont ignores.
+     * @throws Http2Exception En cas d'erreur de protocole, touchant le flux de la trame ou toute la connexion.
+     * @throws IOException En cas d'erreur de lecture ou d'ecriture.
+     */
+    private void handleFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        switch (type) {
+            case DATA -> onData(streamId, flags, payload);
+            case HEADERS -> onHeaders(streamId, flags, payload);
+            case PRIORITY -> {
+                // Streams are served as they come, priorities are not used
+                requireStream(streamId);
+                if (payload.length != 5) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, streamId, "Trame PRIORITY invalide");
+                }
+            }
+            case RST_STREAM -> onReset(streamId, payload);
+            case SETTINGS -> onSettings(streamId, flags, payload);
+            case PING -> {
+                if (streamId != 0 || payload.length != 8) {
+                    throw new Http2Exception(payload.length != 8 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, 0,
+                            "Trame PING invalide");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(PING, FLAG_ACK, 0, ByteBuffer.wrap(payload));
+                }
+            }
+            case GOAWAY -> goingAway = true;
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, payload);
+            case PUSH_PROMISE, CONTINUATION ->
+                    throw new Http2Exception(PROTOCOL_ERROR, 0, "Trame inattendue de type " + type);
+            default -> { }
+        }
+    }
+
+    /**
+     * Traite une trame DATA : ses donnees sont deposees dans le corps de la requete du flux.
+     */
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        requireStream(streamId);
+        // Padding included, the whole frame counts against the flow control windows
+        synchronized (this) {
+            if (payload.length > connectionReceiveWindow) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Fenetre de la connexion depassee");
+            }
+            connectionReceiveWindow -= payload.length;
+        }
+        int offset = 0;
+        int length = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            int padding = length > 0 ? payload[0] & 0xFF : 0;
+            offset = 1;
+            length -= 1 + padding;
+            if (length < 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "Bourrage invalide");
+            }
+        }
+
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "Donnees sur un flux non ouvert");
+            }
+            // A stream that was reset or answered already: the data is dropped
+            releaseConnectionWindow(payload.length);
+            return;
+        }
+        boolean kept = false;
+        try {
+            kept = stream.input.receive(payload, offset, length, (flags & FLAG_END_STREAM) != 0);
+        } finally {
+            releaseConnectionWindow(kept ? payload.length - length : payload.length);
+        }
+        // Padding is never read: credit it now, or a client padding its frames would see the stream window shrink
+        int update = kept && length < payload.length ? stream.input.takePaddingUpdate() : 0;
+        if (update > 0) {
+            writeFrame(WINDOW_UPDATE, 0, streamId, intPayload(update));
+        }
+    }
+
+    /**
+     * Traite une trame HEADERS (et ses trames CONTINUATION) : ouvre un nouveau flux et confie sa requete a un
+     * thread, ou termine le corps d'un flux ouvert (en-tetes de fin, ignores).
+     */
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        requireStream(streamId);
+        int offset = 0;
+        int length = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            offset = 1;
+            length -= 1 + (length > 0 ? payload[0] & 0xFF : 0);
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+            length -= 5;
+        }
+        if (length < 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Trame HEADERS invalide");
+        }
+
+        // The whole block must be decoded even if the stream is refused, to keep the dynamic table in sync
+        List<String[]> fields;
+        try {
+            fields = decoder.decode(readHeaderBlock(streamId, flags, payload, offset, length));
+        } catch (Hpack.CompressionException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, 0, e.getMessage());
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+        Stream trailed = streams.get(streamId);
+        if (trailed != null) {
+            if (!endStream) {
+                throw new Http2Exception(PROTOCOL_ERROR, streamId, "En-tetes de fin sans fin de flux");
+            }
+            trailed.input.receive(NO_BYTES, 0, 0, true);
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Identifiant de flux invalide : " + streamId);
+        }
+        // Trailers of a stream that was answered or reset already, or a stream opened after the client's GOAWAY
+        if (streamId <= lastStreamId) {
+            return;
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            return;
+        }
+        if (streams.size() >= config.getHttp2MaxStreams()) {
+            throw new Http2Exception(REFUSED_STREAM, streamId, "Trop de flux ouverts");
+        }
+        startStream(openStream(streamId, endStream), toRequest(streamId, fields));
+    }
+
+    /**
+     * Lit la fin d'un bloc d'en-tetes dans les trames CONTINUATION qui suivent la trame HEADERS, s'il y en a.
+     * @return Le bloc complet, en mode lecture.
+     * @throws Http2Exception Si une autre trame s'intercale, ou si le bloc depasse la taille maximale des en-tetes.
+     */
+    private ByteBuffer readHeaderBlock(int streamId, int flags, byte[] payload, int offset, int length)
+            throws IOException {
+        ByteBuffer block = ByteBuffer.wrap(payload, offset, length);
+        byte[] header = new byte[FRAME_HEADER_SIZE];
+        while ((flags & FLAG_END_HEADERS) == 0) {
+            readFully(header);
+            int fragmentLength = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+            flags = header[4] & 0xFF;
+            if (header[3] != CONTINUATION || (ByteBuffer.wrap(header, 5, 4).getInt() & 0x7FFFFFFF) != streamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "Bloc d'en-tetes interrompu");
+            }
+            if (fragmentLength > MAX_FRAME_SIZE || block.remaining() + fragmentLength > config.getMaxHeaderSize()) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Bloc d'en-tetes trop long");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(block.remaining() + fragmentLength).put(block);
+            readFully(larger.array(), larger.position(), fragmentLength);
+            block = larger.position(0);
+        }
+        return block;
+    }
+
+    /**
+     * Construit la requete d'un flux a partir de ses en-tetes : les pseudo-en-tetes donnent la ligne de requete,
+     * et :authority remplace l'en-tete Host. Une methode inconnue est gardee nulle, pour etre rejetee par une
+     * reponse 400 comme en HTTP/1.1.
+     * @throws Http2Exception Si la requete est mal formee (pseudo-en-tete manquant, en duplique ou inconnu, nom en
+     * majuscules, en-tete propre a une connexion HTTP/1.1).
+     */
+    private Request toRequest(int streamId, List<String[]> fields) throws Http2Exception {
+        Request request = new Request();
+        String method = null;
+        String path = null;
+        String scheme = null;
+        String authority = null;
+        boolean regular = false;
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            if (name.startsWith(":")) {
+                String previous = switch (name) {
+                    case ":method" -> method;
+                    case ":path" -> path;
+                    case ":scheme" -> scheme;
+                    case ":authority" -> authority;
+                    default -> value;
+                };
+                if (regular || previous != null) {
+                    throw malformed(streamId, "pseudo-en-tete " + name);
+                }
+                switch (name) {
+                    case ":method" -> method = value;
+                    case ":path" -> path = value;
+                    case ":scheme" -> scheme = value;
+                    default -> authority = value;
+                }
+                continue;
+            }
+
+            regular = true;
+            if (!name.equals(name.toLowerCase())) {
+                throw malformed(streamId, "nom d'en-tete en majuscules");
+            }
+            switch (name) {
+                case "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade" ->
+                        throw malformed(streamId, "en-tete " + name);
+                case "te" -> {
+                    if (!value.equalsIgnoreCase("trailers")) {
+                        throw malformed(streamId, "en-tete te");
+                    }
+                }
+                default -> { }
+            }
+            String previous = request.getHeader(name);
+            // Cookies may be split in several fields, to compress better
+            request.setHeader(name, previous == null ? value
+                    : previous + (name.equals("cookie") ? "; " : ", ") + value);
+        }
+        if (method == null || path == null || path.isEmpty() || scheme == null) {
+            throw malformed(streamId, "pseudo-en-tete manquant");
+        }
+        if (authority != null && request.getHeader("host") == null) {
+            request.setHeader("host", authority);
+        }
+
+        byte[] methodName = method.getBytes(StandardCharsets.ISO_8859_1);
+        request.setRequestLine(HttpMethod.parse(methodName, 0, methodName.length), path, "HTTP/2.0");
+        return request;
+    }
+
+    private static Http2Exception malformed(int streamId, String reason) {
+        return new Http2Exception(PROTOCOL_ERROR, streamId, "Requete mal formee : " + reason);
+    }
+
+    /**
+     * Traite une trame RST_STREAM : le client abandonne le flux, dont le traitement echoue a sa prochaine lecture ou
+     * ecriture.
+     */
+    private void onReset(int streamId, byte[] payload) throws Http2Exception {
+        requireStream(streamId);
+        if (payload.length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Trame RST_STREAM invalide");
+        }
+        if (streamId > lastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Annulation d'un flux non ouvert");
+        }
+        abort(streamId);
+    }
+
+    /**
+     * Traite une trame SETTINGS, et l'acquitte.
+     */
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Trame SETTINGS sur un flux");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.length != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Acquittement SETTINGS non vide");
+            }
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Trame SETTINGS invalide");
+        }
+        applySettings(payload);
+        writeFrame(SETTINGS, FLAG_ACK, 0, ByteBuffer.wrap(NO_BYTES));
+    }
+
+    /**
+     * Applique les parametres annonces par le client (trame SETTINGS, ou en-tete HTTP2-Settings).
+     * @param settings Les parametres, chacun sur 6 octets (identifiant puis valeur).
+     * @throws Http2Exception Si une valeur est invalide.
+     */
+    private void applySettings(byte[] settings) throws Http2Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(settings);
+        while (buffer.hasRemaining()) {
+            int id = buffer.getShort() & 0xFFFF;
+            long value = buffer.getInt() & 0xFFFFFFFFL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE -> {
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                }
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value > 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, 0, "SETTINGS_ENABLE_PUSH invalide");
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value > MAX_WINDOW_SIZE) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "SETTINGS_INITIAL_WINDOW_SIZE invalide");
+                    }
+                    setInitialWindow((int) value);
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < MAX_FRAME_SIZE || value > MAX_ALLOWED_FRAME_SIZE) {
+                        throw new Http2Exception(PROTOCOL_ERROR, 0, "SETTINGS_MAX_FRAME_SIZE invalide");
+                    }
+                    peerMaxFrameSize = (int) value;
+                }
+                // The number of streams and the size of header lists the client accepts don't limit responses
+                default -> { }
+            }
+        }
+    }
+
+    /**
+     * Applique une nouvelle fenetre initiale : les fenetres d'envoi des flux ouverts sont ajustees de la difference.
+     */
+    private synchronized void setInitialWindow(int window) throws Http2Exception {
+        int delta = window - peerInitialWindow;
+        peerInitialWindow = window;
+        for (Stream stream : streams.values()) {
+            stream.sendWindow += delta;
+            if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Fenetre de flux trop grande");
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Traite une trame WINDOW_UPDATE : agrandit la fenetre d'envoi de la connexion ou d'un flux, et reveille les flux
+     * qui attendaient de pouvoir envoyer.
+     */
+    private void onWindowUpdate(int streamId, byte[] payload) throws Http2Exception {
+        if (payload.length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Trame WINDOW_UPDATE invalide");
+        }
+        int increment = ByteBuffer.wrap(payload).getInt() & 0x7FFFFFFF;
+        if (increment == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Increment de fenetre nul");
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Fenetre de la connexion trop grande");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "Fenetre du flux trop grande");
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * @throws Http2Exception Si la trame, qui doit concerner un flux, concerne la connexion (identifiant nul).
+     */
+    private static void requireStream(int streamId) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Trame sans flux");
+        }
+    }
+
+    /**
+     * Ouvre un flux, dont la fenetre d'envoi est la fenetre initiale courante.
+     * @param id L'identifiant du flux.
+     * @param endStream La requete est-elle deja complete (pas de corps) ?
+     * @return Le flux ouvert.
+     */
+    private Stream openStream(int id, boolean endStream) {
+        Stream stream = new Stream(id, endStream);
+        synchronized (this) {
+            stream.sendWindow = peerInitialWindow;
+            streams.put(id, stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Confie le traitement de la requete d'un flux a un thread. Si tous les threads sont occupes et leur file d'attente
+     * pleine, le flux est refuse (REFUSED_STREAM), ce qui indique au client qu'il peut renvoyer la requete sans risque.
+     * @throws Http2Exception Si le flux est refuse.
+     */
+    private void startStream(Stream stream, Request request) throws Http2Exception {
+        request.openStreamBody(stream.input);
+        long queuedAt = System.nanoTime();
+        synchronized (this) {
+            openStreams++;
+        }
+        try {
+            streamWorkers.execute(() -> {
+                request.setQueueNanos(System.nanoTime() - queuedAt);
+                serveStream(stream, request);
+            });
+        } catch (RejectedExecutionException e) {
+            streams.remove(stream.id);
+            synchronized (this) {
+                openStreams--;
+            }
+            server.metrics().streamRefused();
+            throw new Http2Exception(REFUSED_STREAM, stream.id, "Threads de traitement satures");
+        }
+    }
+
+    /**
+     * Traite la requete d'un flux et envoie sa reponse, depuis le thread du flux.
+     * @param stream Le flux.
+     * @param request La requete du flux.
+     */
+    private void serveStream(Stream stream, Request request) {
+        Response response = request.getMethod() == null ? server.badRequest() : server.handleRequest(request);
+        try (Response toSend = response) {
+            List<String[]> fields = new ArrayList<>();
+            fields.add(new String[] {":status", Integer.toString(toSend.getStatus())});
+            fields.addAll(toSend.getHeaderFields());
+            long contentLength = toSend.getContentLength();
+            if (contentLength >= 0) {
+                fields.add(new String[] {"content-length", Long.toString(contentLength)});
+            }
+            boolean empty = toSend.isBodyEmpty();
+            writeHeaders(stream.id, fields, empty);
+            if (!empty) {
+                DataChannel data = new DataChannel(stream, contentLength);
+                while (!toSend.writeBodyTo(data)) ;
+                if (!data.ended) {
+                    writeFrame(DATA, FLAG_END_STREAM, stream.id, ByteBuffer.wrap(NO_BYTES));
+                }
+            }
+        } catch (IOException e) {
+            // The stream was reset or the connection closed: nothing more to send
+        } finally {
+            server.metrics().addBytesSent(response.getBytesSent());
+            server.logAccess(address, response);
+            closeStream(stream);
+        }
+    }
+
+    /**
+     * Ferme un flux dont le traitement est termine. Si le client n'a pas fini d'envoyer le corps de la requete, le
+     * flux est annule pour qu'il arrete de l'envoyer.
+     */
+    private void closeStream(Stream stream) {
+        streams.remove(stream.id);
+        releaseConnectionWindow(stream.input.close(new EOFException("Flux termine")));
+        boolean reset;
+        synchronized (this) {
+            reset = stream.reset || closed;
+            openStreams--;
+            notifyAll();
+        }
+        if (!reset && !stream.input.isEnded()) {
+            try {
+                writeFrame(RST_STREAM, 0, stream.id, intPayload(NO_ERROR));
+            } catch (IOException ignored) {
+                // The connection is closing anyway
+            }
+        }
+        updateDeadline();
+    }
+
+    /**
+     * Annule un flux apres une erreur le concernant, et en informe le client.
+     */
+    private void resetStream(int streamId, int errorCode) throws IOException {
+        abort(streamId);
+        writeFrame(RST_STREAM, 0, streamId, intPayload(errorCode));
+    }
+
+    /**
+     * Marque un flux comme annule : son traitement echoue a sa prochaine lecture du corps ou ecriture de la reponse.
+     */
+    private void abort(int streamId) {
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        synchronized (this) {
+            stream.reset = true;
+            notifyAll();
+        }
+        stream.input.fail(new EOFException("Flux annule"));
+    }
+
+    /**
+     * Reserve une partie des fenetres d'envoi de la connexion et d'un flux, en attendant qu'elles s'ouvrent si
+     * necessaire.
+     * @param stream Le flux sur lequel envoyer des donnees.
+     * @param wanted Le nombre d'octets a envoyer.
+     * @return Le nombre d'octets reserves (au moins 1, au plus wanted).
+     * @throws IOException Si le flux a ete annule ou la connexion fermee pendant l'attente.
+     */
+    private synchronized int reserveWindow(Stream stream, int wanted) throws IOException {
+        for (;;) {
+            if (closed || stream.reset) {
+                throw new EOFException(closed ? "Connexion fermee" : "Flux annule");
+            }
+            long available = Math.min(connectionSendWindow, stream.sendWindow);
+            if (available > 0) {
+                int reserved = (int) Math.min(wanted, available);
+                connectionSendWindow -= reserved;
+                stream.sendWindow -= reserved;
+                return reserved;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente de la fenetre d'envoi interrompue");
+            }
+        }
+    }
+
+    /**
+     * Credite au client des octets de donnees reçus qui ne sont plus en memoire (lus, ou abandonnes), par une trame
+     * WINDOW_UPDATE de la connexion une fois la moitie de sa fenetre atteinte.
+     * @param count Le nombre d'octets.
+     */
+    private void releaseConnectionWindow(int count) {
+        int update = 0;
+        synchronized (this) {
+            connectionUnacknowledged += count;
+            if (connectionUnacknowledged >= CONNECTION_WINDOW_SIZE / 2) {
+                update = connectionUnacknowledged;
+                connectionReceiveWindow += update;
+                connectionUnacknowledged = 0;
+            }
+        }
+        if (update > 0) {
+            try {
+                writeFrame(WINDOW_UPDATE, 0, 0, intPayload(update));
+            } catch (IOException ignored) {
+                // The connection is closing: the reading thread will notice it
+            }
+        }
+    }
+
+    /**
+     * Arme l'echeance de la connexion selon son etat : sans flux ouvert, elle attend une nouvelle requete pendant le
+     * delai d'inactivite ; avec des flux ouverts, elle doit progresser (octets reçus ou envoyes) au debit minimal.
+     */
+    private synchronized void updateDeadline() {
+        if (peerClosed) {
+            // Only the responses are left to send, under the write deadline armed by awaitStreams()
+            return;
+        }
+        String phase = streams.isEmpty() ? WebServer.IDLE_PHASE : WebServer.STREAM_PHASE;
+        if (phase.equals(armedPhase)) {
+            return;
+        }
+        armedPhase = phase;
+        if (streams.isEmpty()) {
+            deadline.arm(phase, config.getKeepAliveTimeout());
+        } else {
+            deadline.arm(phase, Math.max(config.getBodyTimeout(), config.getWriteTimeout()),
+                    () -> in.getBytesRead() + bytesSent, config.getMinDataRate());
+        }
+    }
+
+    /**
+     * Envoie un bloc d'en-tetes, decoupe en une trame HEADERS et autant de trames CONTINUATION que necessaire. Le
+     * bloc est encode sous le verrou d'ecriture, les blocs devant arriver dans l'ordre de leur encodage.
+     * @param streamId Le flux de la reponse.
+     * @param fields Les en-tetes, pseudo-en-tete :status en premier.
+     * @param endStream La reponse se termine-t-elle avec ses en-tetes (pas de corps) ?
+     * @throws IOException En cas d'erreur d'ecriture.
+     */
+    private void writeHeaders(int streamId, List<String[]> fields, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer block = encoder.encode(fields);
+            int type = HEADERS;
+            do {
+                ByteBuffer fragment = block.slice();
+                fragment.limit(Math.min(block.remaining(), peerMaxFrameSize));
+                block.position(block.position() + fragment.limit());
+                int flags = (type == HEADERS && endStream ? FLAG_END_STREAM : 0)
+                        | (block.hasRemaining() ? 0 : FLAG_END_HEADERS);
+                writeFrameLocked(type, flags, streamId, fragment);
+                type = CONTINUATION;
+            } while (block.hasRemaining());
+        }
+    }
+
+    /**
+     * Annonce au client la fermeture de la connexion apres une erreur de protocole.
+     */
+    private void goAway(int errorCode, String message) {
+        byte[] debug = message != null ? message.getBytes(StandardCharsets.UTF_8) : NO_BYTES;
+        ByteBuffer payload = ByteBuffer.allocate(8 + debug.length).putInt(lastStreamId).putInt(errorCode).put(debug);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload.flip());
+        } catch (IOException ignored) {
+            // The connection is being closed anyway
+        }
+    }
+
+    /**
+     * Envoie une trame.
+     * @param type Le type de la trame.
+     * @param flags Ses indicateurs.
+     * @param streamId Son flux (0 pour la connexion).
+     * @param payload Son contenu (consomme).
+     * @throws IOException En cas d'erreur d'ecriture.
+     */
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        synchronized (writeLock) {
+            writeFrameLocked(type, flags, streamId, payload);
+        }
+    }
+
+    private void writeFrameLocked(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        frameHeader.clear();
+        frameHeader.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length)
+                .put((byte) type).put((byte) flags).putInt(streamId).flip();
+        ByteBuffer[] buffers = {frameHeader, payload};
+        while (payload.hasRemaining() || frameHeader.hasRemaining()) {
+            bytesSent += channel.write(buffers);
+        }
+    }
+
+    private static ByteBuffer intPayload(int value) {
+        return ByteBuffer.allocate(4).putInt(value).flip();
+    }
+
+    /**
+     * Lit exactement le nombre d'octets du tableau passe en parametre.
+     * @throws EOFException Si la connexion se termine avant.
+     */
+    private void readFully(byte[] bytes) throws IOException {
+        readFully(bytes, 0, bytes.length);
+    }
+
+    private void readFully(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(bytes, offset, length);
+            if (read < 0) {
+                throw new EOFException("Trame HTTP/2 incomplete");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package http.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Les methodes HTTP reconnues par le serveur (qu'il les implemente ou non).
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public enum HttpMethod {
+
+    GET, HEAD, POST, PUT, DELETE, CONNECT, OPTIONS, TRACE, PATCH;
+
+    private static final HttpMethod[] VALUES = values();
+
+    /**
+     * Le nom de la methode encode, pour la reconnaitre sans construire de chaine.
+     */
+    private final byte[] encodedName = name().getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Reconnait une methode d'apres les octets de son nom (sensible a la casse, comme le protocole HTTP).
+     * @param bytes Le tableau contenant le nom.
+     * @param offset La position du nom dans le tableau.
+     * @param length La longueur du nom.
+     * @return La methode reconnue, ou null si le nom ne correspond a aucune methode.
+     */
+    static HttpMethod parse(byte[] bytes, int offset, int length) {
+        for (HttpMethod method : VALUES) {
+            byte[] name = method.encodedName;
+            if (name.length == length && Arrays.equals(name, 0, length, bytes, offset, offset + length)) {
+                return method;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,89 @@
+package http.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Les codes de retour envoyes par le serveur. Le debut de l'en-tete de chaque code (ligne de statut et en-tete Server)
+ * est encode une fois pour toutes, et partage par toutes les reponses ayant ce code.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+enum HttpStatus {
+
+    OK(200, "OK"),
+    CREATED(201, "CREATED"),
+    NO_CONTENT(204, "NO CONTENT"),
+    PARTIAL_CONTENT(206, "PARTIAL CONTENT"),
+    NOT_MODIFIED(304, "NOT MODIFIED"),
+    BAD_REQUEST(400, "BAD REQUEST"),
+    FORBIDDEN(403, "FORBIDDEN"),
+    NOT_FOUND(404, "NOT FOUND"),
+    NOT_ACCEPTABLE(406, "NOT ACCEPTABLE"),
+    CONFLICT(409, "CONFLICT"),
+    PAYLOAD_TOO_LARGE(413, "PAYLOAD TOO LARGE"),
+    RANGE_NOT_SATISFIABLE(416, "RANGE NOT SATISFIABLE"),
+    INTERNAL_SERVER_ERROR(500, "INTERNAL SERVER ERROR"),
+    NOT_IMPLEMENTED(501, "NOT IMPLEMENTED"),
+    SERVICE_UNAVAILABLE(503, "SERVICE UNAVAILABLE");
+
+    /**
+     * La ligne d'en-tete identifiant le serveur, presente dans toutes ses reponses.
+     */
+    private static final String SERVER_LINE = "Server: Bot\r\n";
+    /**
+     * Les codes de retour, indexes par leur valeur numerique.
+     */
+    private static final HttpStatus[] BY_CODE = new HttpStatus[600];
+
+    static {
+        for (HttpStatus status : values()) {
+            BY_CODE[status.code] = status;
+        }
+    }
+
+    private final int code;
+    /**
+     * La ligne de statut suivie de l'en-tete Server, encodees.
+     */
+    private final byte[] head;
+    /**
+     * Le debut d'en-tete {@link #head} suivi de l'en-tete annonçant un contenu HTML, encodes.
+     */
+    private final byte[] htmlHead;
+
+    HttpStatus(int code, String reason) {
+        this.code = code;
+        String statusLine = "HTTP/1.1 " + code + " " + reason + "\r\n";
+        this.head = (statusLine + SERVER_LINE).getBytes(StandardCharsets.ISO_8859_1);
+        this.htmlHead = (statusLine + SERVER_LINE + "Content-Type: text/html\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    int getCode() {
+        return code;
+    }
+
+    /**
+     * Renvoie le code de retour de valeur numerique passee en parametre.
+     * @param code La valeur du code (par exemple 404).
+     * @return Le code de retour correspondant, ou null s'il n'est jamais envoye par le serveur.
+     */
+    static HttpStatus fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+    /**
+     * @return Les octets de la ligne de statut et de l'en-tete Server (a ne pas modifier).
+     */
+    byte[] getHead() {
+        return head;
+    }
+
+    /**
+     * @return Les octets de la ligne de statut, de l'en-tete Server et de l'en-tete "Content-Type: text/html" (a ne
+     * pas modifier).
+     */
+    byte[] getHtmlHead() {
+        return htmlHead;
+    }
+}
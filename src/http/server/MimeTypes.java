@@ -0,0 +1,136 @@
+package http.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table des types MIME des fichiers servis, d'apres leur extension. La table est chargee au demarrage (types usuels,
+ * completes par ceux de la configuration) et ne touche jamais au disque ensuite ; le type de chaque fichier deja servi
+ * est de plus garde par chemin. Un fichier d'extension inconnue est envoye comme "application/octet-stream".
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class MimeTypes {
+
+    /**
+     * Le type des fichiers dont l'extension est inconnue.
+     */
+    static final String DEFAULT_TYPE = "application/octet-stream";
+
+    /**
+     * Le nombre maximal de chemins dont le type est garde (au dela, le type est recalcule a partir de l'extension).
+     */
+    private static final int MAX_CACHED_PATHS = 10_000;
+
+    /**
+     * Les types usuels, par extension (en minuscules).
+     */
+    private static final Map<String, String> DEFAULT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html"),
+            Map.entry("htm", "text/html"),
+            Map.entry("css", "text/css"),
+            Map.entry("js", "application/javascript"),
+            Map.entry("mjs", "application/javascript"),
+            Map.entry("json", "application/json"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("txt", "text/plain"),
+            Map.entry("csv", "text/csv"),
+            Map.entry("md", "text/markdown"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("bmp", "image/bmp"),
+            Map.entry("pdf", "application/pdf"),
+            Map.entry("zip", "application/zip"),
+            Map.entry("gz", "application/gzip"),
+            Map.entry("tar", "application/x-tar"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("wav", "audio/wav"),
+            Map.entry("ogg", "audio/ogg"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("webm", "video/webm"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("otf", "font/otf")
+    );
+
+    /**
+     * Les types connus, par extension (en minuscules).
+     */
+    private final Map<String, String> byExtension;
+    /**
+     * Les types des fichiers deja servis, par chemin.
+     */
+    private final Map<Path, String> byPath = new ConcurrentHashMap<>();
+
+    /**
+     * Cree une table des types usuels, completee (ou corrigee) par les types passes en parametre.
+     * @param extraTypes Des types supplementaires, par extension (en minuscules).
+     */
+    MimeTypes(Map<String, String> extraTypes) {
+        this.byExtension = new HashMap<>(DEFAULT_TYPES);
+        this.byExtension.putAll(extraTypes);
+    }
+
+    /**
+     * Renvoie le type MIME du fichier passe en parametre, d'apres son extension.
+     * @param path Le chemin du fichier.
+     * @return Le type du fichier (jamais null).
+     */
+    String get(Path path) {
+        String type = byPath.get(path);
+        if (type == null) {
+            type = fromExtension(String.valueOf(path.getFileName()));
+            if (byPath.size() < MAX_CACHED_PATHS) {
+                byPath.put(path, type);
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Renvoie le type MIME d'un fichier d'apres l'extension de son nom.
+     * @param fileName Le nom du fichier.
+     * @return Le type du fichier, ou {@link #DEFAULT_TYPE} si son extension est inconnue.
+     */
+    private String fromExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) {
+            return DEFAULT_TYPE;
+        }
+        return byExtension.getOrDefault(fileName.substring(dot + 1).toLowerCase(), DEFAULT_TYPE);
+    }
+
+    /**
+     * Lit un fichier de types MIME au format de "mime.types" : chaque ligne donne un type suivi des extensions qui lui
+     * correspondent (par exemple "text/html html htm"). Les lignes vides et celles commençant par '#' sont ignorees.
+     * @param file Le fichier a lire.
+     * @return Les types lus, par extension (en minuscules).
+     * @throws IOException Si le fichier n'a pas pu etre lu.
+     */
+    static Map<String, String> readFile(Path file) throws IOException {
+        Map<String, String> types = new HashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            for (int i = 1; i < parts.length; i++) {
+                types.put(parts[i].toLowerCase(), parts[0]);
+            }
+        }
+        return types;
+    }
+}
@@ -0,0 +1,624 @@
+package http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Moteur non bloquant du serveur HTTP. Un thread (ou un par socket d'ecoute) accepte les connexions et les repartit
+ * entre quelques boucles d'evenements (une par coeur par defaut), chacune multiplexant ses connexions avec un
+ * {@link Selector}. Un client inactif ou lent ne coute donc qu'une entree dans un selecteur, et non un thread. Chaque
+ * boucle ferme elle-meme ses connexions qui depassent le delai de leur etape en cours, avec les memes delais que le
+ * moteur bloquant.
+ *
+ * Chaque requete entierement reçue (corps compris, garde en memoire) est confiee aux threads de traitement du serveur
+ * (bornes comme ceux du moteur bloquant, par {@link ServerConfig#getWorkers()} et {@link ServerConfig#getQueueSize()}),
+ * qui la traitent par {@link WebServer#handleRequest(Request)} : ce moteur sert donc exactement les memes methodes et
+ * codes de retour que le moteur bloquant, et un acces disque lent ou un verrou de fichier attendu n'arrete pas la
+ * boucle, qui ne fait que lire et ecrire. La reponse est rendue a la boucle, qui l'envoie lorsque le socket est pret.
+ * Une requete qui ne trouve pas de place dans la file des threads de traitement reçoit une reponse 503. Un corps plus
+ * gros que {@link ServerConfig#getMaxBodySize()} est refuse (reponse 413) sans etre reçu : cette taille est un cout en
+ * memoire par connexion. Les connexions persistantes et les requetes envoyees a la suite (pipelining) sont supportees :
+ * une connexion n'est plus lue pendant le traitement de sa requete, et les reponses sont envoyees dans l'ordre des
+ * requetes.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class NioEngine {
+
+    /**
+     * La taille initiale du buffer des octets reçus sur chaque connexion.
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+
+    private final WebServer server;
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+    /**
+     * Les threads traitant les requetes reçues par les boucles, partages par toutes les boucles.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Cree un moteur NIO pour le serveur passe en parametre.
+     * @param server Le serveur traitant les requetes reçues.
+     * @param config La configuration du serveur.
+     * @throws IOException Si un selecteur n'a pas pu etre ouvert.
+     */
+    NioEngine(WebServer server, ServerConfig config) throws IOException {
+        this.server = server;
+        this.config = config;
+        this.workers = server.createWorkers(0, 1);
+        this.loops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Lance les boucles d'evenements, puis accepte indefiniment les connexions sur le port passe en parametre en les
+     * repartissant a tour de role entre les boucles. Avec plusieurs sockets d'ecoute (voir
+     * {@link ServerConfig#getAcceptors()}, au plus un par boucle), chacun a son propre thread d'acceptation, qui
+     * repartit ses connexions entre ses propres boucles.
+     * @param port Le port sur lequel ecouter les connexions.
+     * @throws IOException Si un socket d'ecoute n'a pas pu etre ouvert.
+     */
+    void start(int port) throws IOException {
+        List<ServerSocketChannel> listeners =
+                WebServer.openListeners(port, Math.min(config.getAcceptors(), loops.length));
+
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        int acceptors = listeners.size();
+        WebServer.LOG.info("Waiting for connection (" + loops.length + " event loops"
+                + (acceptors > 1 ? ", " + acceptors + " acceptors)" : ")"));
+        for (int i = 1; i < acceptors; i++) {
+            ServerSocketChannel listener = listeners.get(i);
+            int first = i;
+            new Thread(() -> acceptForever(listener, first, acceptors), "nio-acceptor-" + i).start();
+        }
+        acceptForever(listeners.get(0), 0, acceptors);
+    }
+
+    /**
+     * Accepte indefiniment les connexions d'un socket d'ecoute, en les repartissant a tour de role entre ses boucles
+     * d'evenements : celles dont l'indice est first, first + step, first + 2 * step...
+     * @param listener Le socket d'ecoute.
+     * @param first L'indice de la premiere boucle du socket.
+     * @param step L'ecart entre les indices des boucles du socket (le nombre de sockets d'ecoute).
+     */
+    private void acceptForever(ServerSocketChannel listener, int first, int step) {
+        int next = first;
+        for (;;) {
+            try {
+                SocketChannel channel = listener.accept();
+                loops[next].register(channel);
+                next += step;
+                if (next >= loops.length) {
+                    next = first;
+                }
+            } catch (IOException e) {
+                WebServer.LOG.error("Erreur lors de l'acceptation d'une connexion : ", e);
+            }
+        }
+    }
+
+    /**
+     * Etat d'une connexion geree par une boucle d'evenements : les octets reçus et pas encore traites, l'analyse de la
+     * requete en cours, les reponses en attente d'envoi et le nombre de requetes deja servies.
+     */
+    private class Connection {
+        /**
+         * L'adresse du client, pour le journal des acces.
+         */
+        private final SocketAddress remote;
+        /**
+         * Les octets reçus et pas encore traites, en mode lecture.
+         */
+        private ByteBuffer received = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE).flip();
+        private final RequestParser parser = new RequestParser(config);
+        /**
+         * La requete en cours de reception, reutilisee pour toutes les requetes de la connexion.
+         */
+        private final Request request = new Request();
+        /**
+         * L'en-tete de la requete en cours a-t-il ete entierement reçu (son corps etant encore attendu) ?
+         */
+        private boolean headerReceived = false;
+        /**
+         * La requete en cours est-elle traitee par un thread de traitement ? La connexion n'est alors plus lue (les
+         * requetes suivantes attendent dans le socket), et n'a pas de delai : c'est le serveur qui travaille.
+         */
+        private boolean processing = false;
+        private final Queue<Response> toSend = new ArrayDeque<>();
+        private boolean closeAfterSend = false;
+        private int served = 0;
+        /**
+         * L'etape en cours de la connexion (voir {@link WebServer#IDLE_PHASE}), l'instant (selon
+         * {@link System#nanoTime()}) ou elle a commence, la progression de la connexion a cet instant et le nombre de
+         * requetes alors servies.
+         */
+        private String phase = WebServer.IDLE_PHASE;
+        private long phaseStart = System.nanoTime();
+        private long phaseProgressStart = 0;
+        private int phaseServed = 0;
+        /**
+         * La derniere progression de l'etape en cours et son instant (selon {@link System#nanoTime()}).
+         */
+        private long lastProgress = 0;
+        private long lastProgressTime = phaseStart;
+        private long bytesReceived = 0;
+        private long bytesSent = 0;
+        /**
+         * Etat de la reponse "100 Continue" pour la requete en cours de reception : 0 si elle n'est pas necessaire, 1
+         * si elle doit etre envoyee, 2 si elle l'a ete.
+         */
+        private int continueState = 0;
+
+        private Connection(SocketAddress remote) {
+            this.remote = remote;
+        }
+
+        /**
+         * Ajoute les octets disponibles dans le buffer a ceux reçus, a la suite de ces derniers. Les octets reçus ne
+         * sont deplaces que lorsque la place manque a la fin du buffer : ramenes au debut s'ils n'occupent pas plus de
+         * la moitie du buffer, recopies sinon dans un buffer deux fois plus grand. Chaque octet n'est donc recopie
+         * qu'un nombre borne de fois en moyenne, meme pour un gros corps de requete.
+         * @param buffer Le buffer contenant les octets reçus.
+         */
+        private void append(ByteBuffer buffer) {
+            int count = buffer.remaining();
+            if (received.capacity() - received.limit() < count) {
+                if (received.position() >= received.remaining()
+                        && received.capacity() - received.remaining() >= count) {
+                    received.compact().flip();
+                } else {
+                    ByteBuffer larger = ByteBuffer.allocate(
+                            Math.max(received.capacity() * 2, received.remaining() + count));
+                    received = larger.put(received).flip();
+                }
+            }
+
+            int start = received.position();
+            int end = received.limit();
+            received.limit(end + count).position(end);
+            received.put(buffer).position(start);
+        }
+
+        /**
+         * Deduit l'etape en cours de l'etat de la connexion, et note le debut d'une nouvelle etape : envoi de reponses
+         * s'il y en a en attente, sinon reception du corps ou de l'en-tete d'une requete, sinon attente d'une requete.
+         * Une requete servie entierement entre deux appels commence aussi une nouvelle etape, meme si la connexion est
+         * revenue a la meme.
+         */
+        private void updatePhase() {
+            String current = !toSend.isEmpty() ? WebServer.WRITE_PHASE
+                    : headerReceived ? WebServer.BODY_PHASE
+                    : received.hasRemaining() || parser.isStarted() ? WebServer.HEADER_PHASE
+                    : WebServer.IDLE_PHASE;
+            if (!current.equals(phase) || served != phaseServed) {
+                phase = current;
+                phaseStart = System.nanoTime();
+                phaseProgressStart = progress();
+                phaseServed = served;
+                lastProgress = phaseProgressStart;
+                lastProgressTime = phaseStart;
+            }
+        }
+
+        /**
+         * @return La progression de l'etape en cours, en octets : octets reçus pendant la reception d'un corps, octets
+         * envoyes pendant l'envoi des reponses.
+         */
+        private long progress() {
+            return switch (phase) {
+                case WebServer.BODY_PHASE -> bytesReceived;
+                case WebServer.WRITE_PHASE -> bytesSent;
+                default -> 0;
+            };
+        }
+
+        /**
+         * @param now L'instant courant (selon {@link System#nanoTime()}).
+         * @return true si la connexion a depasse le delai de son etape en cours, prolonge selon sa progression, ou si
+         * son etape n'a pas progresse pendant tout ce delai.
+         */
+        private boolean isExpired(long now) {
+            long timeout = switch (phase) {
+                case WebServer.HEADER_PHASE -> config.getHeaderTimeout();
+                case WebServer.BODY_PHASE -> config.getBodyTimeout();
+                case WebServer.WRITE_PHASE -> config.getWriteTimeout();
+                default -> config.getKeepAliveTimeout();
+            };
+            if (timeout <= 0 || processing) {
+                return false;
+            }
+            long allowed = timeout * 1_000_000;
+            if (config.getMinDataRate() > 0) {
+                long progress = progress();
+                if (progress != lastProgress) {
+                    lastProgress = progress;
+                    lastProgressTime = now;
+                } else if (now - lastProgressTime > allowed) {
+                    return true;
+                }
+                allowed += (progress - phaseProgressStart) * 1_000_000_000 / config.getMinDataRate();
+            }
+            return now - phaseStart > allowed;
+        }
+
+        /**
+         * Oublie les octets d'un corps de requete traite, et rend la memoire d'un gros corps une fois tout traite.
+         * @param length Le nombre d'octets a oublier.
+         */
+        private void consume(int length) {
+            received.position(received.position() + length);
+            if (!received.hasRemaining() && received.capacity() > RECEIVE_BUFFER_SIZE) {
+                received = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE).flip();
+            }
+        }
+    }
+
+    /**
+     * Thread multiplexant un ensemble de connexions non bloquantes avec un selecteur.
+     */
+    private class EventLoop extends Thread {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        /**
+         * Les actions a executer par cette boucle, deposees par les threads de traitement (reponses a envoyer).
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+        /**
+         * Cree une boucle d'evenements.
+         * @param id Le numero de la boucle (utilise pour nommer son thread).
+         * @throws IOException Si le selecteur n'a pas pu etre ouvert.
+         */
+        EventLoop(int id) throws IOException {
+            super("webserver-loop-" + id);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Confie une connexion nouvellement acceptee a cette boucle. Peut etre appelee depuis n'importe quel thread.
+         * @param channel La connexion a gerer.
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Boucle principale : enregistre les nouvelles connexions, envoie les reponses rendues par les threads de
+         * traitement, traite les evenements de lecture et d'ecriture et ferme regulierement les connexions ayant
+         * depasse leur delai.
+         */
+        @Override
+        public void run() {
+            long lastCheck = System.nanoTime();
+            for (;;) {
+                try {
+                    selector.select(WebServer.DEADLINE_CHECK_PERIOD);
+                    registerPending();
+                    for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (key.isReadable()) {
+                                read(key);
+                            } else if (key.isWritable()) {
+                                write(key);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            close(key);
+                        }
+                        ((Connection) key.attachment()).updatePhase();
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - lastCheck >= WebServer.DEADLINE_CHECK_PERIOD * 1_000_000) {
+                        lastCheck = now;
+                        closeExpiredConnections(now);
+                    }
+                } catch (IOException e) {
+                    WebServer.LOG.error("Erreur dans la boucle d'evenements : ", e);
+                }
+            }
+        }
+
+        /**
+         * Enregistre aupres du selecteur les connexions confiees a cette boucle depuis le dernier tour.
+         */
+        private void registerPending() {
+            for (SocketChannel channel = pending.poll(); channel != null; channel = pending.poll()) {
+                try {
+                    channel.configureBlocking(false);
+                    SocketAddress remote = channel.socket().getRemoteSocketAddress();
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(remote));
+                    server.metrics().connectionOpened();
+                    WebServer.LOG.debug("Connection from " + remote);
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Ferme les connexions ayant depasse le delai de leur etape en cours, et les compte dans les statistiques.
+         * @param now L'instant courant (selon {@link System#nanoTime()}).
+         */
+        private void closeExpiredConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && key.channel().isOpen() && connection.isExpired(now)) {
+                    server.metrics().connectionTimedOut(connection.phase);
+                    close(key);
+                }
+            }
+        }
+
+        /**
+         * Lit les octets disponibles sur une connexion, et traite les requetes entierement reçues.
+         * @param key La cle de la connexion.
+         * @throws IOException En cas d'erreur de lecture.
+         */
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read > 0) {
+                connection.bytesReceived += read;
+                server.metrics().addBytesReceived(read);
+                readBuffer.flip();
+                connection.append(readBuffer);
+            }
+
+            boolean endOfStream = read < 0;
+            handleReceivedRequests(key, connection, endOfStream);
+            if (connection.continueState == 1) {
+                channel.write(ByteBuffer.wrap(WebServer.CONTINUE_RESPONSE));
+                connection.continueState = 2;
+            }
+            if (!connection.toSend.isEmpty()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                write(key);
+            } else if (connection.processing) {
+                // The response will be sent once processed: don't read the next requests meanwhile
+                key.interestOps(0);
+            } else if (endOfStream) {
+                close(key);
+            }
+        }
+
+        /**
+         * Analyse les requetes reçues sur une connexion, et confie la premiere entierement reçue aux threads de
+         * traitement (les suivantes le seront une fois sa reponse rendue). Les requetes rejetees sans traitement ont
+         * directement leur reponse mise en attente d'envoi. L'analyse s'arrete a la premiere requete apres laquelle la
+         * connexion doit etre fermee.
+         * @param key La cle de la connexion.
+         * @param connection La connexion dont traiter les requetes.
+         * @param endOfStream Le client a-t-il ferme sa moitie de la connexion ?
+         */
+        private void handleReceivedRequests(SelectionKey key, Connection connection, boolean endOfStream) {
+            Request request = connection.request;
+            while (!connection.processing && !connection.closeAfterSend
+                    && (connection.received.hasRemaining() || connection.headerReceived)) {
+                Response response;
+                boolean keepAlive;
+                try {
+                    // The parser keeps the beginning of an incomplete header until the rest arrives
+                    if (!connection.headerReceived && !connection.parser.parse(connection.received, request)) {
+                        return;
+                    }
+                    connection.headerReceived = true;
+
+                    ByteBuffer received = connection.received;
+                    ByteArrayInputStream in = new ByteArrayInputStream(
+                            received.array(), received.arrayOffset() + received.position(), received.remaining());
+                    request.openBody(in);
+
+                    // The body is kept in memory: refuse one that is too big, wait for the rest of an incomplete one
+                    long bodyLength = request.getBodyLength() >= 0
+                            ? request.getBodyLength() : RequestBody.chunkedLength(received);
+                    if (bodyLength > config.getMaxBodySize()
+                            || (bodyLength < 0 && received.remaining() > config.getMaxBodySize())) {
+                        connection.headerReceived = false;
+                        connection.served++;
+                        response = server.payloadTooLarge();
+                        response.setKeepAlive(false);
+                        connection.toSend.add(response);
+                        connection.closeAfterSend = true;
+                        return;
+                    }
+                    if (bodyLength < 0 || bodyLength > received.remaining()) {
+                        // Ask for the body if the client waits for it, once the previous responses are sent
+                        if (request.expectsContinue() && connection.continueState == 0
+                                && connection.toSend.isEmpty()) {
+                            connection.continueState = 1;
+                        }
+                        return;
+                    }
+                    request.bufferBody();
+                    connection.consume(received.remaining() - in.available());
+                    connection.headerReceived = false;
+                    connection.continueState = 0;
+
+                    connection.served++;
+                    keepAlive = !endOfStream && request.isKeepAlive()
+                            && connection.served < config.getMaxKeepAliveRequests();
+                    if (process(key, connection, keepAlive)) {
+                        return;
+                    }
+                    keepAlive = false;
+                    response = server.serviceUnavailable();
+                } catch (IOException e) {
+                    keepAlive = false;
+                    response = server.badRequest();
+                }
+
+                response.setKeepAlive(keepAlive);
+                connection.toSend.add(response);
+                connection.closeAfterSend = !keepAlive;
+            }
+        }
+
+        /**
+         * Confie la requete entierement reçue d'une connexion aux threads de traitement. Sa reponse est rendue a cette
+         * boucle, qui la met en attente d'envoi (voir {@link #complete(SelectionKey, Response, boolean)}).
+         * @param key La cle de la connexion.
+         * @param connection La connexion dont la requete est entierement reçue.
+         * @param keepAlive La connexion peut-elle rester ouverte apres la reponse ?
+         * @return false si la file des threads de traitement est pleine (la requete n'est alors pas traitee).
+         */
+        private boolean process(SelectionKey key, Connection connection, boolean keepAlive) {
+            Request request = connection.request;
+            long submittedAt = System.nanoTime();
+            connection.processing = true;
+            try {
+                workers.execute(() -> {
+                    request.setQueueNanos(System.nanoTime() - submittedAt);
+                    Response response;
+                    try {
+                        response = server.handleRequest(request);
+                    } catch (RuntimeException e) {
+                        WebServer.LOG.error("Erreur lors du traitement d'une requete : ", e);
+                        response = null;
+                    }
+                    Response processed = response;
+                    tasks.add(() -> complete(key, processed, keepAlive));
+                    selector.wakeup();
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                connection.processing = false;
+                return false;
+            }
+        }
+
+        /**
+         * Met en attente d'envoi la reponse rendue par un thread de traitement, puis analyse les requetes reçues
+         * ensuite sur la connexion. Appelee par cette boucle.
+         * @param key La cle de la connexion.
+         * @param response La reponse construite, ou null si le traitement a echoue (la connexion est alors fermee).
+         * @param keepAlive La connexion peut-elle rester ouverte apres la reponse ?
+         */
+        private void complete(SelectionKey key, Response response, boolean keepAlive) {
+            Connection connection = (Connection) key.attachment();
+            connection.processing = false;
+            if (!key.isValid() || response == null) {
+                // The connection was closed meanwhile, or can't be answered
+                if (response != null) {
+                    try {
+                        response.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                close(key);
+                return;
+            }
+
+            keepAlive = keepAlive && !response.mustCloseConnection();
+            response.setKeepAlive(keepAlive);
+            connection.toSend.add(response);
+            connection.closeAfterSend = !keepAlive;
+            try {
+                handleReceivedRequests(key, connection, false);
+                key.interestOps(SelectionKey.OP_WRITE);
+                write(key);
+            } catch (IOException | RuntimeException e) {
+                close(key);
+            }
+            connection.updatePhase();
+        }
+
+        /**
+         * Envoie la partie des reponses en attente que le socket accepte. Une fois tout envoye, la connexion est fermee
+         * si la derniere reponse l'exige, et se remet sinon en attente de requetes.
+         * @param key La cle de la connexion.
+         * @throws IOException En cas d'erreur d'ecriture.
+         */
+        private void write(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+
+            while (!connection.toSend.isEmpty()) {
+                Response response = connection.toSend.peek();
+                long sentBefore = response.getBytesSent();
+                boolean sent = response.writeTo(channel);
+                connection.bytesSent += response.getBytesSent() - sentBefore;
+                if (!sent) {
+                    return;
+                }
+                server.metrics().addBytesSent(response.getBytesSent());
+                server.logAccess(connection.remote, response);
+                connection.toSend.poll();
+            }
+
+            if (connection.processing) {
+                key.interestOps(0);
+            } else if (connection.closeAfterSend) {
+                close(key);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Ferme une connexion et l'enleve du selecteur, en liberant les fichiers des reponses qui n'ont pas pu etre
+         * envoyees.
+         * @param key La cle de la connexion.
+         */
+        private void close(SelectionKey key) {
+            if (!key.channel().isOpen()) {
+                // Already closed (a cancelled key stays in the selector until its next selection)
+                return;
+            }
+            key.cancel();
+            server.metrics().connectionClosed();
+            Connection connection = (Connection) key.attachment();
+            if (connection != null) {
+                for (Response response : connection.toSend) {
+                    server.metrics().addBytesSent(response.getBytesSent());
+                    server.logAccess(connection.remote, response);
+                    try {
+                        response.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                connection.toSend.clear();
+            }
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Objet simple representant une requete HTTP reçue : sa ligne de requete (methode, ressource, version), ses en-tetes
+ * et son corps.
+ *
+ * L'en-tete est rempli par {@link RequestParser}, qui reutilise le meme objet pour toutes les requetes d'une connexion
+ * : une requete ne doit donc pas etre gardee apres la construction de sa reponse. Le corps n'est pas lu avec
+ * l'en-tete : il reste sur le stream de la connexion, et se lit au fur et a mesure avec {@link #getBodyStream()}.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public class Request {
+
+    private static final RequestBody NO_BODY = new RequestBody(InputStream.nullInputStream(), 0);
+
+    private HttpMethod method;
+    private String resource;
+    private String version;
+    /**
+     * Les en-tetes de la requete, indexes par leur nom en minuscules.
+     */
+    private final Map<String, String> headers;
+    private RequestBody body = NO_BODY;
+    /**
+     * Le temps (en nanosecondes) passe par la connexion de la requete dans la file des threads de traitement avant
+     * d'etre prise en charge.
+     */
+    private long queueNanos = 0;
+
+    /**
+     * Construit une requete a partir de ses differentes parties.
+     * @param method La methode HTTP.
+     * @param resource Le chemin de la ressource demandee.
+     * @param version La version HTTP de la requete.
+     * @param headers Les en-tetes, indexes par leur nom en minuscules.
+     * @param body Le corps de la requete.
+     */
+    public Request(HttpMethod method, String resource, String version, Map<String, String> headers, byte[] body) {
+        this.method = method;
+        this.resource = resource;
+        this.version = version;
+        this.headers = headers;
+        this.body = new RequestBody(new ByteArrayInputStream(body), body.length);
+    }
+
+    /**
+     * Construit une requete vide, a remplir par {@link RequestParser}.
+     */
+    Request() {
+        this.headers = new HashMap<>();
+    }
+
+    /**
+     * Vide la requete avant qu'elle soit remplie avec l'en-tete de la requete suivante de la connexion.
+     */
+    void reset() {
+        method = null;
+        resource = null;
+        version = null;
+        headers.clear();
+        body = NO_BODY;
+        queueNanos = 0;
+    }
+
+    void setRequestLine(HttpMethod method, String resource, String version) {
+        this.method = method;
+        this.resource = resource;
+        this.version = version;
+    }
+
+    /**
+     * Ajoute un en-tete a la requete.
+     * @param name Le nom de l'en-tete, en minuscules.
+     * @param value La valeur de l'en-tete.
+     */
+    void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    int getHeaderCount() {
+        return headers.size();
+    }
+
+    /**
+     * Prepare la lecture du corps de la requete, une fois son en-tete lu. La fin du corps est donnee par l'en-tete
+     * Transfer-Encoding (corps envoye par morceaux) ou Content-Length. En leur absence, une requete sur une connexion
+     * persistante n'a pas de corps, et une requete sur une connexion non persistante a pour corps les octets deja
+     * disponibles sur le stream (comportement historique des clients HTTP/1.0 de ce serveur). <br/>
+     * Les requetes suivantes d'une connexion persistante ne sont lisibles qu'une fois le corps lu jusqu'au bout.
+     * @param in Le stream de la connexion, positionne au debut du corps.
+     * @throws BadRequestException Si la taille ou l'encodage du corps est invalide.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    void openBody(InputStream in) throws IOException {
+        String transferEncoding = headers.get("transfer-encoding");
+        if (transferEncoding != null) {
+            if (!transferEncoding.toLowerCase().endsWith("chunked")) {
+                throw new BadRequestException("Transfer-Encoding non supporte : '" + transferEncoding + "'");
+            }
+            body = new RequestBody(in);
+            return;
+        }
+
+        String contentLength = headers.get("content-length");
+        if (contentLength == null) {
+            body = new RequestBody(in, isKeepAlive() ? 0 : in.available());
+            return;
+        }
+
+        long length;
+        try {
+            length = Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Content-Length invalide : '" + contentLength + "'");
+        }
+        if (length < 0) {
+            throw new BadRequestException("Content-Length invalide : '" + contentLength + "'");
+        }
+        body = new RequestBody(in, length);
+    }
+
+    /**
+     * Prepare la lecture du corps d'une requete HTTP/2, qui se termine avec les donnees de son flux (l'en-tete
+     * Content-Length, s'il est present, n'est qu'indicatif).
+     * @param in Le stream des donnees du flux.
+     */
+    void openStreamBody(InputStream in) {
+        body = new RequestBody(in, -1);
+    }
+
+    /**
+     * @return La taille du corps de la requete, ou -1 s'il est envoye par morceaux ou se termine avec le stream.
+     */
+    long getBodyLength() {
+        return body.getLength();
+    }
+
+    /**
+     * Lit entierement le corps de la requete et le garde en memoire, pour un moteur qui ne traite une requete qu'une
+     * fois entierement reçue.
+     * @throws EOFException Si le corps n'est pas encore entierement disponible sur le stream.
+     * @throws IOException En cas d'erreur de lecture, ou si le corps est mal forme.
+     */
+    void bufferBody() throws IOException {
+        if (body.getLength() > body.available()) {
+            throw new EOFException("Corps de requete incomplet");
+        }
+        byte[] content = body.readAllBytes();
+        body = new RequestBody(new ByteArrayInputStream(content), content.length);
+    }
+
+    /**
+     * @param queueNanos Le temps (en nanosecondes) passe par la requete en attente d'un thread de traitement.
+     */
+    void setQueueNanos(long queueNanos) {
+        this.queueNanos = queueNanos;
+    }
+
+    /**
+     * @return Le temps (en nanosecondes) passe par la requete en attente d'un thread de traitement.
+     */
+    long getQueueNanos() {
+        return queueNanos;
+    }
+
+    /**
+     * @return Le temps (en nanosecondes) passe jusqu'ici a attendre les octets du corps de la requete.
+     */
+    long getBodyReadNanos() {
+        return body.getReadNanos();
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Renvoie la valeur d'un en-tete de la requete.
+     * @param name Le nom de l'en-tete (insensible a la casse).
+     * @return La valeur de l'en-tete, ou null s'il est absent.
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Lit le corps de la requete jusqu'au bout et le renvoie. A reserver aux petits corps : les autres se lisent au fur
+     * et a mesure avec {@link #getBodyStream()}.
+     * @return Les octets du corps (ceux qui n'ont pas encore ete lus).
+     * @throws IOException En cas d'erreur de lecture, ou si le corps est incomplet.
+     */
+    public byte[] getBody() throws IOException {
+        return body.readAllBytes();
+    }
+
+    /**
+     * @return Le stream du corps de la requete, qui se termine a la fin du corps.
+     */
+    public InputStream getBodyStream() {
+        return body;
+    }
+
+    /**
+     * Indique l'action a executer avant la premiere lecture du corps si le client attend l'accord du serveur pour
+     * l'envoyer (en-tete "Expect: 100-continue").
+     * @param continueSender L'action envoyant la reponse intermediaire "100 Continue" au client.
+     */
+    void setContinueSender(RequestBody.ContinueSender continueSender) {
+        if (expectsContinue()) {
+            body.setContinueSender(continueSender);
+        }
+    }
+
+    /**
+     * @return true si le client attend l'accord du serveur avant d'envoyer le corps (en-tete "Expect: 100-continue").
+     */
+    boolean expectsContinue() {
+        String expect = getHeader("Expect");
+        return expect != null && expect.equalsIgnoreCase("100-continue") && "HTTP/1.1".equals(version)
+                && !body.isFinished();
+    }
+
+    /**
+     * Indique si le client attend l'accord du serveur pour envoyer le corps de la requete, qu'il n'a donc pas encore
+     * envoye.
+     * @return true si le corps n'a pas ete envoye et n'a pas ete demande au client.
+     */
+    boolean isAwaitingContinue() {
+        return body.isAwaitingContinue();
+    }
+
+    /**
+     * Lit et ignore la fin du corps de la requete, pour que la requete suivante de la connexion puisse etre lue.
+     * @throws IOException En cas d'erreur de lecture, ou si le stream se termine avant la fin du corps.
+     */
+    void discardBody() throws IOException {
+        body.discard();
+    }
+
+    /**
+     * Indique si la connexion doit rester ouverte apres cette requete : c'est le cas par defaut en HTTP/1.1 (sauf
+     * avec "Connection: close"), et seulement avec "Connection: keep-alive" pour les versions anterieures.
+     * @return true si le client demande une connexion persistante.
+     */
+    public boolean isKeepAlive() {
+        return isKeepAlive(version, getHeader("Connection"));
+    }
+
+    /**
+     * Indique si une connexion est persistante d'apres la version HTTP et l'en-tete Connection d'une requete.
+     * @param version La version HTTP de la requete.
+     * @param connection La valeur de l'en-tete Connection, ou null s'il est absent.
+     * @return true si la connexion doit rester ouverte.
+     * @see #isKeepAlive()
+     */
+    private static boolean isKeepAlive(String version, String connection) {
+        if ("HTTP/1.1".equals(version)) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+}
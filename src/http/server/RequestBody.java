@@ -0,0 +1,321 @@
+package http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Corps d'une requete HTTP, lu au fur et a mesure sur le stream de la connexion plutot que charge en memoire. Sa fin
+ * est donnee par l'en-tete Content-Length, ou par le dernier morceau d'un corps envoye par morceaux
+ * (Transfer-Encoding: chunked), dont ce stream retire le decoupage. Les octets lus sont ceux envoyes par le client,
+ * sans aucun decodage en caracteres.
+ *
+ * Si le client attend l'accord du serveur avant d'envoyer le corps (Expect: 100-continue), la reponse intermediaire
+ * "100 Continue" est envoyee lors de la premiere lecture : un corps qui n'est jamais lu n'est donc jamais demande.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class RequestBody extends InputStream {
+
+    /**
+     * La longueur maximale d'une ligne du decoupage en morceaux (taille d'un morceau, ou en-tete de fin).
+     */
+    private static final int MAX_CHUNK_LINE_LENGTH = 8 * 1024;
+
+    /**
+     * Action envoyant la reponse intermediaire "100 Continue" au client.
+     */
+    interface ContinueSender {
+        void sendContinue() throws IOException;
+    }
+
+    private final InputStream in;
+    /**
+     * Le corps est-il envoye par morceaux ?
+     */
+    private final boolean chunked;
+    /**
+     * La taille totale du corps, ou -1 s'il est envoye par morceaux.
+     */
+    private final long length;
+    /**
+     * Le nombre d'octets restant a lire dans le corps, ou dans le morceau courant s'il est envoye par morceaux.
+     */
+    private long remaining;
+    /**
+     * Le morceau courant est-il le premier du corps (et donc non precede d'un retour a la ligne) ?
+     */
+    private boolean firstChunk = true;
+    private boolean finished = false;
+    /**
+     * Le temps passe (en nanosecondes) a attendre les octets du corps.
+     */
+    private long readNanos = 0;
+    /**
+     * L'action envoyant "100 Continue" au client, ou null si le client ne l'attend pas ou l'a deja reçue.
+     */
+    private ContinueSender continueSender;
+
+    /**
+     * Cree le corps d'une requete dont la taille est connue, ou qui se termine avec le stream passe en parametre.
+     * @param in Le stream de la connexion, positionne au debut du corps (ou le stream du seul corps).
+     * @param length La taille du corps, ou -1 s'il se termine avec le stream (flux HTTP/2).
+     */
+    RequestBody(InputStream in, long length) {
+        this.in = in;
+        this.chunked = false;
+        this.length = length;
+        this.remaining = length;
+    }
+
+    /**
+     * Cree le corps d'une requete envoye par morceaux.
+     * @param in Le stream de la connexion, positionne au debut du corps.
+     */
+    RequestBody(InputStream in) {
+        this.in = in;
+        this.chunked = true;
+        this.length = -1;
+        this.remaining = 0;
+    }
+
+    /**
+     * Indique l'action a executer avant la premiere lecture du corps pour que le client l'envoie.
+     * @param continueSender L'action envoyant "100 Continue" au client.
+     */
+    void setContinueSender(ContinueSender continueSender) {
+        this.continueSender = continueSender;
+    }
+
+    /**
+     * @return true si le client attend encore "100 Continue" pour envoyer le corps.
+     */
+    boolean isAwaitingContinue() {
+        return continueSender != null && !finished;
+    }
+
+    /**
+     * @return La taille du corps, ou -1 s'il est envoye par morceaux ou se termine avec le stream.
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @return true si le corps a ete lu jusqu'au bout.
+     */
+    boolean isFinished() {
+        return finished || (!chunked && remaining == 0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    /**
+     * @return Le temps passe (en nanosecondes) a attendre les octets du corps, qui depend du client et du reseau plutot
+     * que du serveur.
+     */
+    long getReadNanos() {
+        return readNanos;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        try {
+            return readTimed(buffer, offset, count);
+        } finally {
+            readNanos += System.nanoTime() - start;
+        }
+    }
+
+    private int readTimed(byte[] buffer, int offset, int count) throws IOException {
+        if (continueSender != null) {
+            ContinueSender sender = continueSender;
+            continueSender = null;
+            sender.sendContinue();
+        }
+
+        if (remaining == 0) {
+            if (!chunked) {
+                finished = true;
+                return -1;
+            }
+            nextChunk();
+            if (finished) {
+                return -1;
+            }
+        }
+
+        if (remaining < 0) {
+            int read = in.read(buffer, offset, count);
+            finished = read < 0;
+            return read;
+        }
+
+        int read = in.read(buffer, offset, (int) Math.min(count, remaining));
+        if (read < 0) {
+            throw new EOFException("Corps de requete incomplet");
+        }
+        remaining -= read;
+        return read;
+    }
+
+    /**
+     * Lit la ligne annonçant la taille du morceau suivant. Le dernier morceau (de taille nulle) est suivi
+     * d'eventuels en-tetes, qui sont ignores.
+     * @throws BadRequestException Si la taille du morceau est invalide.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    private void nextChunk() throws IOException {
+        if (!firstChunk && !readChunkLine().isEmpty()) {
+            throw new BadRequestException("Fin de morceau invalide");
+        }
+        firstChunk = false;
+
+        String sizeLine = readChunkLine();
+        int extension = sizeLine.indexOf(';');
+        String size = (extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim();
+        try {
+            remaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Taille de morceau invalide : '" + sizeLine + "'");
+        }
+        if (remaining < 0) {
+            throw new BadRequestException("Taille de morceau invalide : '" + sizeLine + "'");
+        }
+
+        if (remaining == 0) {
+            // Skip the trailer fields until the empty line ending the body
+            while (!readChunkLine().isEmpty()) ;
+            finished = true;
+        }
+    }
+
+    /**
+     * Cherche la fin d'un corps envoye par morceaux parmi les octets deja reçus, sans les decoder, pour qu'un moteur ne
+     * lise le corps qu'une fois entierement reçu.
+     * @param data Les octets reçus, a partir du debut du corps (le buffer n'est pas modifie).
+     * @return Le nombre d'octets du corps (decoupage compris), -1 s'il n'est pas encore entierement reçu, ou le nombre
+     * d'octets reçus si le decoupage est invalide (leur lecture echouera alors sur une {@link BadRequestException}).
+     */
+    static long chunkedLength(ByteBuffer data) {
+        int start = data.position();
+        int end = data.limit();
+        int position = start;
+        for (boolean first = true; ; first = false) {
+            if (!first) {
+                // Skip the line ending the previous chunk
+                int lineEnd = indexOfLineFeed(data, position, end);
+                if (lineEnd < 0) {
+                    return end - position > MAX_CHUNK_LINE_LENGTH ? end - start : -1;
+                }
+                position = lineEnd + 1;
+            }
+
+            int lineEnd = indexOfLineFeed(data, position, end);
+            if (lineEnd < 0) {
+                return end - position > MAX_CHUNK_LINE_LENGTH ? end - start : -1;
+            }
+            byte[] line = new byte[lineEnd - position];
+            data.get(position, line);
+            String sizeLine = new String(line, StandardCharsets.ISO_8859_1);
+            int extension = sizeLine.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                return end - start;
+            }
+            position = lineEnd + 1;
+
+            if (size == 0) {
+                // The trailer fields end with an empty line
+                for (;;) {
+                    lineEnd = indexOfLineFeed(data, position, end);
+                    if (lineEnd < 0) {
+                        return end - position > MAX_CHUNK_LINE_LENGTH ? end - start : -1;
+                    }
+                    boolean empty = lineEnd == position || (lineEnd == position + 1 && data.get(position) == '\r');
+                    position = lineEnd + 1;
+                    if (empty) {
+                        return position - start;
+                    }
+                }
+            } else if (size < 0) {
+                return end - start;
+            } else if (end - position < size) {
+                return -1;
+            }
+            position += (int) size;
+        }
+    }
+
+    /**
+     * @return La position du premier octet LF du buffer entre from (inclus) et to (exclu), ou -1 s'il n'y en a pas.
+     */
+    private static int indexOfLineFeed(ByteBuffer data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Lit une ligne (terminee par LF ou CRLF) du decoupage en morceaux, en interpretant chaque octet comme un
+     * caractere ISO-8859-1.
+     * @return La ligne lue, sans son retour a la ligne.
+     * @throws BadRequestException Si la ligne est trop longue.
+     * @throws EOFException Si le stream s'est termine avant la fin du corps.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    private String readChunkLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c == -1) {
+                throw new EOFException("Corps de requete incomplet");
+            }
+            if (line.length() >= MAX_CHUNK_LINE_LENGTH) {
+                throw new BadRequestException("Ligne de decoupage trop longue");
+            }
+            line.append((char) c);
+        }
+
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+
+    @Override
+    public int available() throws IOException {
+        return finished ? 0 : remaining < 0 ? in.available() : (int) Math.min(remaining, in.available());
+    }
+
+    /**
+     * Lit et ignore la fin du corps, pour que la requete suivante de la connexion puisse etre lue.
+     * @throws IOException En cas d'erreur de lecture, ou si le stream se termine avant la fin du corps.
+     */
+    void discard() throws IOException {
+        if (isFinished()) {
+            return;
+        }
+        byte[] buffer = new byte[8192];
+        while (read(buffer, 0, buffer.length) >= 0) ;
+    }
+}
@@ -0,0 +1,284 @@
+package http.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Analyseur incremental de l'en-tete des requetes HTTP, travaillant directement sur les octets reçus. Les octets
+ * peuvent arriver en autant de morceaux que necessaire : l'analyseur garde son etat d'un appel a l'autre, et ne copie
+ * que les lignes coupees entre deux morceaux. Une ligne entierement presente dans le buffer est analysee sur place.
+ *
+ * La taille totale de l'en-tete et son nombre de lignes sont bornes, pour qu'un client ne puisse pas faire grossir
+ * indefiniment la memoire utilisee par une connexion.
+ *
+ * Un analyseur sert a toutes les requetes d'une connexion, et remplit a chaque fois le meme objet {@link Request}.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class RequestParser {
+
+    /**
+     * Les noms (en minuscules) des en-tetes les plus courants, reutilises plutot que reconstruits a chaque requete.
+     */
+    private static final String[] KNOWN_HEADERS = {
+            "host", "user-agent", "accept", "accept-encoding", "accept-language", "connection", "content-length",
+            "content-type", "transfer-encoding", "expect", "range", "if-range", "if-none-match", "if-modified-since",
+            "cache-control", "pragma", "referer", "cookie", "origin", "upgrade"
+    };
+    private static final byte[][] ENCODED_KNOWN_HEADERS = new byte[KNOWN_HEADERS.length][];
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.ISO_8859_1);
+
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            ENCODED_KNOWN_HEADERS[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private final int maxHeaderSize;
+    private final int maxHeaderCount;
+
+    /**
+     * Le debut de la ligne en cours, lorsqu'elle est coupee entre deux morceaux reçus.
+     */
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    /**
+     * Le nombre d'octets de l'en-tete en cours deja analyses.
+     */
+    private int headerSize = 0;
+    /**
+     * La ligne de requete de l'en-tete en cours a-t-elle deja ete lue ?
+     */
+    private boolean requestLineRead = false;
+
+    /**
+     * Cree un analyseur de requetes.
+     * @param maxHeaderSize La taille maximale (en octets) de l'en-tete d'une requete.
+     * @param maxHeaderCount Le nombre maximal de lignes d'en-tete d'une requete.
+     */
+    RequestParser(int maxHeaderSize, int maxHeaderCount) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxHeaderCount = maxHeaderCount;
+    }
+
+    /**
+     * Cree un analyseur de requetes avec les limites de la configuration passee en parametre.
+     * @param config La configuration du serveur.
+     */
+    RequestParser(ServerConfig config) {
+        this(config.getMaxHeaderSize(), config.getMaxHeaderCount());
+    }
+
+    /**
+     * @return true si une partie de l'en-tete d'une requete a deja ete reçue (une fin de stream est alors une requete
+     * incomplete, et non la fin normale d'une connexion).
+     */
+    boolean isStarted() {
+        return requestLineRead || lineLength > 0;
+    }
+
+    /**
+     * Analyse les octets disponibles dans le buffer passe en parametre, jusqu'a la fin de l'en-tete de la requete en
+     * cours. Les octets suivant l'en-tete (le corps, ou la requete suivante) ne sont pas consommes.
+     * @param buffer Le buffer contenant les octets reçus, en mode lecture.
+     * @param request La requete a remplir (videe au debut de chaque nouvel en-tete).
+     * @return true si l'en-tete est complet, false s'il faut attendre d'autres octets.
+     * @throws BadRequestException Si l'en-tete est mal forme ou depasse les limites.
+     */
+    boolean parse(ByteBuffer buffer, Request request) throws BadRequestException {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = indexOfLineFeed(buffer, start, Math.min(buffer.limit(), start + maxHeaderSize - headerSize + 1));
+            if (end < 0) {
+                // Keep the beginning of the line until the rest arrives
+                int available = buffer.remaining();
+                headerSize += available;
+                if (headerSize > maxHeaderSize) {
+                    throw new BadRequestException("En-tete de requete trop long");
+                }
+                if (lineLength + available > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + available));
+                }
+                buffer.get(line, lineLength, available);
+                lineLength += available;
+                return false;
+            }
+
+            headerSize += end - start + 1;
+            if (headerSize > maxHeaderSize) {
+                throw new BadRequestException("En-tete de requete trop long");
+            }
+
+            // Analyze the line in place if it is entirely in the buffer, else complete the kept beginning
+            byte[] bytes;
+            int offset;
+            int length;
+            if (lineLength == 0 && buffer.hasArray()) {
+                bytes = buffer.array();
+                offset = buffer.arrayOffset() + start;
+                length = end - start;
+                buffer.position(end + 1);
+            } else {
+                int rest = end - start;
+                if (lineLength + rest > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + rest));
+                }
+                buffer.get(line, lineLength, rest);
+                buffer.get();
+                bytes = line;
+                offset = 0;
+                length = lineLength + rest;
+                lineLength = 0;
+            }
+            if (length > 0 && bytes[offset + length - 1] == '\r') {
+                length--;
+            }
+
+            if (!requestLineRead) {
+                if (length == 0) {
+                    // Skip the empty lines that may precede a request
+                    headerSize = 0;
+                    continue;
+                }
+                request.reset();
+                parseRequestLine(bytes, offset, length, request);
+                requestLineRead = true;
+            } else if (length == 0) {
+                requestLineRead = false;
+                headerSize = 0;
+                return true;
+            } else {
+                parseHeaderLine(bytes, offset, length, request);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cherche le prochain saut de ligne dans le buffer, entre les deux positions passees en parametre.
+     * @return La position du saut de ligne, ou -1 s'il n'y en a pas.
+     */
+    private static int indexOfLineFeed(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Analyse la ligne de requete (methode, ressource et version, separees par un espace).
+     * @throws BadRequestException Si la ligne est mal formee ou si la methode est inconnue.
+     */
+    private static void parseRequestLine(byte[] bytes, int offset, int length, Request request)
+            throws BadRequestException {
+        int end = offset + length;
+        int firstSpace = indexOf(bytes, ' ', offset, end);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf(bytes, ' ', firstSpace + 1, end);
+        if (secondSpace < 0 || indexOf(bytes, ' ', secondSpace + 1, end) >= 0
+                || firstSpace == offset || secondSpace == firstSpace + 1 || secondSpace == end - 1) {
+            throw new BadRequestException("Ligne de requete invalide : '" + ascii(bytes, offset, length) + "'");
+        }
+
+        HttpMethod method = HttpMethod.parse(bytes, offset, firstSpace - offset);
+        if (method == null) {
+            throw new BadRequestException("Methode inconnue : '" + ascii(bytes, offset, firstSpace - offset) + "'");
+        }
+        String resource = ascii(bytes, firstSpace + 1, secondSpace - firstSpace - 1);
+
+        int versionLength = end - secondSpace - 1;
+        String version;
+        if (Arrays.equals(bytes, secondSpace + 1, end, HTTP_1_1, 0, HTTP_1_1.length)) {
+            version = "HTTP/1.1";
+        } else if (Arrays.equals(bytes, secondSpace + 1, end, HTTP_1_0, 0, HTTP_1_0.length)) {
+            version = "HTTP/1.0";
+        } else {
+            version = ascii(bytes, secondSpace + 1, versionLength);
+        }
+        request.setRequestLine(method, resource, version);
+    }
+
+    /**
+     * Analyse une ligne d'en-tete ("Nom: valeur"), et l'ajoute a la requete avec son nom en minuscules.
+     * @throws BadRequestException Si la ligne est mal formee ou si la requete a trop de lignes d'en-tete.
+     */
+    private void parseHeaderLine(byte[] bytes, int offset, int length, Request request) throws BadRequestException {
+        int end = offset + length;
+        int colon = indexOf(bytes, ':', offset, end);
+        if (colon <= offset) {
+            throw new BadRequestException("Ligne d'en-tete invalide : '" + ascii(bytes, offset, length) + "'");
+        }
+        if (request.getHeaderCount() >= maxHeaderCount) {
+            throw new BadRequestException("Trop de lignes d'en-tete");
+        }
+
+        int nameEnd = colon;
+        while (nameEnd > offset && isWhitespace(bytes[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(bytes[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(bytes[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        request.setHeader(headerName(bytes, offset, nameEnd - offset), ascii(bytes, valueStart, valueEnd - valueStart));
+    }
+
+    /**
+     * Construit le nom en minuscules d'un en-tete, en reutilisant celui des en-tetes courants.
+     */
+    private static String headerName(byte[] bytes, int offset, int length) {
+        for (int i = 0; i < ENCODED_KNOWN_HEADERS.length; i++) {
+            byte[] known = ENCODED_KNOWN_HEADERS[i];
+            if (known.length == length && equalsIgnoreCase(known, bytes, offset)) {
+                return KNOWN_HEADERS[i];
+            }
+        }
+        byte[] lowerCase = new byte[length];
+        for (int i = 0; i < length; i++) {
+            lowerCase[i] = toLowerCase(bytes[offset + i]);
+        }
+        return new String(lowerCase, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Compare un nom en minuscules aux octets passes en parametre, sans tenir compte de leur casse.
+     */
+    private static boolean equalsIgnoreCase(byte[] lowerCase, byte[] bytes, int offset) {
+        for (int i = 0; i < lowerCase.length; i++) {
+            if (lowerCase[i] != toLowerCase(bytes[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int indexOf(byte[] bytes, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String ascii(byte[] bytes, int offset, int length) {
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+}
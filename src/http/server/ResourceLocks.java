@@ -0,0 +1,48 @@
+package http.server;
+
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Verrous en lecture/ecriture des fichiers servis, repartis en un nombre fixe de bandes : chaque chemin correspond
+ * toujours au meme verrou, partage avec les autres chemins de sa bande. Les modifications d'un meme fichier sont ainsi
+ * serialisees (et isolees des lectures), sans qu'un verrou global serialise les modifications de fichiers differents
+ * ni qu'un verrou soit cree puis oublie pour chaque chemin rencontre.
+ *
+ * Un thread ne doit jamais tenir plusieurs de ces verrous a la fois : deux chemins differents pouvant partager une
+ * bande, cela pourrait provoquer un interblocage.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class ResourceLocks {
+
+    private final ReadWriteLock[] stripes;
+    private final int mask;
+
+    /**
+     * Cree les verrous.
+     * @param stripes Le nombre minimal de bandes (arrondi a la puissance de deux superieure).
+     */
+    ResourceLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1) << 1);
+        this.stripes = new ReadWriteLock[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * @param path Le chemin d'un fichier.
+     * @return Le verrou de ce fichier. Les differentes ecritures d'un meme chemin (par exemple "a/./b" et "a/b")
+     * partagent le meme verrou.
+     */
+    ReadWriteLock get(Path path) {
+        int hash = path.normalize().hashCode();
+        // Spread the high bits, the mask only keeping the low ones
+        hash ^= hash >>> 16;
+        return stripes[hash & mask];
+    }
+}
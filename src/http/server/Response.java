@@ -1,25 +1,182 @@
 package http.server;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
- * Objet simple representant une reponse HTTP pouvant ensuite etre envoyee sur un OutputStream.
+ * Objet simple representant une reponse HTTP pouvant ensuite etre envoyee sur un OutputStream ou sur un canal.
+ *
+ * Le contenu d'une reponse est soit un tableau d'octets, soit une ou plusieurs plages d'un fichier ouvert. Dans ce
+ * second cas, le fichier est envoye directement du canal du fichier vers celui du socket
+ * ({@link FileChannel#transferTo}), sans jamais etre charge en memoire. Une reponse dont le contenu est un fichier doit
+ * donc etre envoyee ou fermee pour liberer ce fichier.
+ *
+ * Le corps d'une reponse peut aussi etre produit au fur et a mesure de son envoi par un {@link BodySupplier} : il est
+ * alors envoye par morceaux (Transfer-Encoding: chunked), sans que sa taille soit connue a l'avance ni qu'il soit
+ * entierement en memoire.
  *
  * @author Guillaume Berthomet
  * @author Lola Cremer
  */
-public class Response {
+public class Response implements Closeable {
+
+    /**
+     * Le dernier morceau d'un corps envoye par morceaux (de taille nulle, sans en-tetes de fin).
+     */
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+    /**
+     * Les lignes d'en-tete ajoutees a l'envoi de chaque reponse, encodees une fois pour toutes (le nombre d'octets de
+     * la ligne Content-Length est ajoute pour chaque reponse).
+     */
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes();
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes();
+    private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n\r\n".getBytes();
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n\r\n".getBytes();
+    private static final byte[] NO_BYTES = {};
+    /**
+     * La taille maximale d'un transfert d'une partie de fichier vers le canal : un gros fichier est envoye en
+     * plusieurs transferts, pour que la progression de l'envoi reste visible pendant celui-ci.
+     */
+    private static final long MAX_TRANSFER_SIZE = 1024 * 1024;
+
+    /**
+     * Source du corps d'une reponse produit au fur et a mesure de son envoi. Chaque appel a {@link #next()} n'est fait
+     * que lorsque la partie precedente a ete envoyee, ce qui borne la memoire utilisee.
+     */
+    @FunctionalInterface
+    public interface BodySupplier extends Closeable {
+        /**
+         * Produit la partie suivante du corps.
+         * @return Les octets de la partie suivante (eventuellement vide), ou null si le corps est termine.
+         * @throws IOException En cas d'erreur lors de la production du corps.
+         */
+        byte[] next() throws IOException;
+
+        /**
+         * Libere les ressources utilisees pour produire le corps. Appelee une fois le corps termine, ou si la
+         * reponse n'est pas envoyee jusqu'au bout.
+         * @throws IOException Si les ressources n'ont pas pu etre liberees.
+         */
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * Partie du corps d'une reponse dont le contenu est un fichier : soit des octets (les separateurs d'une reponse en
+     * plusieurs parties), soit une plage du fichier de la reponse.
+     */
+    private static class Segment {
+        /**
+         * Les octets de cette partie, ou null si c'est une plage du fichier.
+         */
+        private final ByteBuffer bytes;
+        /**
+         * La position dans le fichier du prochain octet a envoyer.
+         */
+        private long position;
+        /**
+         * La position dans le fichier suivant le dernier octet de la plage.
+         */
+        private final long end;
+
+        private Segment(byte[] bytes) {
+            this.bytes = ByteBuffer.wrap(bytes);
+            this.end = 0;
+        }
+
+        private Segment(ByteRange range) {
+            this.bytes = null;
+            this.position = range.getFirst();
+            this.end = range.getLast() + 1;
+        }
+
+        private long length() {
+            return bytes != null ? bytes.remaining() : end - position;
+        }
+    }
 
     /**
-     * Contenu textuel representant le header de la reponse.
+     * Les octets de l'en-tete de la reponse, de la ligne de statut a la derniere ligne d'en-tete (chacune terminee par
+     * CRLF), sans les en-tetes Content-Length et Connection ajoutes a l'envoi. Ils peuvent etre partages entre
+     * plusieurs reponses, et ne sont donc jamais modifies.
      */
-    private final String header;
+    private final byte[] header;
     /**
      * Tableau de byte representant le contenu de la reponse (et non un string car certaines reponses ne renvoient pas
      * du texte).
      */
     private byte[] content;
+    /**
+     * Le fichier dont des plages constituent le corps de la reponse, ou null si le corps est {@link #content}.
+     */
+    private FileChannel file;
+    /**
+     * Les parties du corps de la reponse lorsqu'il est issu de {@link #file}, dans l'ordre d'envoi.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+    /**
+     * Taille du contenu annoncee dans l'en-tete Content-Length. Elle est egale a la taille du contenu, sauf pour une
+     * reponse a une requete HEAD qui annonce la taille du contenu sans l'envoyer.
+     */
+    private long contentLength;
+    /**
+     * La source du corps lorsqu'il est produit au fur et a mesure de l'envoi, ou null si elle est terminee.
+     */
+    private BodySupplier supplier;
+    /**
+     * Le corps est-il produit au fur et a mesure de l'envoi (et donc de taille inconnue) ?
+     */
+    private boolean streamed = false;
+    /**
+     * Le corps produit au fur et a mesure est-il envoye par morceaux ? Sinon, sa fin est signalee au client par la
+     * fermeture de la connexion.
+     */
+    private boolean chunked = false;
+    /**
+     * Le morceau du corps en cours d'envoi, ou null s'il n'y en a pas.
+     */
+    private ByteBuffer chunk;
+    /**
+     * La connexion doit-elle rester ouverte apres l'envoi de cette reponse ?
+     */
+    private boolean keepAlive;
+    /**
+     * La connexion doit-elle etre fermee apres l'envoi de cette reponse, quelle que soit la requete ?
+     */
+    private boolean closeRequired = false;
+
+    /**
+     * Les octets de l'en-tete et du contenu restant a envoyer par {@link #writeTo(WritableByteChannel)}, ou null si
+     * l'envoi n'a pas commence.
+     */
+    private ByteBuffer[] pending;
+    /**
+     * Le nombre d'octets (en-tete compris) deja envoyes par {@link #writeTo(WritableByteChannel)}, lu par le thread
+     * surveillant les delais des connexions (un seul thread envoie la reponse).
+     */
+    private volatile long bytesSent = 0;
+    /**
+     * La methode et la ressource de la requete a laquelle repond cette reponse, pour le journal des acces ("-" si la
+     * requete n'a pas pu etre lue).
+     */
+    private String requestMethod = "-";
+    private String requestResource = "-";
+    /**
+     * L'instant (selon {@link System#nanoTime()}) auquel la requete a commence a etre traitee.
+     */
+    private long startTime = System.nanoTime();
 
     /**
      * Constructeur d'une reponse prenant son header et son contenu en parametre
@@ -27,16 +184,285 @@ public class Response {
      * @param content Contenu de la reponse (tableau d'octet, pouvant representer n'importe quelle donnee)
      */
     public Response(String header, byte[] content) {
+        this((header + "\r\n").getBytes(StandardCharsets.ISO_8859_1), content);
+    }
+
+    /**
+     * Constructeur d'une reponse dont l'en-tete est deja encode.
+     * @param header Les octets de l'en-tete, chaque ligne etant terminee par CRLF (ni copies ni modifies).
+     * @param content Contenu de la reponse (tableau d'octet, pouvant representer n'importe quelle donnee)
+     */
+    public Response(byte[] header, byte[] content) {
         this.header = header;
         this.content = content;
+        this.contentLength = content.length;
+        this.keepAlive = false;
+    }
+
+    /**
+     * Constructeur d'une reponse dont le contenu est celui d'un fichier. La reponse devient responsable de la
+     * fermeture du fichier.
+     * @param header Les octets de l'en-tete (voir {@link #Response(byte[], byte[])}).
+     * @param file Le fichier ouvert en lecture dont le contenu doit etre envoye.
+     * @throws IOException Si la taille du fichier n'a pas pu etre lue.
+     */
+    public Response(byte[] header, FileChannel file) throws IOException {
+        this(header, NO_BYTES);
+        this.file = file;
+        long size = file.size();
+        if (size > 0) {
+            addSegment(new Segment(new ByteRange(0, size - 1)));
+        }
+    }
+
+    /**
+     * Constructeur d'une reponse dont le contenu est une plage d'un fichier. La reponse devient responsable de la
+     * fermeture du fichier.
+     * @param header Les octets de l'en-tete (voir {@link #Response(byte[], byte[])}).
+     * @param file Le fichier ouvert en lecture.
+     * @param range La plage du fichier a envoyer.
+     */
+    public Response(byte[] header, FileChannel file, ByteRange range) {
+        this(header, NO_BYTES);
+        this.file = file;
+        addSegment(new Segment(range));
+    }
+
+    /**
+     * Constructeur d'une reponse "multipart/byteranges" contenant plusieurs plages d'un fichier, chacune precedee de
+     * son propre en-tete. La reponse devient responsable de la fermeture du fichier.
+     * @param header Les octets de l'en-tete (voir {@link #Response(byte[], byte[])}), annonçant le type
+     *               multipart/byteranges avec le separateur passe en parametre.
+     * @param file Le fichier ouvert en lecture.
+     * @param ranges Les plages du fichier a envoyer.
+     * @param contentType Le type MIME du fichier.
+     * @param boundary Le separateur des differentes parties.
+     * @throws IOException Si la taille du fichier n'a pas pu etre lue.
+     */
+    public Response(byte[] header, FileChannel file, List<ByteRange> ranges, String contentType, String boundary)
+            throws IOException {
+        this(header, NO_BYTES);
+        this.file = file;
+        long size = file.size();
+        for (ByteRange range : ranges) {
+            addSegment(new Segment(("\r\n--" + boundary
+                    + "\r\nContent-Type: " + contentType
+                    + "\r\nContent-Range: " + range.toContentRange(size)
+                    + "\r\n\r\n").getBytes()));
+            addSegment(new Segment(range));
+        }
+        addSegment(new Segment(("\r\n--" + boundary + "--\r\n").getBytes()));
+    }
+
+    /**
+     * Constructeur d'une reponse dont le corps est produit au fur et a mesure de son envoi, et envoye par morceaux. La
+     * reponse devient responsable de la fermeture de la source du corps.
+     * @param header Les octets de l'en-tete (voir {@link #Response(byte[], byte[])}).
+     * @param supplier La source du corps.
+     */
+    public Response(byte[] header, BodySupplier supplier) {
+        this(header, NO_BYTES);
+        this.supplier = supplier;
+        this.streamed = true;
+        this.chunked = true;
+    }
+
+    /**
+     * Ajoute une partie a la fin du corps de la reponse.
+     * @param segment La partie a ajouter.
+     */
+    private void addSegment(Segment segment) {
+        segments.add(segment);
+        contentLength += segment.length();
     }
 
     /**
      * Remplace le contenu de cette requete par le contenu passe en parametre.
      * @param content Nouveau contenu pour la requete.
+     * @throws IOException Si le fichier precedemment envoye par cette reponse n'a pas pu etre ferme.
      */
-    public void setContent(byte[] content) {
+    public void setContent(byte[] content) throws IOException {
+        close();
         this.content = content;
+        this.contentLength = content.length;
+        this.streamed = false;
+    }
+
+    /**
+     * Retire le contenu de cette reponse tout en conservant la taille annoncee dans son en-tete, comme l'exige une
+     * reponse a une requete HEAD.
+     * @throws IOException Si le fichier precedemment envoye par cette reponse n'a pas pu etre ferme.
+     */
+    public void dropContent() throws IOException {
+        close();
+        this.content = NO_BYTES;
+    }
+
+    /**
+     * Indique si la connexion doit rester ouverte apres l'envoi de cette reponse, ce qui est annonce au client par
+     * l'en-tete Connection.
+     * @param keepAlive true pour garder la connexion ouverte, false pour la fermer.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Envoie le corps produit au fur et a mesure tel quel, sans le decouper en morceaux, pour un client qui ne
+     * comprend pas ce decoupage (HTTP/1.0). La fin du corps est alors signalee par la fermeture de la connexion.
+     * @see #isDelimitedByClose()
+     */
+    public void disableChunkedEncoding() {
+        this.chunked = false;
+    }
+
+    /**
+     * @return true si la fin du corps de cette reponse n'est signalee au client que par la fermeture de la connexion,
+     * qui ne peut donc pas etre gardee ouverte.
+     */
+    public boolean isDelimitedByClose() {
+        return streamed && !chunked;
+    }
+
+    /**
+     * Impose la fermeture de la connexion apres l'envoi de cette reponse, par exemple pour ne pas lire le corps d'une
+     * requete rejetee.
+     */
+    public void requireClose() {
+        this.closeRequired = true;
+    }
+
+    /**
+     * @return true si la connexion ne peut pas rester ouverte apres l'envoi de cette reponse.
+     * @see #isDelimitedByClose()
+     * @see #requireClose()
+     */
+    public boolean mustCloseConnection() {
+        return closeRequired || isDelimitedByClose();
+    }
+
+    /**
+     * @return Le code de statut de la reponse, lu dans la premiere ligne de son en-tete.
+     */
+    public int getStatus() {
+        int codeStart = 0;
+        while (header[codeStart++] != ' ') ;
+        return (header[codeStart] - '0') * 100 + (header[codeStart + 1] - '0') * 10 + (header[codeStart + 2] - '0');
+    }
+
+    /**
+     * Decode les lignes d'en-tete de la reponse (sans sa ligne de statut), pour un protocole qui les transmet sous
+     * une autre forme (HTTP/2). Les en-tetes propres a une connexion HTTP/1.1 sont omis, de meme que Content-Length
+     * et Transfer-Encoding qui sont ajoutes a l'envoi.
+     * @return Les en-tetes (nom en minuscules et valeur), dans l'ordre de l'en-tete.
+     */
+    List<String[]> getHeaderFields() {
+        List<String[]> fields = new ArrayList<>();
+        String[] lines = new String(header, StandardCharsets.ISO_8859_1).split("\r\n");
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase();
+            switch (name) {
+                case "connection", "keep-alive", "transfer-encoding", "content-length", "upgrade" -> { }
+                default -> fields.add(new String[] {name, lines[i].substring(colon + 1).trim()});
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return La taille du corps annoncee au client, ou -1 si le corps est produit au fur et a mesure de son envoi
+     * (ou si la reponse n'en a jamais, codes 204 et 304).
+     */
+    long getContentLength() {
+        int status = getStatus();
+        return streamed || status == 204 || status == 304 ? -1 : contentLength;
+    }
+
+    /**
+     * @return true si la reponse n'a aucun octet de corps a envoyer (corps vide, ou retire pour une requete HEAD).
+     */
+    boolean isBodyEmpty() {
+        return !streamed && content.length == 0 && segments.isEmpty();
+    }
+
+    /**
+     * Indique la requete a laquelle repond cette reponse, pour le journal des acces.
+     * @param method La methode de la requete.
+     * @param resource La ressource demandee.
+     * @param startTime L'instant (selon {@link System#nanoTime()}) auquel son traitement a commence.
+     */
+    void setRequest(String method, String resource, long startTime) {
+        this.requestMethod = method;
+        this.requestResource = resource;
+        this.startTime = startTime;
+    }
+
+    String getRequestMethod() {
+        return requestMethod;
+    }
+
+    String getRequestResource() {
+        return requestResource;
+    }
+
+    long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return Le nombre d'octets de cette reponse (en-tete compris) deja envoyes sur le canal.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Prepare les buffers a envoyer avant le corps issu d'un fichier ou d'une source : l'en-tete, les en-tetes
+     * Content-Length (ou Transfer-Encoding) et Connection, la ligne vide le terminant, puis le contenu. Seule la ligne
+     * Content-Length est construite pour chaque reponse, le reste etant deja encode. Les reponses 204 et 304, qui n'ont
+     * jamais de contenu, n'annoncent pas de taille.
+     * @return Les buffers a envoyer, dans l'ordre.
+     */
+    private ByteBuffer[] headBuffers() {
+        int status = getStatus();
+        ByteBuffer framing = ByteBuffer.wrap(NO_BYTES);
+        if (status != 204 && status != 304) {
+            if (!streamed) {
+                framing = ByteBuffer.wrap(contentLengthLine());
+            } else if (chunked) {
+                framing = ByteBuffer.wrap(TRANSFER_ENCODING_CHUNKED);
+            }
+        }
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(header),
+                framing,
+                ByteBuffer.wrap(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE),
+                ByteBuffer.wrap(content)
+        };
+    }
+
+    /**
+     * @return Les octets de la ligne d'en-tete Content-Length de la reponse.
+     */
+    private byte[] contentLengthLine() {
+        int digits = 1;
+        for (long rest = contentLength; rest >= 10; rest /= 10) {
+            digits++;
+        }
+        int end = CONTENT_LENGTH.length + digits;
+        byte[] line = Arrays.copyOf(CONTENT_LENGTH, end + 2);
+        long rest = contentLength;
+        for (int i = end - 1; i >= CONTENT_LENGTH.length; i--) {
+            line[i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        line[end] = '\r';
+        line[end + 1] = '\n';
+        return line;
     }
 
     /**
@@ -46,12 +472,176 @@ public class Response {
      * @throws IOException S'il y a eu un probleme lors de l'ecriture.
      */
     public void printOnStream(OutputStream out) throws IOException {
-        out.write(header.getBytes());
-        out.write('\n');
-        if (content.length != 0) {
-            out.write('\n');
-            out.write(content);
+        BufferedOutputStream buffered = new BufferedOutputStream(out);
+        WritableByteChannel channel = Channels.newChannel(buffered);
+        while (!writeTo(channel)) ;
+        buffered.flush();
+    }
+
+    /**
+     * Ecrit sur le canal passe en parametre la partie de la reponse qu'il accepte, en reprenant la ou l'appel
+     * precedent s'etait arrete. Sur un canal bloquant, il suffit d'appeler cette methode jusqu'a ce qu'elle renvoie
+     * true ; sur un canal non bloquant, il faut la rappeler lorsque le canal est de nouveau pret en ecriture.
+     * @param channel Le canal sur lequel ecrire cette reponse.
+     * @return true si la reponse a ete entierement envoyee.
+     * @throws IOException S'il y a eu un probleme lors de l'ecriture.
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (pending == null) {
+            pending = headBuffers();
+        }
+        return writeRest(channel);
+    }
+
+    /**
+     * Ecrit sur le canal passe en parametre la partie du corps de la reponse qu'il accepte, sans en-tete ni decoupage
+     * en morceaux, pour un protocole qui transmet l'en-tete et delimite le corps lui-meme (HTTP/2). S'utilise comme
+     * {@link #writeTo(WritableByteChannel)}, a la place de celle-ci.
+     * @param channel Le canal sur lequel ecrire le corps.
+     * @return true si le corps a ete entierement envoye.
+     * @throws IOException S'il y a eu un probleme lors de l'ecriture.
+     */
+    boolean writeBodyTo(WritableByteChannel channel) throws IOException {
+        if (pending == null) {
+            chunked = false;
+            pending = new ByteBuffer[] {ByteBuffer.wrap(content)};
+        }
+        return writeRest(channel);
+    }
+
+    /**
+     * Reprend l'envoi de la reponse la ou l'appel precedent s'etait arrete, une fois les buffers de debut prepares.
+     */
+    private boolean writeRest(WritableByteChannel channel) throws IOException {
+        if (!write(channel, pending)) {
+            return false;
+        }
+        if (file != null) {
+            return writeSegments(channel);
+        }
+        return !streamed || writeChunks(channel);
+    }
+
+    /**
+     * Ecrit sur le canal passe en parametre ce qu'il accepte des buffers passes en parametre, en un seul appel
+     * systeme si le canal le permet (ecriture groupee).
+     * @param channel Le canal sur lequel ecrire.
+     * @param buffers Les buffers a envoyer, dans l'ordre.
+     * @return true si les buffers ont ete entierement envoyes.
+     * @throws IOException En cas d'erreur d'ecriture.
+     */
+    private boolean write(WritableByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            bytesSent += ((GatheringByteChannel) channel).write(buffers);
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                bytesSent += channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+        }
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ecrit sur le canal passe en parametre les parties du corps issu du fichier qu'il accepte, en transferant
+     * directement les plages du fichier. Le fichier est ferme une fois toutes les parties envoyees.
+     * @param channel Le canal sur lequel ecrire.
+     * @return true si toutes les parties ont ete envoyees.
+     * @throws IOException En cas d'erreur d'ecriture, ou si le fichier a raccourci depuis la construction de la
+     * reponse.
+     */
+    private boolean writeSegments(WritableByteChannel channel) throws IOException {
+        for (Segment segment : segments) {
+            if (segment.bytes != null) {
+                bytesSent += channel.write(segment.bytes);
+            } else {
+                while (segment.position < segment.end) {
+                    long sent = file.transferTo(
+                            segment.position, Math.min(segment.end - segment.position, MAX_TRANSFER_SIZE), channel);
+                    if (sent == 0) {
+                        if (segment.position >= file.size()) {
+                            throw new IOException("Le fichier a ete tronque pendant son envoi");
+                        }
+                        break;
+                    }
+                    segment.position += sent;
+                    bytesSent += sent;
+                }
+            }
+            if (segment.length() > 0) {
+                return false;
+            }
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Ecrit sur le canal passe en parametre les morceaux du corps produit au fur et a mesure qu'il accepte. Une partie
+     * n'est demandee a la source du corps qu'une fois la precedente envoyee.
+     * @param channel Le canal sur lequel ecrire.
+     * @return true si tout le corps, dernier morceau compris, a ete envoye.
+     * @throws IOException En cas d'erreur d'ecriture ou de production du corps.
+     */
+    private boolean writeChunks(WritableByteChannel channel) throws IOException {
+        for (;;) {
+            if (chunk != null) {
+                bytesSent += channel.write(chunk);
+                if (chunk.hasRemaining()) {
+                    return false;
+                }
+                chunk = null;
+            }
+            if (supplier == null) {
+                return true;
+            }
+
+            byte[] part = supplier.next();
+            if (part == null) {
+                close();
+                chunk = chunked ? ByteBuffer.wrap(LAST_CHUNK) : null;
+            } else if (part.length > 0) {
+                chunk = chunked ? encodeChunk(part) : ByteBuffer.wrap(part);
+            }
+        }
+    }
+
+    /**
+     * Encode une partie du corps en un morceau : sa taille en hexadecimal, puis ses octets.
+     * @param part La partie a encoder (non vide).
+     * @return Le buffer contenant le morceau.
+     */
+    private static ByteBuffer encodeChunk(byte[] part) {
+        byte[] size = (Integer.toHexString(part.length) + "\r\n").getBytes();
+        ByteBuffer encoded = ByteBuffer.allocate(size.length + part.length + 2);
+        encoded.put(size).put(part).put((byte) '\r').put((byte) '\n').flip();
+        return encoded;
+    }
+
+    /**
+     * Ferme le fichier ou la source du corps de cette reponse, s'il y en a un. Doit etre appelee si la reponse n'est pas envoyee
+     * jusqu'au bout.
+     * @throws IOException Si le fichier n'a pas pu etre ferme.
+     */
+    @Override
+    public void close() throws IOException {
+        if (supplier != null) {
+            BodySupplier toClose = supplier;
+            supplier = null;
+            toClose.close();
+        }
+        if (file != null) {
+            FileChannel toClose = file;
+            file = null;
+            segments.clear();
+            toClose.close();
         }
-        out.flush();
     }
 }
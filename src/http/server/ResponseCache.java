@@ -0,0 +1,237 @@
+package http.server;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache en memoire des reponses aux requetes GET sur les petits fichiers les plus demandes. Pour chaque fichier, le
+ * cache garde l'en-tete deja construit et le contenu du fichier, de sorte qu'une requete sur un fichier en cache ne
+ * touche pas au disque. Un meme fichier peut avoir une entree par encodage (voir {@link Compression}), de sorte que
+ * chaque fichier n'est compresse qu'une fois.
+ *
+ * La taille totale des contenus gardes est bornee : lorsqu'elle est depassee, les fichiers les moins recemment demandes
+ * sont oublies en premier (LRU). Le serveur doit invalider l'entree d'un fichier a chaque fois qu'il le modifie.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class ResponseCache {
+
+    /**
+     * Une reponse en cache : son en-tete, son contenu et les validateurs du fichier (permettant de repondre aux
+     * requetes conditionnelles sans toucher au disque).
+     */
+    static class Entry {
+        private final byte[] header;
+        private final byte[] content;
+        private final String eTag;
+        private final long lastModified;
+        /**
+         * Le fichier peut-il etre envoye compresse ? Si non, cette entree (non compressee) sert a tous les encodages.
+         */
+        private final boolean compressible;
+
+        private Entry(byte[] header, byte[] content, String eTag, long lastModified, boolean compressible) {
+            this.header = header;
+            this.content = content;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.compressible = compressible;
+        }
+
+        /**
+         * @return Une nouvelle reponse construite a partir de cette entree.
+         */
+        Response toResponse() {
+            return new Response(header, content);
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        boolean isCompressible() {
+            return compressible;
+        }
+    }
+
+    /**
+     * Cle d'une entree du cache : le chemin normalise d'un fichier et l'encodage de son contenu.
+     */
+    private static class Key {
+        private final Path path;
+        private final String encoding;
+
+        private Key(Path path, String encoding) {
+            this.path = path.normalize();
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).path.equals(path) && ((Key) o).encoding.equals(encoding);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + encoding.hashCode();
+        }
+    }
+
+    /**
+     * Les entrees du cache, triees de la moins recemment utilisee a la plus recemment utilisee.
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxSize;
+    private final long maxEntrySize;
+    private long size = 0;
+    /**
+     * Compteur incremente a chaque invalidation, permettant d'ignorer l'ajout d'un contenu lu avant une modification
+     * du fichier (voir {@link #put(Path, String, byte[], byte[], String, long, boolean, long)}).
+     */
+    private long generation = 0;
+    /**
+     * Le nombre de consultations du cache ayant trouve (ou non) une entree.
+     */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Cree un cache de reponses.
+     * @param maxSize La taille totale maximale (en octets) des contenus gardes en cache. 0 desactive le cache.
+     * @param maxEntrySize La taille maximale (en octets) d'un fichier pour qu'il soit garde en cache.
+     */
+    ResponseCache(long maxSize, long maxEntrySize) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.min(maxSize, maxEntrySize);
+    }
+
+    /**
+     * Renvoie l'entree en cache du fichier passe en parametre pour l'encodage demande. Pour un fichier qui n'est
+     * jamais compresse, l'entree non compressee est renvoyee quel que soit l'encodage demande.
+     * @param path Le chemin du fichier demande.
+     * @param encoding L'encodage accepte par le client.
+     * @return L'entree du fichier, ou null si le fichier n'est pas en cache pour cet encodage.
+     */
+    synchronized Entry get(Path path, String encoding) {
+        Entry entry = entries.get(new Key(path, encoding));
+        if (entry == null && !Compression.IDENTITY.equals(encoding)) {
+            Entry identity = entries.get(new Key(path, Compression.IDENTITY));
+            if (identity != null && !identity.compressible) {
+                entry = identity;
+            }
+        }
+        (entry == null ? misses : hits).increment();
+        return entry;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Indique si un fichier de la taille passee en parametre peut etre garde en cache.
+     * @param contentSize La taille du fichier.
+     * @return true si le fichier peut etre ajoute au cache.
+     */
+    boolean accepts(long contentSize) {
+        return contentSize <= maxEntrySize;
+    }
+
+    /**
+     * @return La generation courante du cache, a lire avant de lire un fichier a ajouter au cache.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Ajoute au cache la reponse construite pour un fichier, en oubliant les entrees les moins recemment utilisees si
+     * la taille maximale du cache est depassee. L'ajout est ignore si une invalidation a eu lieu depuis la generation
+     * passee en parametre, car le contenu lu pourrait alors etre obsolete.
+     * @param path Le chemin du fichier.
+     * @param encoding L'encodage du contenu.
+     * @param header Les octets de l'en-tete de la reponse.
+     * @param content Le contenu du fichier (encode).
+     * @param eTag L'ETag du fichier.
+     * @param lastModified La date de derniere modification du fichier (en millisecondes depuis l'epoch).
+     * @param compressible Le fichier peut-il etre envoye compresse ?
+     * @param readGeneration La generation du cache lue avant la lecture du fichier.
+     */
+    synchronized void put(Path path, String encoding, byte[] header, byte[] content, String eTag, long lastModified,
+                          boolean compressible, long readGeneration) {
+        if (readGeneration != generation || !accepts(content.length)) {
+            return;
+        }
+
+        Entry previous = entries.put(
+                new Key(path, encoding),
+                new Entry(header, content, eTag, lastModified, compressible)
+        );
+        size += content.length - (previous == null ? 0 : previous.content.length);
+
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            size -= eldest.next().getValue().content.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Retire du cache les entrees du fichier passe en parametre, a appeler apres chaque modification du fichier. La
+     * modification d'un fichier ".gz" invalide aussi le fichier dont il est la version compressee.
+     * @param path Le chemin du fichier modifie.
+     */
+    synchronized void invalidate(Path path) {
+        generation++;
+        for (String encoding : Compression.ENCODINGS) {
+            Entry removed = entries.remove(new Key(path, encoding));
+            if (removed != null) {
+                size -= removed.content.length;
+            }
+        }
+
+        String fileName = String.valueOf(path.getFileName());
+        if (fileName.endsWith(".gz")) {
+            invalidate(path.resolveSibling(fileName.substring(0, fileName.length() - 3)));
+        }
+    }
+
+    /**
+     * Retire du cache les entrees de tous les fichiers d'un repertoire et de ses sous-repertoires, a appeler lorsque
+     * le repertoire est supprime (ses fichiers n'etant pas notifies un par un).
+     * @param dir Le chemin du repertoire supprime.
+     */
+    synchronized void invalidateTree(Path dir) {
+        generation++;
+        Path root = dir.normalize();
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            if (entry.getKey().path.startsWith(root)) {
+                size -= entry.getValue().content.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Vide le cache, a appeler lorsque des fichiers ont pu etre modifies sans que l'on sache lesquels.
+     */
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,383 @@
+package http.server;
+
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Map;
+import utils.AsyncLogger;
+
+/**
+ * Configuration du serveur HTTP, construite a partir des arguments passes en ligne de commande. Chaque argument est de
+ * la forme {@code --option=valeur} ; les options absentes gardent leur valeur par defaut.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public class ServerConfig {
+
+    /**
+     * Les differents moteurs de traitement des connexions disponibles.
+     */
+    public enum Engine {
+        /**
+         * Un socket bloquant par connexion, traite par un thread de travail.
+         */
+        BLOCKING,
+        /**
+         * Des sockets non bloquants multiplexes par quelques boucles d'evenements (voir {@link NioEngine}).
+         */
+        NIO
+    }
+
+    /**
+     * Le port sur lequel le serveur ecoute les connexions.
+     */
+    private int port = 80;
+    /**
+     * Le nombre de threads traitant les connexions (ou, avec le moteur NIO, les requetes). 0 signifie un thread virtuel
+     * par connexion si la JVM le permet, et sinon un nombre de threads deduit du nombre de coeurs de la machine.
+     */
+    private int workers = 0;
+    /**
+     * Le nombre maximal de connexions (ou, avec le moteur NIO, de requetes) en attente d'un thread de traitement libre.
+     */
+    private int queueSize = 1024;
+    /**
+     * Le nombre de sockets d'ecoute ouverts sur le port du serveur (avec SO_REUSEPORT s'il y en a plusieurs), chacun
+     * avec son propre thread d'acceptation et ses propres threads de traitement : le noyau repartit alors les
+     * nouvelles connexions entre eux.
+     */
+    private int acceptors = 1;
+    /**
+     * Le moteur utilise pour traiter les connexions.
+     */
+    private Engine engine = Engine.BLOCKING;
+    /**
+     * Le nombre de boucles d'evenements du moteur NIO. 0 signifie une boucle par coeur de la machine.
+     */
+    private int eventLoops = 0;
+    /**
+     * Le temps (en millisecondes) pendant lequel une connexion persistante inactive est gardee ouverte.
+     */
+    private int keepAliveTimeout = 5000;
+    /**
+     * Le temps maximal (en millisecondes) de reception de l'en-tete d'une requete, depuis son premier octet.
+     * 0 desactive ce delai.
+     */
+    private int headerTimeout = 10000;
+    /**
+     * Le temps (en millisecondes) accorde pour recevoir le corps d'une requete, prolonge selon le debit minimal
+     * {@link #minDataRate}. 0 desactive ce delai.
+     */
+    private int bodyTimeout = 30000;
+    /**
+     * Le temps (en millisecondes) accorde pour envoyer une reponse, prolonge selon le debit minimal
+     * {@link #minDataRate}. 0 desactive ce delai.
+     */
+    private int writeTimeout = 30000;
+    /**
+     * Le debit minimal (en octets par seconde) d'envoi d'un corps de requete ou de lecture d'une reponse : chaque
+     * tranche de ce nombre d'octets transferes prolonge d'une seconde le delai de l'etape. 0 impose une duree totale.
+     */
+    private int minDataRate = 1024;
+    /**
+     * Le nombre maximal de requetes servies sur une meme connexion persistante.
+     */
+    private int maxKeepAliveRequests = 100;
+    /**
+     * La taille totale maximale (en octets) des fichiers gardes dans le cache de reponses. 0 desactive le cache.
+     */
+    private long cacheSize = 16 * 1024 * 1024;
+    /**
+     * La taille maximale (en octets) d'un fichier pour qu'il soit garde dans le cache de reponses.
+     */
+    private long cacheMaxEntrySize = 1024 * 1024;
+    /**
+     * La taille maximale (en octets) de l'en-tete d'une requete, ligne de requete comprise.
+     */
+    private int maxHeaderSize = 16 * 1024;
+    /**
+     * Le nombre maximal de lignes d'en-tete d'une requete.
+     */
+    private int maxHeaderCount = 100;
+    /**
+     * La taille maximale (en octets) du corps d'une requete garde en memoire par le moteur NIO, au-dela de laquelle la
+     * requete est rejetee (reponse 413). C'est un cout en memoire par connexion : chaque connexion envoyant un corps
+     * peut occuper jusqu'a cette taille dans le tas. Le moteur bloquant, qui ecrit les corps dans des fichiers au fur
+     * et a mesure de leur reception, n'est pas concerne.
+     */
+    private long maxBodySize = 64 * 1024;
+    /**
+     * Les types MIME ajoutes a la table des types usuels, par extension (voir {@link MimeTypes}).
+     */
+    private Map<String, String> mimeTypes = Map.of();
+    /**
+     * Le chemin reserve auquel le serveur expose ses statistiques au format de Prometheus. Vide pour ne pas les
+     * exposer (elles restent consultables par JMX).
+     */
+    private String metricsPath = "/_metrics";
+    /**
+     * Le chemin reserve aux sessions de televersement en plusieurs morceaux (voir {@link UploadSessions}). Vide pour
+     * les desactiver.
+     */
+    private String uploadsPath = "/_uploads";
+    /**
+     * Le delai d'inactivite (en millisecondes) apres lequel une session de televersement est abandonnee.
+     */
+    private int uploadTimeout = 3600000;
+    /**
+     * Le niveau minimal des messages du journal.
+     */
+    private AsyncLogger.Level logLevel = AsyncLogger.getDefault().getLevel();
+    /**
+     * Chaque requete servie est-elle ecrite dans le journal des acces ?
+     */
+    private boolean accessLog = true;
+    /**
+     * Le nombre maximal de requetes traitees en meme temps ; les requetes en exces sont rejetees par une reponse 503.
+     * 0 desactive le controle d'admission (voir {@link AdmissionController}).
+     */
+    private int maxInFlight = 1024;
+    /**
+     * La limite du nombre de requetes traitees en meme temps s'adapte-t-elle a la latence observee (sans depasser
+     * {@link #maxInFlight}) ?
+     */
+    private boolean adaptiveLimit = true;
+    /**
+     * Le delai (en secondes) annonce dans l'en-tete Retry-After des reponses 503.
+     */
+    private int retryAfter = 1;
+    /**
+     * Le moteur bloquant accepte-t-il HTTP/2 en clair (h2c), annonce d'emblee par le client ou negocie par l'en-tete
+     * Upgrade ?
+     */
+    private boolean http2 = true;
+    /**
+     * Le nombre maximal de flux HTTP/2 (requetes) traites en meme temps sur une meme connexion.
+     */
+    private int http2MaxStreams = 100;
+
+    /**
+     * Construit une configuration a partir des arguments de la ligne de commande.
+     * @param args Les arguments, chacun de la forme --option=valeur.
+     * @return La configuration construite.
+     * @throws IllegalArgumentException Si une option est inconnue ou si sa valeur est invalide.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Argument mal forme : '" + arg + "'");
+            }
+            String option = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            try {
+                switch (option) {
+                    case "port" -> config.port = Integer.parseInt(value);
+                    case "workers" -> config.workers = Integer.parseInt(value);
+                    case "queue" -> config.queueSize = Integer.parseInt(value);
+                    case "acceptors" -> config.acceptors = Integer.parseInt(value);
+                    case "engine" -> config.engine = parseEngine(value);
+                    case "event-loops" -> config.eventLoops = Integer.parseInt(value);
+                    case "keep-alive-timeout" -> config.keepAliveTimeout = Integer.parseInt(value);
+                    case "header-timeout" -> config.headerTimeout = Integer.parseInt(value);
+                    case "body-timeout" -> config.bodyTimeout = Integer.parseInt(value);
+                    case "write-timeout" -> config.writeTimeout = Integer.parseInt(value);
+                    case "min-data-rate" -> config.minDataRate = Integer.parseInt(value);
+                    case "max-keep-alive-requests" -> config.maxKeepAliveRequests = Integer.parseInt(value);
+                    case "cache-size" -> config.cacheSize = Long.parseLong(value);
+                    case "cache-max-entry" -> config.cacheMaxEntrySize = Long.parseLong(value);
+                    case "max-header-size" -> config.maxHeaderSize = Integer.parseInt(value);
+                    case "max-header-count" -> config.maxHeaderCount = Integer.parseInt(value);
+                    case "max-body-size" -> config.maxBodySize = Long.parseLong(value);
+                    case "mime-types" -> config.mimeTypes = readMimeTypes(value);
+                    case "metrics-path" -> config.metricsPath = value;
+                    case "uploads-path" -> config.uploadsPath = value;
+                    case "upload-timeout" -> config.uploadTimeout = Integer.parseInt(value);
+                    case "log-level" -> config.logLevel = AsyncLogger.parseLevel(value);
+                    case "access-log" -> config.accessLog = parseBoolean(value);
+                    case "max-in-flight" -> config.maxInFlight = Integer.parseInt(value);
+                    case "adaptive-limit" -> config.adaptiveLimit = parseBoolean(value);
+                    case "retry-after" -> config.retryAfter = Integer.parseInt(value);
+                    case "http2" -> config.http2 = parseBoolean(value);
+                    case "http2-max-streams" -> config.http2MaxStreams = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("Option inconnue : '" + option + "'");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Valeur invalide pour l'option '" + option + "' : '" + value + "'");
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Convertit le nom d'un moteur (insensible a la casse) en sa valeur.
+     * @param value Le nom du moteur.
+     * @return Le moteur correspondant.
+     * @throws IllegalArgumentException Si le nom ne correspond a aucun moteur.
+     */
+    private static Engine parseEngine(String value) {
+        try {
+            return Engine.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Moteur inconnu : '" + value + "' (blocking ou nio)");
+        }
+    }
+
+    /**
+     * Convertit une valeur booleenne ("true" ou "false", insensible a la casse).
+     * @param value La valeur.
+     * @return Le booleen correspondant.
+     * @throws IllegalArgumentException Si la valeur n'est ni "true" ni "false".
+     */
+    private static boolean parseBoolean(String value) {
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException("Valeur booleenne invalide : '" + value + "' (true ou false)");
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Lit le fichier de types MIME passe en parametre.
+     * @param file Le chemin du fichier, au format de "mime.types".
+     * @return Les types lus, par extension.
+     * @throws IllegalArgumentException Si le fichier n'a pas pu etre lu.
+     */
+    private static Map<String, String> readMimeTypes(String file) {
+        try {
+            return MimeTypes.readFile(Path.of(file));
+        } catch (IOException | InvalidPathException e) {
+            throw new IllegalArgumentException("Fichier de types MIME illisible : '" + file + "'");
+        }
+    }
+
+    /**
+     * @return Le texte d'aide decrivant les options disponibles.
+     */
+    public static String usage() {
+        return "Usage: java WebServer [--port=80] [--workers=0] [--queue=1024] [--acceptors=1]"
+                + " [--engine=blocking|nio] [--event-loops=0]"
+                + " [--keep-alive-timeout=5000] [--max-keep-alive-requests=100]"
+                + " [--header-timeout=10000] [--body-timeout=30000] [--write-timeout=30000] [--min-data-rate=1024]"
+                + " [--cache-size=16777216] [--cache-max-entry=1048576]"
+                + " [--max-header-size=16384] [--max-header-count=100] [--max-body-size=65536]"
+                + " [--mime-types=<fichier mime.types>] [--metrics-path=/_metrics]"
+                + " [--uploads-path=/_uploads] [--upload-timeout=3600000]"
+                + " [--log-level=debug|info|warn|error] [--access-log=true]"
+                + " [--max-in-flight=1024] [--adaptive-limit=true] [--retry-after=1]"
+                + " [--http2=true] [--http2-max-streams=100]";
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getAcceptors() {
+        return Math.max(1, acceptors);
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public int getEventLoops() {
+        return eventLoops > 0 ? eventLoops : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public int getHeaderTimeout() {
+        return headerTimeout;
+    }
+
+    public int getBodyTimeout() {
+        return bodyTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public int getMinDataRate() {
+        return minDataRate;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public long getCacheMaxEntrySize() {
+        return cacheMaxEntrySize;
+    }
+
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    public int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public Map<String, String> getMimeTypes() {
+        return mimeTypes;
+    }
+
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    public String getUploadsPath() {
+        return uploadsPath;
+    }
+
+    public int getUploadTimeout() {
+        return uploadTimeout;
+    }
+
+    public AsyncLogger.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public boolean isAccessLog() {
+        return accessLog;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public boolean isAdaptiveLimit() {
+        return adaptiveLimit;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    public int getHttp2MaxStreams() {
+        return http2MaxStreams;
+    }
+}
@@ -0,0 +1,385 @@
+package http.server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import utils.LatencyHistogram;
+
+/**
+ * Statistiques du serveur HTTP : nombre de requetes par methode et code de retour, histogrammes des durees de
+ * traitement, octets reçus et envoyes, connexions ouvertes ou fermees faute d'avoir respecte un delai, efficacite des
+ * caches et delestage en cas de surcharge. Elles sont exposees au format
+ * texte de Prometheus (voir {@link #toPrometheus()}) et par JMX (voir {@link ServerMetricsMBean}).
+ *
+ * Tous les compteurs sont des {@link LongAdder} : les threads de traitement les incrementent sans verrou ni
+ * contention, seule leur lecture (rare) fait la somme des cellules.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class ServerMetrics implements ServerMetricsMBean {
+
+    /**
+     * Les bornes (en secondes) des intervalles de l'histogramme des durees expose a Prometheus.
+     */
+    private static final String[] LATENCY_BOUNDS = {
+            "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5",
+            "1", "2.5", "5", "10"
+    };
+    private static final HttpMethod[] METHODS = HttpMethod.values();
+    private static final HttpStatus[] STATUSES = HttpStatus.values();
+    /**
+     * L'indice des requetes rejetees avant que leur methode soit connue (en-tete mal forme).
+     */
+    private static final int UNKNOWN_METHOD = METHODS.length;
+    /**
+     * Les etapes d'une connexion dont le delai est surveille (voir {@link WebServer#IDLE_PHASE}).
+     */
+    private static final List<String> TIMEOUT_PHASES = List.of(
+            WebServer.IDLE_PHASE, WebServer.HEADER_PHASE, WebServer.BODY_PHASE, WebServer.WRITE_PHASE,
+            WebServer.STREAM_PHASE);
+
+    /**
+     * Le nombre de requetes, par methode (plus les requetes de methode inconnue) et par code de retour.
+     */
+    private final LongAdder[][] requests = new LongAdder[METHODS.length + 1][STATUSES.length];
+    /**
+     * Les durees de traitement des requetes, par methode.
+     */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[METHODS.length];
+    /**
+     * Les durees de traitement de toutes les requetes, quelle que soit leur methode.
+     */
+    private final LatencyHistogram allLatencies = new LatencyHistogram();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    /**
+     * Le nombre de connexions refusees faute de place dans la file d'attente des threads de traitement.
+     */
+    private final LongAdder shedConnections = new LongAdder();
+    /**
+     * Le nombre de flux HTTP/2 refuses faute de place dans la file d'attente des threads traitant les flux.
+     */
+    private final LongAdder refusedStreams = new LongAdder();
+    /**
+     * Le nombre de connexions fermees pour avoir depasse le delai d'une etape, par etape.
+     */
+    private final LongAdder[] timeouts = new LongAdder[TIMEOUT_PHASES.size()];
+    private final ResponseCache responseCache;
+    private final FileMetadataCache metadataCache;
+    private final AdmissionController admission;
+
+    /**
+     * Cree des statistiques vides.
+     * @param responseCache Le cache des reponses du serveur.
+     * @param metadataCache Le cache des metadonnees de fichiers du serveur.
+     * @param admission Le controle d'admission des requetes du serveur.
+     */
+    ServerMetrics(ResponseCache responseCache, FileMetadataCache metadataCache, AdmissionController admission) {
+        this.responseCache = responseCache;
+        this.metadataCache = metadataCache;
+        this.admission = admission;
+        for (LongAdder[] byStatus : requests) {
+            for (int i = 0; i < byStatus.length; i++) {
+                byStatus[i] = new LongAdder();
+            }
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Enregistre ces statistiques aupres du serveur JMX de la JVM. Un echec est signale mais n'empeche pas le
+     * serveur de fonctionner.
+     * @param port Le port du serveur, distinguant les serveurs d'une meme JVM.
+     */
+    void register(int port) {
+        try {
+            ObjectName name = new ObjectName("http.server:type=WebServer,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            WebServer.LOG.warn("Enregistrement des statistiques aupres de JMX impossible : " + e);
+        }
+    }
+
+    // #-- Recording
+
+    /**
+     * Enregistre une requete traitee.
+     * @param method La methode de la requete.
+     * @param status Le code de retour de la reponse.
+     * @param nanos La duree de traitement de la requete, en nanosecondes.
+     */
+    void recordRequest(HttpMethod method, int status, long nanos) {
+        countRequest(method.ordinal(), status);
+        latencies[method.ordinal()].record(nanos);
+        allLatencies.record(nanos);
+    }
+
+    /**
+     * Enregistre une requete rejetee avant d'avoir pu etre traitee (en-tete mal forme par exemple).
+     * @param status Le code de retour de la reponse.
+     */
+    void recordRejected(int status) {
+        countRequest(UNKNOWN_METHOD, status);
+    }
+
+    private void countRequest(int methodIndex, int status) {
+        HttpStatus httpStatus = HttpStatus.fromCode(status);
+        if (httpStatus != null) {
+            requests[methodIndex][httpStatus.ordinal()].increment();
+        }
+    }
+
+    void addBytesReceived(long count) {
+        bytesReceived.add(count);
+    }
+
+    void addBytesSent(long count) {
+        bytesSent.add(count);
+    }
+
+    void connectionOpened() {
+        connections.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Enregistre une connexion fermee pour avoir depasse le delai d'une etape.
+     * @param phase L'etape (voir {@link WebServer#IDLE_PHASE}).
+     */
+    void connectionTimedOut(String phase) {
+        int index = TIMEOUT_PHASES.indexOf(phase);
+        if (index >= 0) {
+            timeouts[index].increment();
+        }
+    }
+
+    /**
+     * Enregistre une connexion refusee (par une reponse 503) parce que la file d'attente des threads de traitement
+     * etait pleine.
+     */
+    void connectionShed() {
+        shedConnections.increment();
+        recordRejected(HttpStatus.SERVICE_UNAVAILABLE.getCode());
+    }
+
+    /**
+     * Enregistre un flux HTTP/2 refuse (REFUSED_STREAM) parce que la file d'attente des threads traitant les flux
+     * etait pleine.
+     */
+    void streamRefused() {
+        refusedStreams.increment();
+    }
+
+    // #-- JMX attributes
+
+    @Override
+    public long getRequestCount() {
+        long total = 0;
+        for (LongAdder[] byStatus : requests) {
+            for (LongAdder count : byStatus) {
+                total += count.sum();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getErrorCount() {
+        long total = 0;
+        for (LongAdder[] byStatus : requests) {
+            for (HttpStatus status : STATUSES) {
+                if (status.getCode() >= 400) {
+                    total += byStatus[status.ordinal()].sum();
+                }
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getConnectionCount() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public double getResponseCacheHitRatio() {
+        return ratio(responseCache.getHits(), responseCache.getMisses());
+    }
+
+    @Override
+    public double getMetadataCacheHitRatio() {
+        return ratio(metadataCache.getHits(), metadataCache.getMisses());
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return allLatencies.valueAtQuantile(0.5) / 1e6;
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return allLatencies.valueAtQuantile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getLatencyP999Millis() {
+        return allLatencies.valueAtQuantile(0.999) / 1e6;
+    }
+
+    @Override
+    public long getTimedOutConnections() {
+        return Arrays.stream(timeouts).mapToLong(LongAdder::sum).sum();
+    }
+
+    @Override
+    public int getRequestsInFlight() {
+        return admission.getInFlight();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return admission.getLimit();
+    }
+
+    @Override
+    public long getShedCount() {
+        return admission.getRejected() + shedConnections.sum();
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    // #-- Prometheus exposition
+
+    /**
+     * Ecrit toutes les statistiques au format texte de Prometheus (version 0.0.4). Seules les combinaisons de
+     * methode et de code de retour deja rencontrees sont ecrites.
+     * @return Les octets du texte construit.
+     */
+    byte[] toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "webserver_requests_total", "counter", "Requests handled, by method and status code.");
+        for (int m = 0; m < requests.length; m++) {
+            String method = m == UNKNOWN_METHOD ? "UNKNOWN" : METHODS[m].name();
+            for (HttpStatus status : STATUSES) {
+                long count = requests[m][status.ordinal()].sum();
+                if (count > 0) {
+                    out.append("webserver_requests_total{method=\"").append(method)
+                            .append("\",status=\"").append(status.getCode()).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        header(out, "webserver_request_duration_seconds", "histogram",
+                "Time spent building responses, by method (excluding sending them).");
+        for (HttpMethod method : METHODS) {
+            LatencyHistogram histogram = latencies[method.ordinal()];
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            String labels = "{method=\"" + method.name() + "\"";
+            for (String bound : LATENCY_BOUNDS) {
+                long nanos = (long) (Double.parseDouble(bound) * 1e9);
+                out.append("webserver_request_duration_seconds_bucket").append(labels).append(",le=\"").append(bound)
+                        .append("\"} ").append(histogram.countAtOrBelow(nanos)).append('\n');
+            }
+            out.append("webserver_request_duration_seconds_bucket").append(labels).append(",le=\"+Inf\"} ")
+                    .append(count).append('\n');
+            out.append("webserver_request_duration_seconds_sum").append(labels).append("} ")
+                    .append(histogram.getSum() / 1e9).append('\n');
+            out.append("webserver_request_duration_seconds_count").append(labels).append("} ")
+                    .append(count).append('\n');
+        }
+
+        header(out, "webserver_request_duration_quantile_seconds", "gauge",
+                "Quantiles of the time spent building responses, all methods included.");
+        for (String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+            out.append("webserver_request_duration_quantile_seconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(allLatencies.valueAtQuantile(Double.parseDouble(quantile)) / 1e9).append('\n');
+        }
+
+        header(out, "webserver_received_bytes_total", "counter", "Bytes received from clients.");
+        out.append("webserver_received_bytes_total ").append(bytesReceived.sum()).append('\n');
+        header(out, "webserver_sent_bytes_total", "counter", "Bytes sent to clients.");
+        out.append("webserver_sent_bytes_total ").append(bytesSent.sum()).append('\n');
+
+        header(out, "webserver_connections_active", "gauge", "Currently open connections.");
+        out.append("webserver_connections_active ").append(activeConnections.sum()).append('\n');
+        header(out, "webserver_connections_total", "counter", "Connections accepted.");
+        out.append("webserver_connections_total ").append(connections.sum()).append('\n');
+        header(out, "webserver_connection_timeouts_total", "counter",
+                "Connections closed for exceeding a deadline, by phase (idle, header, body, write or stream).");
+        for (int i = 0; i < timeouts.length; i++) {
+            out.append("webserver_connection_timeouts_total{phase=\"").append(TIMEOUT_PHASES.get(i)).append("\"} ")
+                    .append(timeouts[i].sum()).append('\n');
+        }
+
+        header(out, "webserver_requests_in_flight", "gauge", "Requests currently being handled.");
+        out.append("webserver_requests_in_flight ").append(admission.getInFlight()).append('\n');
+        header(out, "webserver_concurrency_limit", "gauge",
+                "Current limit of requests handled concurrently (0 if admission control is disabled).");
+        out.append("webserver_concurrency_limit ").append(admission.getLimit()).append('\n');
+        header(out, "webserver_shed_total", "counter",
+                "Requests and connections refused with a 503 response, by reason.");
+        out.append("webserver_shed_total{reason=\"in_flight\"} ").append(admission.getRejected()).append('\n');
+        out.append("webserver_shed_total{reason=\"queue\"} ").append(shedConnections.sum()).append('\n');
+        header(out, "webserver_http2_streams_refused_total", "counter",
+                "HTTP/2 streams refused with REFUSED_STREAM because the stream workers were saturated.");
+        out.append("webserver_http2_streams_refused_total ").append(refusedStreams.sum()).append('\n');
+
+        header(out, "webserver_cache_lookups_total", "counter", "Cache lookups, by cache and result.");
+        cacheLookups(out, "response", responseCache.getHits(), responseCache.getMisses());
+        cacheLookups(out, "metadata", metadataCache.getHits(), metadataCache.getMisses());
+        header(out, "webserver_cache_hit_ratio", "gauge", "Proportion of cache lookups that were hits.");
+        out.append("webserver_cache_hit_ratio{cache=\"response\"} ").append(getResponseCacheHitRatio()).append('\n');
+        out.append("webserver_cache_hit_ratio{cache=\"metadata\"} ").append(getMetadataCacheHitRatio()).append('\n');
+
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void cacheLookups(StringBuilder out, String cache, long hits, long misses) {
+        out.append("webserver_cache_lookups_total{cache=\"").append(cache).append("\",result=\"hit\"} ")
+                .append(hits).append('\n');
+        out.append("webserver_cache_lookups_total{cache=\"").append(cache).append("\",result=\"miss\"} ")
+                .append(misses).append('\n');
+    }
+}
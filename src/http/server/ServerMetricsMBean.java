@@ -0,0 +1,89 @@
+package http.server;
+
+/**
+ * Interface JMX des statistiques du serveur HTTP (voir {@link ServerMetrics}), consultable par exemple avec jconsole
+ * sous le nom "http.server:type=WebServer,port=...".
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * @return Le nombre de requetes traitees depuis le demarrage du serveur.
+     */
+    long getRequestCount();
+
+    /**
+     * @return Le nombre de requetes auxquelles le serveur a repondu par une erreur (code 4xx ou 5xx).
+     */
+    long getErrorCount();
+
+    /**
+     * @return Le nombre de connexions actuellement ouvertes.
+     */
+    long getActiveConnections();
+
+    /**
+     * @return Le nombre de connexions acceptees depuis le demarrage du serveur.
+     */
+    long getConnectionCount();
+
+    /**
+     * @return Le nombre de connexions fermees pour avoir depasse un delai (inactivite, reception de l'en-tete ou du
+     * corps d'une requete, envoi d'une reponse).
+     */
+    long getTimedOutConnections();
+
+    /**
+     * @return Le nombre d'octets reçus des clients.
+     */
+    long getBytesReceived();
+
+    /**
+     * @return Le nombre d'octets envoyes aux clients.
+     */
+    long getBytesSent();
+
+    /**
+     * @return La proportion des requetes GET servies depuis le cache des reponses (entre 0 et 1).
+     */
+    double getResponseCacheHitRatio();
+
+    /**
+     * @return La proportion des consultations du cache des metadonnees de fichiers satisfaites sans lire le disque
+     * (entre 0 et 1).
+     */
+    double getMetadataCacheHitRatio();
+
+    /**
+     * @return La duree mediane de traitement d'une requete, en millisecondes.
+     */
+    double getLatencyP50Millis();
+
+    /**
+     * @return Le 99e centile de la duree de traitement d'une requete, en millisecondes.
+     */
+    double getLatencyP99Millis();
+
+    /**
+     * @return Le 99,9e centile de la duree de traitement d'une requete, en millisecondes.
+     */
+    double getLatencyP999Millis();
+
+    /**
+     * @return Le nombre de requetes en cours de traitement.
+     */
+    int getRequestsInFlight();
+
+    /**
+     * @return La limite courante du nombre de requetes traitees en meme temps (0 si le controle d'admission est
+     * desactive).
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * @return Le nombre de requetes et de connexions refusees par une reponse 503 pour cause de surcharge.
+     */
+    long getShedCount();
+}
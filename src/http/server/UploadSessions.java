@@ -0,0 +1,307 @@
+package http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Sessions de televersement d'un fichier en plusieurs morceaux. Un gros fichier n'a ainsi pas a etre envoye en une
+ * seule requete PUT, a recommencer entierement si la connexion est coupee : le client ouvre une session, envoie les
+ * morceaux du fichier (eventuellement en parallele sur plusieurs connexions, et dans n'importe quel ordre), peut
+ * demander a tout moment les plages deja reçues pour ne renvoyer que les autres, puis valide la session, ce qui
+ * remplace d'un coup le fichier cible.
+ *
+ * Les morceaux sont ecrits directement a leur position dans un fichier temporaire cache, a cote du fichier cible
+ * (donc sur le meme systeme de fichiers, pour qu'il puisse y etre deplace atomiquement lors de la validation). Les
+ * octets d'un morceau interrompu qui ont ete ecrits comptent parmi les plages reçues. Une session inutilisee pendant
+ * le delai configure est abandonnee, et son fichier temporaire supprime.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+class UploadSessions {
+
+    /**
+     * La taille des blocs lus dans le corps d'une requete avant d'etre ecrits dans le fichier temporaire.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Le nombre d'octets aleatoires des identifiants de session.
+     */
+    private static final int ID_BYTES = 16;
+
+    /**
+     * Une session de televersement vers un fichier cible.
+     */
+    static final class Session {
+        private final String id;
+        private final String target;
+        private final Path targetPath;
+        private final Path staged;
+        private final FileChannel file;
+        /**
+         * Les ecritures des morceaux se font en parallele sous le verrou en lecture, la validation et l'abandon de la
+         * session sous le verrou en ecriture (une fois les ecritures en cours terminees).
+         */
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        /**
+         * La taille annoncee du fichier, ou -1 si elle n'est pas encore connue.
+         */
+        private volatile long length;
+        /**
+         * L'instant (selon {@link System#nanoTime()}) de la derniere utilisation de la session.
+         */
+        private volatile long lastUsed = System.nanoTime();
+        /**
+         * Les plages reçues, disjointes et non contigues : le dernier octet de chaque plage, indexe par son premier
+         * octet (protegees par le moniteur de la session).
+         */
+        private final TreeMap<Long, Long> received = new TreeMap<>();
+        /**
+         * La session a-t-elle ete validee ou abandonnee (protege par le verrou de la session) ?
+         */
+        private boolean closed = false;
+
+        private Session(String id, String target, Path targetPath, Path staged, FileChannel file, long length) {
+            this.id = id;
+            this.target = target;
+            this.targetPath = targetPath;
+            this.staged = staged;
+            this.file = file;
+            this.length = length;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        /**
+         * @return Le chemin de la ressource cible, tel que demande par le client.
+         */
+        String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return Le chemin du fichier cible.
+         */
+        Path getTargetPath() {
+            return targetPath;
+        }
+
+        /**
+         * @return Le fichier temporaire contenant les morceaux reçus.
+         */
+        Path getStaged() {
+            return staged;
+        }
+
+        /**
+         * @return La taille annoncee du fichier, ou -1 si elle n'est pas encore connue.
+         */
+        long getLength() {
+            return length;
+        }
+
+        void setLength(long length) {
+            this.length = length;
+        }
+
+        ReadWriteLock getLock() {
+            return lock;
+        }
+
+        /**
+         * @return true si la session a ete validee ou abandonnee (a appeler sous le verrou de la session).
+         */
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Ecrit un morceau du fichier a sa position dans le fichier temporaire, au fur et a mesure de sa reception, et
+         * ajoute les octets ecrits aux plages reçues (meme si la lecture du morceau echoue en cours de route). A
+         * appeler sous le verrou en lecture de la session.
+         * @param position La position du premier octet du morceau dans le fichier.
+         * @param count Le nombre d'octets du morceau.
+         * @param in Le stream du morceau.
+         * @return Le nombre d'octets ecrits : moins que count si le stream s'est termine avant.
+         * @throws IOException En cas d'erreur de lecture ou d'ecriture.
+         */
+        long write(long position, long count, InputStream in) throws IOException {
+            lastUsed = System.nanoTime();
+            byte[] buffer = new byte[(int) Math.min(WRITE_BUFFER_SIZE, Math.max(1, count))];
+            long written = 0;
+            try {
+                while (written < count) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, count - written));
+                    if (read < 0) {
+                        break;
+                    }
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                    while (chunk.hasRemaining()) {
+                        written += file.write(chunk, position + written);
+                    }
+                }
+            } finally {
+                if (written > 0) {
+                    addReceived(position, position + written - 1);
+                }
+                lastUsed = System.nanoTime();
+            }
+            return written;
+        }
+
+        /**
+         * Ajoute une plage aux plages reçues, en la fusionnant avec celles qu'elle chevauche ou touche.
+         */
+        private synchronized void addReceived(long first, long last) {
+            Map.Entry<Long, Long> before = received.floorEntry(first);
+            if (before != null && before.getValue() >= first - 1) {
+                first = before.getKey();
+                last = Math.max(last, before.getValue());
+            }
+            for (Map.Entry<Long, Long> after = received.ceilingEntry(first);
+                 after != null && after.getKey() <= last + 1;
+                 after = received.ceilingEntry(first)) {
+                last = Math.max(last, after.getValue());
+                received.remove(after.getKey());
+            }
+            received.put(first, last);
+        }
+
+        /**
+         * @return Les plages reçues, dans l'ordre du fichier.
+         */
+        synchronized List<ByteRange> getReceived() {
+            List<ByteRange> ranges = new ArrayList<>(received.size());
+            for (Map.Entry<Long, Long> range : received.entrySet()) {
+                ranges.add(new ByteRange(range.getKey(), range.getValue()));
+            }
+            return ranges;
+        }
+
+        /**
+         * Indique si tout le fichier a ete reçu. Sa taille doit avoir ete annoncee : sans elle, rien ne distingue un
+         * fichier complet d'un fichier dont les derniers morceaux ont ete perdus.
+         * @return true si la taille du fichier est connue, et que tous ses octets ont ete reçus, et seulement eux.
+         */
+        synchronized boolean isComplete() {
+            if (length < 0) {
+                return false;
+            } else if (received.isEmpty()) {
+                return length == 0;
+            }
+            return received.size() == 1 && received.firstKey() == 0 && received.firstEntry().getValue() == length - 1;
+        }
+
+        /**
+         * Termine la session : son fichier temporaire est ferme (mais pas supprime). A appeler sous le verrou en
+         * ecriture de la session.
+         */
+        void close() {
+            closed = true;
+            try {
+                file.close();
+            } catch (IOException e) {
+                WebServer.LOG.warn("Fermeture du televersement '" + id + "' impossible : " + e);
+            }
+        }
+    }
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    /**
+     * Le delai d'inactivite (en nanosecondes) apres lequel une session est abandonnee.
+     */
+    private final long timeout;
+
+    /**
+     * Cree le registre des sessions de televersement.
+     * @param timeoutMillis Le delai d'inactivite (en millisecondes) apres lequel une session est abandonnee.
+     */
+    UploadSessions(long timeoutMillis) {
+        this.timeout = timeoutMillis * 1_000_000;
+    }
+
+    /**
+     * Ouvre une session de televersement, avec son fichier temporaire a cote du fichier cible.
+     * @param target Le chemin de la ressource cible, tel que demande par le client.
+     * @param targetPath Le chemin du fichier cible.
+     * @param length La taille annoncee du fichier, ou -1 si elle n'est pas connue.
+     * @return La session ouverte.
+     * @throws IOException Si le fichier temporaire n'a pas pu etre cree (par exemple si le repertoire du fichier cible
+     * n'existe pas).
+     */
+    Session open(String target, Path targetPath, long length) throws IOException {
+        expire();
+        byte[] bytes = new byte[ID_BYTES];
+        random.nextBytes(bytes);
+        String id = HexFormat.of().formatHex(bytes);
+        Path staged = targetPath.resolveSibling("." + targetPath.getFileName() + "." + id + ".upload");
+        FileChannel file = FileChannel.open(staged, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        Session session = new Session(id, target, targetPath, staged, file, length);
+        sessions.put(id, session);
+        return session;
+    }
+
+    /**
+     * @param id L'identifiant d'une session.
+     * @return La session, ou null si elle n'existe pas (ou plus).
+     */
+    Session get(String id) {
+        expire();
+        Session session = sessions.get(id);
+        if (session != null) {
+            session.lastUsed = System.nanoTime();
+        }
+        return session;
+    }
+
+    /**
+     * Retire une session terminee du registre. A appeler sous le verrou en ecriture de la session, apres
+     * {@link Session#close()}.
+     * @param session La session terminee.
+     */
+    void remove(Session session) {
+        sessions.remove(session.id, session);
+    }
+
+    /**
+     * Abandonne les sessions inutilisees depuis plus que le delai configure. Une session dont un morceau est en cours
+     * d'ecriture est gardee.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        for (Session session : sessions.values()) {
+            if (now - session.lastUsed < timeout || !session.lock.writeLock().tryLock()) {
+                continue;
+            }
+            try {
+                if (!session.closed) {
+                    WebServer.LOG.info("Televersement '" + session.id + "' vers '" + session.target + "' abandonne");
+                    session.close();
+                    Files.deleteIfExists(session.staged);
+                }
+            } catch (IOException e) {
+                WebServer.LOG.warn("Suppression du fichier temporaire '" + session.staged + "' impossible : " + e);
+            } finally {
+                sessions.remove(session.id, session);
+                session.lock.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -3,11 +3,37 @@
 package http.server;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import utils.AsyncLogger;
+import utils.ConnectionReaper;
 
 /**
  * Serveur HTTP simple pouvant correctement recevoir 5 type de requetes differentes :
@@ -20,6 +46,10 @@ import java.nio.file.Path;
  * De plus, ce serveur gere de nombreuses cas nominaux et non nominaux differents, dont notamment les codes 200, 400,
  * 403, 404 et 500 (et plusieurs autres).
  *
+ * Les connexions sont traitees en parallele : les methodes de traitement des requetes peuvent etre appelees depuis
+ * plusieurs threads a la fois. Les requetes modifiant un meme fichier sont serialisees par un verrou propre a ce
+ * fichier (voir {@link ResourceLocks}), et un fichier remplace par PUT l'est atomiquement.
+ *
  * @author Guillaume Berthomet
  * @author Lola Cremer
  */
@@ -29,36 +59,201 @@ public class WebServer {
      * Le chemin de base pour acceder aux ressources du serveur.
      */
     private static final String BASE_PATH = "resources";
+    /**
+     * Le journal du serveur (voir {@link AsyncLogger}).
+     */
+    static final AsyncLogger LOG = AsyncLogger.getDefault();
+    /**
+     * Le format des dates dans les en-tetes HTTP (IMF-fixdate).
+     */
+    private static final DateTimeFormatter HTTP_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+    /**
+     * La reponse intermediaire autorisant un client a envoyer le corps de sa requete (en-tete "Expect: 100-continue").
+     */
+    static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+    /**
+     * La taille des blocs dans lesquels le corps d'une requete est copie vers un fichier.
+     */
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Le separateur ecrit par POST entre l'ancien contenu d'un fichier et le contenu ajoute.
+     */
+    private static final byte[] NEW_LINE = {'\n'};
+    private static final byte[] NO_BYTES = {};
+    /**
+     * La taille du buffer de lecture de chaque connexion du moteur bloquant.
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Les etapes d'une connexion dont le delai est surveille : attente d'une nouvelle requete, reception de son
+     * en-tete, reception de son corps et envoi de sa reponse, ou traitement de flux HTTP/2 (reception et envoi
+     * entremeles de plusieurs requetes).
+     */
+    static final String IDLE_PHASE = "idle";
+    static final String HEADER_PHASE = "header";
+    static final String BODY_PHASE = "body";
+    static final String WRITE_PHASE = "write";
+    static final String STREAM_PHASE = "stream";
+    /**
+     * L'intervalle (en millisecondes) entre deux verifications des delais des connexions.
+     */
+    static final long DEADLINE_CHECK_PERIOD = 250;
+    /**
+     * Le nombre de bandes des verrous des fichiers servis (voir {@link ResourceLocks}).
+     */
+    private static final int LOCK_STRIPES = 256;
+    /**
+     * Le delai (en millisecondes) apres lequel un thread de traitement des flux HTTP/2 inutilise s'arrete.
+     */
+    private static final long STREAM_THREAD_KEEP_ALIVE = 60_000;
+    /**
+     * Les pages d'erreur ne dependant pas de la requete, encodees une fois pour toutes.
+     */
+    private static final byte[] BAD_REQUEST_PAGE =
+            "<h1 style='color: red;'>Erreur 400 : requete mal formee.</h1>\n".getBytes();
+    private static final byte[] PAYLOAD_TOO_LARGE_PAGE =
+            "<h1 style='color: darkred'>Erreur 413 : corps de requete trop gros.</h1>\n".getBytes();
+    private static final byte[] SERVICE_UNAVAILABLE_PAGE =
+            "<h1 style='color: darkred'>Erreur 503 : serveur surcharge, reessayez plus tard.</h1>\n".getBytes();
+    private static final Map<String, byte[]> NOT_IMPLEMENTED_PAGES = Map.of(
+            "CONNECT", notImplementedPage("CONNECT"),
+            "OPTIONS", notImplementedPage("OPTIONS"),
+            "TRACE", notImplementedPage("TRACE")
+    );
+
+    /**
+     * La configuration du serveur.
+     */
+    private final ServerConfig config;
+    /**
+     * Le cache des reponses aux requetes GET sur les petits fichiers.
+     */
+    private final ResponseCache cache;
+    /**
+     * La table des types MIME des fichiers servis.
+     */
+    private final MimeTypes mimeTypes;
+    /**
+     * Le cache des metadonnees des fichiers servis.
+     */
+    private final FileMetadataCache metadataCache;
+    /**
+     * Les verrous des fichiers servis : les requetes modifiant un fichier prennent son verrou en ecriture, et les
+     * requetes GET le prennent en lecture le temps d'ouvrir le fichier.
+     */
+    private final ResourceLocks locks = new ResourceLocks(LOCK_STRIPES);
+    /**
+     * Les statistiques du serveur.
+     */
+    private final ServerMetrics metrics;
+    /**
+     * Le thread fermant les connexions du moteur bloquant qui depassent leurs delais (cree au demarrage de ce moteur).
+     */
+    private ConnectionReaper reaper;
+    /**
+     * Les threads traitant les flux des connexions HTTP/2 du moteur bloquant (crees au demarrage de ce moteur) : le
+     * thread d'une telle connexion ne fait que lire ses trames.
+     */
+    private ExecutorService streamWorkers;
+    /**
+     * Le nombre total de threads de traitement (des deux moteurs), ou 0 pour un thread virtuel par connexion.
+     */
+    private final int workerThreads;
+    /**
+     * Le controle d'admission des requetes, qui rejette celles en exces en cas de surcharge.
+     */
+    private final AdmissionController admission;
+    /**
+     * Les sessions de televersement en plusieurs morceaux en cours.
+     */
+    private final UploadSessions uploads;
+    /**
+     * L'en-tete des reponses 503, annonçant le delai configure avant de reessayer.
+     */
+    private final byte[] serviceUnavailableHeader;
+
+    /**
+     * Construit un serveur HTTP utilisant la configuration passee en parametre.
+     * @param config La configuration du serveur.
+     */
+    public WebServer(ServerConfig config) {
+        this.config = config;
+        LOG.setLevel(config.getLogLevel());
+        this.cache = new ResponseCache(config.getCacheSize(), config.getCacheMaxEntrySize());
+        this.mimeTypes = new MimeTypes(config.getMimeTypes());
+        this.metadataCache = new FileMetadataCache(Path.of(BASE_PATH), cache);
+        this.workerThreads = resolveWorkerThreads(config);
+        // More requests than worker threads can't be in flight at once: a bigger limit could never be reached, nor
+        // adapted to the latency
+        int maxInFlight = config.getMaxInFlight();
+        if (workerThreads > 0 && maxInFlight > 0) {
+            maxInFlight = Math.min(maxInFlight, workerThreads);
+        }
+        this.admission = new AdmissionController(maxInFlight, config.isAdaptiveLimit());
+        this.metrics = new ServerMetrics(cache, metadataCache, admission);
+        this.uploads = new UploadSessions(config.getUploadTimeout());
+        this.serviceUnavailableHeader = constructHeader(
+                HttpStatus.SERVICE_UNAVAILABLE,
+                "Content-Type: text/html",
+                "Retry-After: " + config.getRetryAfter()
+        );
+    }
+
+    /**
+     * Construit un serveur HTTP utilisant la configuration par defaut.
+     */
+    public WebServer() {
+        this(new ServerConfig());
+    }
 
     // #-- Constructing generic response
 
+    /**
+     * Construit l'en-tete encode d'une reponse HTTP a partir de son code de retour et de ses autres lignes. Le debut
+     * de l'en-tete propre au code de retour est deja encode : seules les autres lignes le sont a chaque appel.
+     * @param status Le code de retour de la reponse.
+     * @param restOfHeader D'autres lignes a ajouter au header
+     * @return Les octets de l'en-tete construit.
+     */
+    private static byte[] constructHeader(HttpStatus status, String... restOfHeader) {
+        byte[] head = status.getHead();
+        if (restOfHeader.length == 0) {
+            return head;
+        }
+
+        StringBuilder lines = new StringBuilder();
+        for (String line : restOfHeader) {
+            lines.append(line).append("\r\n");
+        }
+        byte[] encoded = lines.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] header = Arrays.copyOf(head, head.length + encoded.length);
+        System.arraycopy(encoded, 0, header, head.length, encoded.length);
+        return header;
+    }
+
     /**
      * Construit une reponse HTTP a partir de parametres generiques. Cette methode est principalement destinee a etre
      * utilisee par des methodes specialisantes au dessus.
-     * @param responseCode La premiere ligne de la reponse (code, description, version HTTP)
+     * @param status Le code de retour de la reponse.
      * @param content Le contenu de la reponse
      * @param restOfHeader D'autres lignes a ajouter au header
      * @return La reponse construite a partir des parametres donnes.
      */
-    private Response constructGenericResponse(String responseCode, byte[] content, String... restOfHeader) {
-        StringBuilder header = new StringBuilder(responseCode);
-        for (String line : restOfHeader) {
-            header.append("\n").append(line);
-        }
-        header.append("\n").append("Server: Bot");
-        return new Response(header.toString(), content);
+    private Response constructGenericResponse(HttpStatus status, byte[] content, String... restOfHeader) {
+        return new Response(constructHeader(status, restOfHeader), content);
     }
 
     /**
      * Construit une reponse HTTP contenant du HTML a partir de deux parametres : le statut de la reponse et son
-     * contenu.
-     * @param responseType La premiere ligne du header de la reponse.
+     * contenu. L'en-tete d'une telle reponse est entierement encode a l'avance.
+     * @param status Le code de retour de la reponse.
      * @param content Le contenu de la reponse.
      * @return La reponse construite avec le bon header et le contenu passe en parametre.
-     * @see #constructGenericResponse(String, byte[], String[])
+     * @see #constructGenericResponse(HttpStatus, byte[], String[])
      */
-    private Response constructGenericHTMLResponse(String responseType, String content) {
-        return constructGenericResponse(responseType, content.getBytes(), "Content-Type: text/html");
+    private Response constructGenericHTMLResponse(HttpStatus status, String content) {
+        return new Response(status.getHtmlHead(), content.getBytes());
     }
 
     // - Good (2XX)
@@ -72,12 +267,111 @@ public class WebServer {
      */
     private Response constructOKResponse(String contentType, byte[] content) {
         return constructGenericResponse(
-                "HTTP/1.0 200 OK",
+                HttpStatus.OK,
                 content,
                 "Content-Type: " + contentType
         );
     }
 
+    /**
+     * Construit une reponse HTTP 200 (OK) contenant les statistiques du serveur au format texte de Prometheus.
+     * @return La reponse construite.
+     */
+    private Response constructMetricsResponse() {
+        return constructGenericResponse(
+                HttpStatus.OK,
+                metrics.toPrometheus(),
+                "Content-Type: text/plain; version=0.0.4; charset=utf-8",
+                "Cache-Control: no-store"
+        );
+    }
+
+    /**
+     * Construit les lignes d'en-tete decrivant le fichier envoye dans une reponse 200 : son type, son encodage et ses
+     * validateurs.
+     * @param contentType Le type MIME du fichier.
+     * @param encoding L'encodage du contenu envoye.
+     * @param compressible Le fichier peut-il etre envoye compresse (auquel cas la reponse depend de l'en-tete
+     *                     Accept-Encoding de la requete) ?
+     * @param eTag L'ETag du contenu envoye.
+     * @param lastModified La date de derniere modification du fichier (en millisecondes depuis l'epoch).
+     * @return Les lignes d'en-tete construites.
+     */
+    private String[] constructRepresentationHeader(String contentType, String encoding, boolean compressible,
+                                                   String eTag, long lastModified) {
+        List<String> lines = new ArrayList<>();
+        lines.add("Content-Type: " + contentType);
+        if (!Compression.IDENTITY.equals(encoding)) {
+            lines.add("Content-Encoding: " + encoding);
+        }
+        if (compressible) {
+            lines.add("Vary: Accept-Encoding");
+        }
+        lines.add("Accept-Ranges: bytes");
+        lines.add("ETag: " + eTag);
+        lines.add("Last-Modified: " + formatHttpDate(lastModified));
+        return lines.toArray(new String[0]);
+    }
+
+    /**
+     * Construit une reponse HTTP 200 (OK) dont le contenu est celui du fichier passe en parametre. Le fichier n'est pas
+     * charge en memoire : il sera transfere directement sur le socket lors de l'envoi de la reponse.
+     * @param file Le fichier ouvert en lecture, dont la reponse devient responsable.
+     * @param representationHeader Les lignes d'en-tete decrivant le fichier.
+     * @return La reponse construite.
+     * @throws IOException Si la taille du fichier n'a pas pu etre lue.
+     * @see #constructRepresentationHeader(String, String, boolean, String, long)
+     */
+    private Response constructOKFileResponse(FileChannel file, String... representationHeader) throws IOException {
+        return new Response(constructHeader(HttpStatus.OK, representationHeader), file);
+    }
+
+    /**
+     * Construit une reponse HTTP 206 (PARTIAL CONTENT) contenant les plages du fichier passe en parametre. Une seule
+     * plage est envoyee telle quelle, alors que plusieurs plages sont envoyees dans une reponse
+     * "multipart/byteranges".
+     * @param contentType Le type MIME du fichier.
+     * @param file Le fichier ouvert en lecture, dont la reponse devient responsable.
+     * @param ranges Les plages demandees (au moins une).
+     * @param eTag L'ETag du fichier.
+     * @param lastModified La date de derniere modification du fichier (en millisecondes depuis l'epoch).
+     * @return La reponse construite.
+     * @throws IOException Si la taille du fichier n'a pas pu etre lue.
+     */
+    private Response constructPartialContentResponse(String contentType, FileChannel file, List<ByteRange> ranges,
+                                                      String eTag, long lastModified) throws IOException {
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            return new Response(
+                    constructHeader(
+                            HttpStatus.PARTIAL_CONTENT,
+                            "Content-Type: " + contentType,
+                            "Content-Range: " + range.toContentRange(file.size()),
+                            "Accept-Ranges: bytes",
+                            "ETag: " + eTag,
+                            "Last-Modified: " + formatHttpDate(lastModified)
+                    ),
+                    file,
+                    range
+            );
+        }
+
+        String boundary = "BYTERANGES_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        return new Response(
+                constructHeader(
+                        HttpStatus.PARTIAL_CONTENT,
+                        "Content-Type: multipart/byteranges; boundary=" + boundary,
+                        "Accept-Ranges: bytes",
+                        "ETag: " + eTag,
+                        "Last-Modified: " + formatHttpDate(lastModified)
+                ),
+                file,
+                ranges,
+                contentType,
+                boundary
+        );
+    }
+
     /**
      * Construit une reponse HTTP 201 (CREATED), indiquant que la ressource au chemin passe en parametre a ete cree.
      * @param resource Le chemin vers la ressource creee.
@@ -85,12 +379,47 @@ public class WebServer {
      */
     private Response constructCreatedResponse(String resource) {
         return constructGenericResponse(
-                "HTTP/1.0 201 CREATED",
+                HttpStatus.CREATED,
                 new byte[] {},
                 "Content-Location: " + resource
         );
     }
 
+    /**
+     * Construit une reponse HTTP 201 (CREATED), indiquant qu'une session de televersement a ete ouverte.
+     * @param session La session ouverte.
+     * @return La reponse construite.
+     */
+    private Response constructUploadCreatedResponse(UploadSessions.Session session) {
+        return constructGenericResponse(
+                HttpStatus.CREATED,
+                new byte[] {},
+                "Location: " + config.getUploadsPath() + "/" + session.getId(),
+                "Cache-Control: no-store"
+        );
+    }
+
+    /**
+     * Construit une reponse HTTP 200 (OK) decrivant l'etat d'une session de televersement : les plages deja reçues,
+     * une par ligne (par exemple "0-1048575"), et la taille annoncee du fichier si elle est connue.
+     * @param session La session de televersement.
+     * @return La reponse construite.
+     */
+    private Response constructUploadStatusResponse(UploadSessions.Session session) {
+        StringBuilder content = new StringBuilder();
+        for (ByteRange range : session.getReceived()) {
+            content.append(range.getFirst()).append('-').append(range.getLast()).append('\n');
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("Content-Type: text/plain");
+        lines.add("Cache-Control: no-store");
+        lines.add("Content-Location: " + session.getTarget());
+        if (session.getLength() >= 0) {
+            lines.add("Upload-Length: " + session.getLength());
+        }
+        return constructGenericResponse(HttpStatus.OK, content.toString().getBytes(), lines.toArray(new String[0]));
+    }
+
     /**
      * Construit une reponse HTTP 204 (NO CONTENT), indiquant que tout s'est bien passe sans necessite d'informations
      * supplementaires ou de corps de reponse.
@@ -98,11 +427,32 @@ public class WebServer {
      */
     private Response constructOKNoContentResponse() {
         return constructGenericResponse(
-                "HTTP/1.0 204 NO CONTENT",
+                HttpStatus.NO_CONTENT,
                 new byte[] {}
         );
     }
 
+    // - Redirection (3XX)
+
+    /**
+     * Construit une reponse HTTP 304 (NOT MODIFIED), indiquant que le client possede deja la version courante de la
+     * ressource demandee. Cette reponse n'a pas de contenu, mais porte le meme en-tete Vary que la reponse 200.
+     * @param eTag L'ETag de la ressource.
+     * @param lastModified La date de derniere modification de la ressource (en millisecondes depuis l'epoch).
+     * @param compressible La ressource peut-elle etre envoyee compressee (auquel cas la reponse depend de l'en-tete
+     *                     Accept-Encoding de la requete) ?
+     * @return La reponse construite.
+     */
+    private Response constructNotModifiedResponse(String eTag, long lastModified, boolean compressible) {
+        List<String> lines = new ArrayList<>();
+        if (compressible) {
+            lines.add("Vary: Accept-Encoding");
+        }
+        lines.add("ETag: " + eTag);
+        lines.add("Last-Modified: " + formatHttpDate(lastModified));
+        return constructGenericResponse(HttpStatus.NOT_MODIFIED, new byte[] {}, lines.toArray(new String[0]));
+    }
+
     // - External errors (4XX)
 
     /**
@@ -110,10 +460,7 @@ public class WebServer {
      * @return La reponse construite.
      */
     private Response constructBadRequestResponse() {
-        return constructGenericHTMLResponse(
-                "HTTP/1.0 400 BAD REQUEST",
-                "<h1 style='color: red;'>Erreur 400 : requete mal formee.</h1>\n"
-        );
+        return new Response(HttpStatus.BAD_REQUEST.getHtmlHead(), BAD_REQUEST_PAGE);
     }
 
     /**
@@ -124,7 +471,7 @@ public class WebServer {
      */
     private Response constructForbiddenResponse(String resource) {
         return constructGenericHTMLResponse(
-                "HTTP/1.0 403 FORBIDDEN",
+                HttpStatus.FORBIDDEN,
                 "<h1 style='color: darkred'>Erreur 403 : '" + resource + "' n'est pas accessible</h1>\n"
         );
     }
@@ -137,7 +484,7 @@ public class WebServer {
      */
     private Response constructNotFoundResponse(String resource) {
         return constructGenericHTMLResponse(
-                "HTTP/1.0 404 NOT FOUND",
+                HttpStatus.NOT_FOUND,
                 "<h1 style='color: darkred'>Erreur 404 : '" + resource + "' est introuvable</h1>\n"
         );
     }
@@ -150,11 +497,51 @@ public class WebServer {
      */
     private Response constructNotAcceptableResponse(String method, String resource) {
         return constructGenericHTMLResponse(
-                "HTTP/1.0 406 NOT ACCEPTABLE",
+                HttpStatus.NOT_ACCEPTABLE,
                 "<h1 style='color: darkred'>Erreur 406 : " + method + " inutilisable sur '" + resource + "'</h1>\n"
         );
     }
 
+    /**
+     * Construit une reponse HTTP 409 (CONFLICT), indiquant qu'une session de televersement ne peut pas etre validee
+     * car le fichier n'a pas ete entierement reçu.
+     * @param resource Le chemin de la session de televersement.
+     * @return La reponse construite.
+     */
+    private Response constructConflictResponse(String resource) {
+        return constructGenericHTMLResponse(
+                HttpStatus.CONFLICT,
+                "<h1 style='color: darkred'>Erreur 409 : televersement '" + resource + "' incomplet</h1>\n"
+        );
+    }
+
+    /**
+     * Construit une reponse HTTP 413 (PAYLOAD TOO LARGE), indiquant que le corps de la requete depasse la taille que
+     * le serveur accepte. La connexion est fermee apres son envoi, sans lire le reste du corps.
+     * @return La reponse construite.
+     */
+    private Response constructPayloadTooLargeResponse() {
+        Response response = new Response(HttpStatus.PAYLOAD_TOO_LARGE.getHtmlHead(), PAYLOAD_TOO_LARGE_PAGE);
+        response.requireClose();
+        return response;
+    }
+
+    /**
+     * Construit une reponse HTTP 416 (RANGE NOT SATISFIABLE), indiquant qu'aucune des plages demandees n'est comprise
+     * dans la ressource passee en parametre.
+     * @param resource La ressource demandee.
+     * @param size La taille de la ressource.
+     * @return La reponse construite.
+     */
+    private Response constructRangeNotSatisfiableResponse(String resource, long size) {
+        return constructGenericResponse(
+                HttpStatus.RANGE_NOT_SATISFIABLE,
+                ("<h1 style='color: darkred'>Erreur 416 : plage invalide pour '" + resource + "'</h1>\n").getBytes(),
+                "Content-Type: text/html",
+                "Content-Range: bytes */" + size
+        );
+    }
+
     // - Internal errors (5XX)
 
     /**
@@ -164,243 +551,889 @@ public class WebServer {
      */
     private Response constructInternalErrorResponse(String message) {
         return constructGenericHTMLResponse(
-                "HTTP/1.0 500 INTERNAL SERVER ERROR",
+                HttpStatus.INTERNAL_SERVER_ERROR,
                 "<h1 style='color: darkred'>Erreur 500 : '" + message + "'</h1>\n"
         );
     }
 
+    /**
+     * Construit une reponse HTTP 503 (SERVICE UNAVAILABLE), indiquant que le serveur est surcharge et que la requete
+     * n'a pas ete traitee. La connexion est fermee apres son envoi, sans lire le corps de la requete.
+     * @return La reponse construite.
+     */
+    private Response constructServiceUnavailableResponse() {
+        Response response = new Response(serviceUnavailableHeader, SERVICE_UNAVAILABLE_PAGE);
+        response.requireClose();
+        return response;
+    }
+
     /**
      * Construit une reponse HTTP 501, indiquant que la methode HTTP demandee n'est pas implementee sur ce serveur.
      * @param method La methode non-implementee.
      * @return La reponse construite.
      */
     private Response constructNotImplementedResponse(String method) {
-        return constructGenericHTMLResponse(
-                "HTTP/1.0 501 NOT IMPLEMENTED",
-                "<h1 style='color: darkred'>Erreur 501 : Service '" + method + "' non implemente</h1>\n"
-        );
+        byte[] page = NOT_IMPLEMENTED_PAGES.get(method);
+        return new Response(HttpStatus.NOT_IMPLEMENTED.getHtmlHead(), page != null ? page : notImplementedPage(method));
     }
 
-    // #-- Handling different HTTP methods
-
     /**
-     * Implementation de la methode HTTP get, allant chercher le contenu d'un fichier pour le renvoyer.
-     * @param in Le contenu complet de la requete.
-     * @return La reponse a renvoyer au client.
-     * @throws IOException En cas ou d'erreur de lecture du contenu de la requete, ou d'erreur de manipulation du
-     * fichier.
+     * Construit le contenu d'une reponse 501 pour la methode passee en parametre.
+     * @param method La methode non-implementee.
+     * @return Les octets de la page d'erreur.
      */
-    private Response get(BufferedReader in) throws IOException {
-        // Extract important headers info
-        String[] requestArgs = in.readLine().split(" ");
-        if (requestArgs.length != 3) {
-            return constructBadRequestResponse();
-        }
-
-        // Skip rest of header
-        String resource = requestArgs[1];
-        Path fullPath = Path.of(BASE_PATH + "/" + resource);
-
-        // Check error cases
-        if (!Files.exists(fullPath)) {
-            return constructNotFoundResponse(resource);
-        } else if (Files.isDirectory(fullPath)) {
-            return constructNotAcceptableResponse("GET", resource);
-        } else if (!Files.isReadable(fullPath)) {
-            return constructForbiddenResponse(resource);
-        }
-
-        // Read the file and create a response with its content
-        byte[] content = Files.readAllBytes(fullPath);
-        return constructOKResponse(Files.probeContentType(fullPath), content);
+    private static byte[] notImplementedPage(String method) {
+        return ("<h1 style='color: darkred'>Erreur 501 : Service '" + method + "' non implemente</h1>\n").getBytes();
     }
 
+    // #-- Handling different HTTP methods
+
     /**
-     * Implementation de la methode HTTP POST. Note implementation est simpliste, car elle permet simplement d'ajouter a
-     * la fin d'un fichier le contenu passe en corps de requete (ou de creer le fichier avec ce contenu s'il n'existe
-     * pas deja).
-     * @param in Le contenu complet de la requete.
+     * Implementation de la methode HTTP get, allant chercher le contenu d'un fichier pour le renvoyer. Les petits
+     * fichiers sont gardes en cache, et les suivants sont transferes directement depuis le disque. Si la requete le
+     * demande, seules certaines plages du fichier sont renvoyees (en-tetes Range et If-Range), ou seulement une
+     * reponse 304 si le client possede deja la version courante du fichier (en-tetes If-None-Match et
+     * If-Modified-Since). Les fichiers textuels sont compresses si le client l'accepte (en-tete Accept-Encoding).
+     * @param request La requete reçue.
+     * @param useRanges Faut-il tenir compte de l'en-tete Range de la requete ?
      * @return La reponse a renvoyer au client.
-     * @throws IOException En cas ou d'erreur de lecture du contenu de la requete, ou d'erreur de manipulation du
-     * fichier.
+     * @throws IOException En cas d'erreur de manipulation du fichier.
      */
-    private Response post(BufferedReader in) throws IOException {
-        // Extract important headers info
-        String[] requestArgs = in.readLine().split(" ");
-        if (requestArgs.length != 3) {
-            return constructBadRequestResponse();
+    private Response get(Request request, boolean useRanges) throws IOException {
+        String resource = request.getResource();
+        Path fullPath = Path.of(BASE_PATH + "/" + resource);
+        String rangeHeader = useRanges ? request.getHeader("Range") : null;
+        // Ranges always apply to the uncompressed file
+        String encoding = rangeHeader == null
+                ? Compression.negotiate(request.getHeader("Accept-Encoding"))
+                : Compression.IDENTITY;
+
+        // Answer directly from the cache if possible (partial requests are always served from the file)
+        ResponseCache.Entry cached = cache.get(fullPath, encoding);
+        if (cached != null && isNotModified(request, cached.getETag(), cached.getLastModified())) {
+            return constructNotModifiedResponse(cached.getETag(), cached.getLastModified(), cached.isCompressible());
+        } else if (cached != null && rangeHeader == null) {
+            return cached.toResponse();
         }
+        long cacheGeneration = cache.generation();
 
-        // Skip rest of header
-        for (String line = in.readLine(); line != null && !line.equals(""); line = in.readLine());
+        // A file being replaced or deleted is either opened before or after the change, never in between
+        Lock lock = locks.get(fullPath).readLock();
+        lock.lock();
+        try {
+            // Check error cases, from the cached metadata of the file
+            FileMetadataCache.Metadata metadata = metadataCache.get(fullPath);
+            if (!metadata.exists()) {
+                return constructNotFoundResponse(resource);
+            } else if (metadata.isDirectory()) {
+                return constructNotAcceptableResponse("GET", resource);
+            } else if (!metadata.isReadable()) {
+                return constructForbiddenResponse(resource);
+            }
 
-        // Get resource path
-        String resource = requestArgs[1];
-        Path fullPath = Path.of(BASE_PATH + "/" + resource);
-        boolean existedBefore = Files.exists(fullPath);
+            String contentType = mimeTypes.get(fullPath);
+            boolean compressible = Compression.isCompressible(contentType);
+            Path source = fullPath;
+            long size = metadata.getSize();
+            long lastModified = metadata.getLastModified();
 
-        // Append the content of the request to the file (creates it if it doesn't exist)
-        try {
-            FileWriter fileWriter = new FileWriter(fullPath.toString(), true);
-            if (existedBefore) {
-                fileWriter.write('\n');
+            // Prefer an up-to-date precompressed file (e.g. index.html.gz) to compressing the file ourselves
+            boolean alreadyCompressed = false;
+            if (compressible && Compression.GZIP.equals(encoding)) {
+                Path precompressed = Path.of(fullPath + ".gz");
+                FileMetadataCache.Metadata precompressedMetadata = metadataCache.get(precompressed);
+                if (precompressedMetadata.isReadable() && !precompressedMetadata.isDirectory()
+                        && precompressedMetadata.getLastModified() >= lastModified) {
+                    source = precompressed;
+                    size = precompressedMetadata.getSize();
+                    lastModified = precompressedMetadata.getLastModified();
+                    alreadyCompressed = true;
+                }
             }
-            while (in.ready()) {
-                int c = in.read();
-                if (c == -1)
-                    break;
-                fileWriter.write(c);
+            if (!alreadyCompressed && !compressible) {
+                encoding = Compression.IDENTITY;
             }
-            fileWriter.flush();
-        } catch (IOException e) {
-            if (existedBefore) {
-                if (!Files.isReadable(fullPath) || !Files.isWritable(fullPath))
-                    return constructForbiddenResponse(resource);
-                if (Files.isDirectory(fullPath))
-                    return constructNotAcceptableResponse("PUT", resource);
+            String eTag = constructETag(size, lastModified, encoding);
+
+            // The client already has the current version of the file
+            if (isNotModified(request, eTag, lastModified)) {
+                return constructNotModifiedResponse(eTag, lastModified, compressible);
             }
-            throw e;
-        }
 
-        // Return nominal responses
-        if (existedBefore) {
-            return constructOKNoContentResponse();
-        } else {
-            return constructCreatedResponse(resource);
+            // Open the file and create a response that will send its content
+            FileChannel file = FileChannel.open(source, StandardOpenOption.READ);
+            try {
+                // Only send the requested ranges, if they are valid and still apply to the file
+                if (rangeHeader != null && isRangeStillValid(request, eTag, lastModified)) {
+                    List<ByteRange> ranges = ByteRange.parse(rangeHeader, size);
+                    if (ranges != null && ranges.isEmpty()) {
+                        file.close();
+                        return constructRangeNotSatisfiableResponse(resource, size);
+                    } else if (ranges != null) {
+                        return constructPartialContentResponse(contentType, file, ranges, eTag, lastModified);
+                    }
+                }
+
+                String[] representationHeader =
+                        constructRepresentationHeader(contentType, encoding, compressible, eTag, lastModified);
+                if (!cache.accepts(size) && !alreadyCompressed && !Compression.IDENTITY.equals(encoding)) {
+                    // Too big to be compressed in memory: compress it while sending it
+                    byte[] header = constructHeader(HttpStatus.OK, representationHeader);
+                    return new Response(header, Compression.compress(file, encoding));
+                } else if (!cache.accepts(size)) {
+                    return constructOKFileResponse(file, representationHeader);
+                }
+
+                // Small enough: read it once (compressing it if needed) and keep the response in the cache
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && file.read(buffer) >= 0) ;
+                file.close();
+                byte[] content = Arrays.copyOf(buffer.array(), buffer.position());
+                if (!alreadyCompressed && !Compression.IDENTITY.equals(encoding)) {
+                    content = Compression.compress(content, encoding);
+                }
+                byte[] header = constructHeader(HttpStatus.OK, representationHeader);
+                cache.put(fullPath, encoding, header, content, eTag, lastModified, compressible, cacheGeneration);
+                return new Response(header, content);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Implementation de la methode HTTP HEAD, renvoyant la meme en-tete qu'une methode GET appelee sur la meme
-     * ressource, sans le contenu d'une telle reponse.
-     * @param in Le contenu complet de la requete.
-     * @return La reponse a renvoyer au client.
-     * @throws IOException En cas ou d'erreur de lecture du contenu de la requete, ou d'erreur de manipulation du
-     * fichier.
+     * Indique si les plages demandees par une requete s'appliquent toujours au fichier, d'apres son en-tete If-Range :
+     * en son absence, ou s'il contient l'ETag du fichier ou la date de sa derniere modification. Sinon, le fichier a
+     * change depuis que le client en a reçu une partie et doit etre renvoye en entier.
+     * @param request La requete reçue.
+     * @param eTag L'ETag du fichier demande.
+     * @param lastModified La date de derniere modification du fichier (en millisecondes depuis l'epoch).
+     * @return true si les plages demandees peuvent etre envoyees.
      */
-    private Response head(BufferedReader in) throws IOException {
-        // Extract important headers info
-        String[] requestArgs = in.readLine().split(" ");
-        if (requestArgs.length != 3) {
-            return constructBadRequestResponse();
+    private boolean isRangeStillValid(Request request, String eTag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range requires a strong comparison: weak tags never match
+            return ifRange.equals(eTag);
         }
+        Long requested = parseHttpDate(ifRange);
+        return requested != null && requested / 1000 == lastModified / 1000;
+    }
 
-        // Skip rest of header
-        String resource = requestArgs[1];
-        Path fullPath = Path.of(BASE_PATH + "/" + resource);
-
-        // Check error cases
-        Response response;
-        if (!Files.exists(fullPath)) {
-            response = constructNotFoundResponse(resource);
-        } else if (Files.isDirectory(fullPath)) {
-            response = constructNotAcceptableResponse("GET", resource);
-        } else if (!Files.isReadable(fullPath)) {
-            response = constructForbiddenResponse(resource);
-        } else {
-            response = constructOKResponse(Files.probeContentType(fullPath), new byte[] {});
+    /**
+     * Indique si le client possede deja la version courante du fichier, d'apres les en-tetes If-None-Match (s'il est
+     * present) ou If-Modified-Since de sa requete.
+     * @param request La requete reçue.
+     * @param eTag L'ETag du fichier demande.
+     * @param lastModified La date de derniere modification du fichier (en millisecondes depuis l'epoch).
+     * @return true si une reponse 304 (NOT MODIFIED) doit etre renvoyee.
+     */
+    private boolean isNotModified(Request request, String eTag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-None-Match uses a weak comparison: the W/ prefixes are ignored
+            String weakETag = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(weakETag)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
-        // Return nominal response WITHOUT CONTENT (it's the purpose of the HEAD method)
-        response.setContent(new byte[] {});
-        return response;
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            Long since = parseHttpDate(ifModifiedSince);
+            return since != null && lastModified / 1000 <= since / 1000;
+        }
+        return false;
     }
 
     /**
-     * Implementation de la methode HTTP PUT, permettant de remplacer le contenu d'un fichier avec le contenu de la
-     * requete (ou de creer le fichier s'il n'existe pas).
-     * @param in Le contenu complet de la requete.
-     * @return La reponse a renvoyer au client.
-     * @throws IOException En cas ou d'erreur de lecture du contenu de la requete, ou d'erreur de manipulation du
-     * fichier.
+     * Construit l'ETag d'un fichier a partir de sa taille et de sa date de derniere modification, ce qui evite d'avoir
+     * a lire son contenu. Chaque encodage du fichier a son propre ETag.
+     * @param size La taille du fichier.
+     * @param lastModified La date de derniere modification du fichier (en millisecondes depuis l'epoch).
+     * @param encoding L'encodage du contenu envoye.
+     * @return L'ETag du fichier (entre guillemets).
      */
-    private Response put(BufferedReader in) throws IOException {
-        // Extract important headers info
-        String[] requestArgs = in.readLine().split(" ");
-        if (requestArgs.length != 3) {
-            return constructBadRequestResponse();
-        }
-
-        // Skip rest of header
-        for (String line = in.readLine(); line != null && !line.equals(""); line = in.readLine());
+    private static String constructETag(long size, long lastModified, String encoding) {
+        String suffix = Compression.IDENTITY.equals(encoding) ? "" : "-" + encoding;
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + suffix + "\"";
+    }
 
-        // Get resource path
-        String resource = requestArgs[1];
-        Path fullPath = Path.of(BASE_PATH + "/" + resource);
-        boolean existedBefore = Files.exists(fullPath);
+    /**
+     * Formate une date selon le format des dates HTTP (par exemple "Sun, 06 Nov 1994 08:49:37 GMT").
+     * @param millis La date, en millisecondes depuis l'epoch.
+     * @return La date formatee.
+     */
+    private static String formatHttpDate(long millis) {
+        return HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
 
-        // Write the content of the request in the file (overwriting it if it already exists)
+    /**
+     * Lit une date au format des dates HTTP.
+     * @param date La date a lire.
+     * @return La date en millisecondes depuis l'epoch, ou null si elle est mal formee.
+     */
+    private static Long parseHttpDate(String date) {
         try {
-            BufferedOutputStream fileOut = new BufferedOutputStream(new FileOutputStream(fullPath.toString()));
-            while (in.ready()) {
-                int c = in.read();
-                if (c == -1)
-                    break;
-                fileOut.write(c);
-            }
-            fileOut.flush();
-        } catch (IOException e) {
-            if (existedBefore) {
-                if (!Files.isReadable(fullPath) || !Files.isWritable(fullPath))
-                    return constructForbiddenResponse(resource);
-                if (Files.isDirectory(fullPath))
-                    return constructNotAcceptableResponse("PUT", resource);
-            }
-            throw e;
-        }
-
-        // Return nominal responses
-        if (existedBefore) {
-            return constructOKNoContentResponse();
-        } else {
-            return constructCreatedResponse(resource);
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
         }
     }
 
     /**
-     * Implementation de la methode HTTP DELETE, permettant de supprimer une ressource (si elle peut etre supprimee).
-     * @param in Le contenu complet de la requete.
+     * Implementation de la methode HTTP POST. Note implementation est simpliste, car elle permet simplement d'ajouter a
+     * la fin d'un fichier le contenu passe en corps de requete (ou de creer le fichier avec ce contenu s'il n'existe
+     * pas deja).
+     * @param request La requete reçue.
      * @return La reponse a renvoyer au client.
-     * @throws IOException En cas ou d'erreur de lecture du contenu de la requete, ou d'erreur de manipulation du
-     * fichier.
+     * @throws IOException En cas d'erreur de manipulation du fichier.
      */
-    private Response delete(BufferedReader in) throws IOException {
-        // Extract important headers info
-        String[] requestArgs = in.readLine().split(" ");
-        if (requestArgs.length != 3) {
-            return constructBadRequestResponse();
-        }
-
+    private Response post(Request request) throws IOException {
         // Get resource path
-        String resource = requestArgs[1];
+        String resource = request.getResource();
         Path fullPath = Path.of(BASE_PATH + "/" + resource);
 
-        // Check error cases
-        if (!Files.exists(fullPath)) {
-            return constructNotFoundResponse(resource);
-        } else if (!Files.isReadable(fullPath)) {
-            return constructForbiddenResponse(resource);
-        }
+        // Receive the body before locking the file, so that a slow client does not hold back the other requests on
+        // it: a small body stays in memory, a bigger one is staged in a temporary file
+        InputStream body = request.getBodyStream();
+        byte[] buffer = new byte[BODY_BUFFER_SIZE];
+        int length = body.readNBytes(buffer, 0, buffer.length);
+        Path staged = length == buffer.length ? stageBody(buffer, body) : null;
 
-        // Delete the file
+        Lock lock = locks.get(fullPath).writeLock();
+        lock.lock();
         try {
-            Files.delete(fullPath);
-        } catch (DirectoryNotEmptyException e) {
-            return constructNotAcceptableResponse("DELETE", resource);
-        }
+            boolean existedBefore = Files.exists(fullPath);
+
+            // Append the content of the request to the file (creates it if it doesn't exist)
+            try (FileChannel file = FileChannel.open(fullPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer separator = ByteBuffer.wrap(existedBefore ? NEW_LINE : NO_BYTES);
+                if (staged == null) {
+                    writeFully(file, separator, ByteBuffer.wrap(buffer, 0, length));
+                } else {
+                    writeFully(file, separator);
+                    appendFile(staged, file);
+                }
+            } catch (IOException e) {
+                if (existedBefore) {
+                    if (!Files.isReadable(fullPath) || !Files.isWritable(fullPath))
+                        return constructForbiddenResponse(resource);
+                    if (Files.isDirectory(fullPath))
+                        return constructNotAcceptableResponse("PUT", resource);
+                }
+                throw e;
+            } finally {
+                invalidate(fullPath);
+            }
 
-        // Return nominal response
-        return constructOKNoContentResponse();
+            // Return nominal responses
+            if (existedBefore) {
+                return constructOKNoContentResponse();
+            } else {
+                return constructCreatedResponse(resource);
+            }
+        } finally {
+            lock.unlock();
+            if (staged != null) {
+                deleteQuietly(staged);
+            }
+        }
     }
 
     /**
-     * Renvoie une reponse BAD REQUEST entierement construite.
-     * @return Une reponse BAD REQUEST.
+     * Oublie tout ce que le serveur garde en memoire d'un fichier (metadonnees et reponses en cache), a appeler apres
+     * chaque modification du fichier par le serveur.
+     * @param path Le chemin du fichier modifie.
      */
-    private Response badRequest() {
+    private void invalidate(Path path) {
+        metadataCache.invalidate(path);
+        cache.invalidate(path);
+    }
+
+    /**
+     * Copie le corps d'une requete dans un fichier au fur et a mesure de sa reception, par blocs, sans le charger en
+     * memoire ni le decoder en caracteres.
+     * @param request La requete dont copier le corps.
+     * @param fileOut Le stream du fichier dans lequel ecrire.
+     * @throws IOException En cas d'erreur de lecture ou d'ecriture, ou si le corps est incomplet.
+     */
+    private static void writeBody(Request request, OutputStream fileOut) throws IOException {
+        copy(request.getBodyStream(), fileOut);
+    }
+
+    /**
+     * Copie un stream dans un autre par blocs, jusqu'a la fin du premier.
+     * @param in Le stream a lire.
+     * @param out Le stream dans lequel ecrire.
+     * @throws IOException En cas d'erreur de lecture ou d'ecriture.
+     */
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BODY_BUFFER_SIZE];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Recopie dans un fichier temporaire (du repertoire temporaire du systeme) la fin d'un corps de requete trop gros
+     * pour etre garde en memoire.
+     * @param received Les octets du corps deja reçus.
+     * @param rest Le stream du reste du corps.
+     * @return Le chemin du fichier temporaire, a supprimer par l'appelant.
+     * @throws IOException En cas d'erreur de lecture ou d'ecriture, ou si le corps est incomplet.
+     */
+    private static Path stageBody(byte[] received, InputStream rest) throws IOException {
+        Path staged = Files.createTempFile("webserver-", ".body");
+        try (OutputStream out = Files.newOutputStream(staged)) {
+            out.write(received);
+            copy(rest, out);
+        } catch (IOException e) {
+            deleteQuietly(staged);
+            throw e;
+        }
+        return staged;
+    }
+
+    /**
+     * Ecrit le corps d'une requete dans un fichier temporaire cache, a cote du fichier qu'il doit remplacer (donc sur
+     * le meme systeme de fichiers, pour qu'il puisse y etre deplace atomiquement).
+     * @param request La requete dont ecrire le corps.
+     * @param target Le fichier que le corps doit remplacer.
+     * @return Le chemin du fichier temporaire.
+     * @throws IOException En cas d'erreur de lecture ou d'ecriture, ou si le corps est incomplet.
+     */
+    private static Path stageBodyNextTo(Request request, Path target) throws IOException {
+        Path staged = target.resolveSibling(
+                "." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try (OutputStream out = Files.newOutputStream(staged, StandardOpenOption.CREATE_NEW)) {
+            writeBody(request, out);
+        } catch (IOException e) {
+            deleteQuietly(staged);
+            throw e;
+        }
+        return staged;
+    }
+
+    /**
+     * Ecrit entierement des buffers dans un fichier, dans l'ordre.
+     * @param file Le fichier ouvert en ecriture.
+     * @param buffers Les buffers a ecrire.
+     * @throws IOException En cas d'erreur d'ecriture.
+     */
+    private static void writeFully(FileChannel file, ByteBuffer... buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            file.write(buffers);
+        }
+    }
+
+    /**
+     * Ecrit entierement un buffer dans un fichier, a la position passee en parametre (sans changer la position courante
+     * du fichier).
+     * @param file Le fichier ouvert en ecriture.
+     * @param position La position dans le fichier du premier octet du buffer.
+     * @param buffer Le buffer a ecrire.
+     * @throws IOException En cas d'erreur d'ecriture.
+     */
+    private static void writeFully(FileChannel file, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += file.write(buffer, position);
+        }
+    }
+
+    /**
+     * Copie le contenu d'un fichier dans un autre a la position passee en parametre, sans le faire passer par la
+     * memoire de la JVM.
+     * @param source Le fichier a recopier.
+     * @param file Le fichier ouvert en ecriture.
+     * @param position La position dans le fichier du premier octet copie.
+     * @throws IOException En cas d'erreur de lecture ou d'ecriture.
+     */
+    private static void copyFile(Path source, FileChannel file, long position) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long copied = 0; copied < size; ) {
+                copied += file.transferFrom(in, position + copied, size - copied);
+            }
+        }
+    }
+
+    /**
+     * Ajoute le contenu d'un fichier a la fin d'un autre, sans le faire passer par la memoire de la JVM.
+     * @param source Le fichier a recopier.
+     * @param file Le fichier ouvert en ajout.
+     * @throws IOException En cas d'erreur de lecture ou d'ecriture.
+     */
+    private static void appendFile(Path source, FileChannel file) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long position = 0; position < size; ) {
+                position += in.transferTo(position, size - position, file);
+            }
+        }
+    }
+
+    /**
+     * Supprime un fichier temporaire s'il existe encore, en ignorant les erreurs.
+     * @param path Le chemin du fichier.
+     */
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Suppression du fichier temporaire '" + path + "' impossible : " + e);
+        }
+    }
+
+    /**
+     * Implementation de la methode HTTP HEAD, renvoyant la meme en-tete qu'une methode GET appelee sur la meme
+     * ressource, sans le contenu d'une telle reponse.
+     * @param request La requete reçue.
+     * @return La reponse a renvoyer au client.
+     * @throws IOException En cas d'erreur de manipulation du fichier.
+     */
+    private Response head(Request request) throws IOException {
+        Response response = get(request, false);
+
+        // Return nominal response WITHOUT CONTENT (it's the purpose of the HEAD method)
+        response.dropContent();
+        return response;
+    }
+
+    /**
+     * Implementation de la methode HTTP PUT, permettant de remplacer le contenu d'un fichier avec le contenu de la
+     * requete (ou de creer le fichier s'il n'existe pas).
+     * @param request La requete reçue.
+     * @return La reponse a renvoyer au client.
+     * @throws IOException En cas d'erreur de manipulation du fichier.
+     */
+    private Response put(Request request) throws IOException {
+        // Get resource path
+        String resource = request.getResource();
+        Path fullPath = Path.of(BASE_PATH + "/" + resource);
+
+        // Receive the content of the request before locking the file, so that a slow client does not hold back the
+        // other requests on it
+        Path staged;
+        try {
+            staged = stageBodyNextTo(request, fullPath);
+        } catch (AccessDeniedException e) {
+            return constructForbiddenResponse(resource);
+        }
+
+        Lock lock = locks.get(fullPath).writeLock();
+        lock.lock();
+        try {
+            boolean existedBefore = Files.exists(fullPath);
+            if (existedBefore) {
+                if (!Files.isReadable(fullPath) || !Files.isWritable(fullPath))
+                    return constructForbiddenResponse(resource);
+                if (Files.isDirectory(fullPath))
+                    return constructNotAcceptableResponse("PUT", resource);
+            }
+
+            // Replace the file at once (overwriting it if it already exists): a request reading it gets either its
+            // old or its new content, never a mix of both
+            try {
+                Files.move(staged, fullPath, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                invalidate(fullPath);
+            }
+
+            // Return nominal responses
+            if (existedBefore) {
+                return constructOKNoContentResponse();
+            } else {
+                return constructCreatedResponse(resource);
+            }
+        } finally {
+            lock.unlock();
+            deleteQuietly(staged);
+        }
+    }
+
+    /**
+     * Implementation de la methode HTTP PATCH, permettant de remplacer une partie d'un fichier existant par le contenu
+     * de la requete, sans renvoyer tout le fichier. La position du morceau est donnee par l'en-tete Content-Range
+     * (par exemple "bytes 500-999/*") et sa taille doit etre celle du corps. Le morceau peut prolonger le fichier,
+     * mais doit commencer au plus a sa fin, pour ne pas y laisser de trou : sinon, la reponse est 416. Seuls les octets
+     * du morceau sont ecrits, a leur position dans le fichier (une requete lisant le fichier pendant l'ecriture attend
+     * donc sa fin, mais le fichier n'est pas remplace d'un coup comme avec PUT).
+     * @param request La requete reçue.
+     * @return La reponse a renvoyer au client.
+     * @throws IOException En cas d'erreur de manipulation du fichier.
+     */
+    private Response patch(Request request) throws IOException {
+        // Get resource path
+        String resource = request.getResource();
+        Path fullPath = Path.of(BASE_PATH + "/" + resource);
+
+        String contentRange = request.getHeader("Content-Range");
+        ByteRange range = contentRange != null ? ByteRange.parseContentRange(contentRange) : null;
+        if (range == null) {
+            return constructBadRequestResponse();
+        }
+
+        // Receive the body before locking the file, so that a slow client does not hold back the other requests on
+        // it: a small body stays in memory, a bigger one is staged in a temporary file
+        InputStream body = request.getBodyStream();
+        byte[] buffer = new byte[BODY_BUFFER_SIZE];
+        int length = body.readNBytes(buffer, 0, buffer.length);
+        Path staged = length == buffer.length ? stageBody(buffer, body) : null;
+
+        try {
+            long received = staged == null ? length : Files.size(staged);
+            if (received != range.length()) {
+                return constructBadRequestResponse();
+            }
+
+            Lock lock = locks.get(fullPath).writeLock();
+            lock.lock();
+            try {
+                // Check error cases
+                if (!Files.exists(fullPath)) {
+                    return constructNotFoundResponse(resource);
+                } else if (Files.isDirectory(fullPath)) {
+                    return constructNotAcceptableResponse("PATCH", resource);
+                } else if (!Files.isReadable(fullPath) || !Files.isWritable(fullPath)) {
+                    return constructForbiddenResponse(resource);
+                }
+
+                // Write the bytes of the request at their position in the file
+                try (FileChannel file = FileChannel.open(fullPath, StandardOpenOption.WRITE)) {
+                    long size = file.size();
+                    if (range.getFirst() > size) {
+                        return constructRangeNotSatisfiableResponse(resource, size);
+                    }
+                    if (staged == null) {
+                        writeFully(file, range.getFirst(), ByteBuffer.wrap(buffer, 0, length));
+                    } else {
+                        copyFile(staged, file, range.getFirst());
+                    }
+                } finally {
+                    invalidate(fullPath);
+                }
+
+                // Return nominal response
+                return constructOKNoContentResponse();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            if (staged != null) {
+                deleteQuietly(staged);
+            }
+        }
+    }
+
+    /**
+     * Traite une requete sur le chemin des sessions de televersement (voir {@link ServerConfig#getUploadsPath()}) :
+     * <ul>
+     *     <li>POST sur ce chemin ouvre une session vers la ressource donnee par l'en-tete Upload-Target, avec la taille
+     *     eventuellement donnee par l'en-tete Upload-Length (reponse 201, l'en-tete Location donnant le chemin de la
+     *     session) ;</li>
+     *     <li>PUT sur le chemin de la session envoie un morceau du fichier, place selon l'en-tete Content-Range (par
+     *     exemple "bytes 0-1048575/*") ;</li>
+     *     <li>GET (ou HEAD) sur le chemin de la session renvoie les plages deja reçues ;</li>
+     *     <li>POST sur le chemin de la session la valide : le fichier cible est remplace d'un coup par le fichier
+     *     reçu, s'il est complet (reponse 409 sinon). Sa taille doit avoir ete donnee par l'en-tete Upload-Length, a
+     *     l'ouverture ou a la validation de la session (reponse 400 sinon) ;</li>
+     *     <li>DELETE sur le chemin de la session l'abandonne.</li>
+     * </ul>
+     * @param request La requete reçue.
+     * @return La reponse a renvoyer au client.
+     * @throws IOException En cas d'erreur de manipulation d'un fichier.
+     */
+    private Response upload(Request request) throws IOException {
+        String resource = request.getResource();
+        HttpMethod method = request.getMethod();
+        String uploadsPath = config.getUploadsPath();
+        if (resource.length() <= uploadsPath.length() + 1) {
+            return method == HttpMethod.POST
+                    ? openUpload(request)
+                    : constructNotAcceptableResponse(method.name(), resource);
+        }
+
+        UploadSessions.Session session = uploads.get(resource.substring(uploadsPath.length() + 1));
+        if (session == null) {
+            return constructNotFoundResponse(resource);
+        }
+        return switch (method) {
+            case PUT -> putUploadChunk(request, session);
+            case GET -> constructUploadStatusResponse(session);
+            case HEAD -> {
+                Response response = constructUploadStatusResponse(session);
+                response.dropContent();
+                yield response;
+            }
+            case POST -> commitUpload(request, session);
+            case DELETE -> abortUpload(request, session);
+            default -> constructNotAcceptableResponse(method.name(), resource);
+        };
+    }
+
+    /**
+     * Ouvre une session de televersement vers la ressource donnee par l'en-tete Upload-Target de la requete.
+     * @param request La requete reçue.
+     * @return La reponse a renvoyer au client.
+     * @throws IOException En cas d'erreur de creation du fichier temporaire.
+     */
+    private Response openUpload(Request request) throws IOException {
+        String target = request.getHeader("Upload-Target");
+        if (target == null || target.isBlank()) {
+            return constructBadRequestResponse();
+        }
+        target = target.startsWith("/") ? target.trim() : "/" + target.trim();
+        long length;
+        try {
+            length = parseUploadLength(request);
+        } catch (NumberFormatException e) {
+            return constructBadRequestResponse();
+        }
+
+        Path fullPath = Path.of(BASE_PATH + "/" + target);
+        if (Files.isDirectory(fullPath)) {
+            return constructNotAcceptableResponse("PUT", target);
+        }
+        try {
+            return constructUploadCreatedResponse(uploads.open(target, fullPath, length));
+        } catch (NoSuchFileException e) {
+            return constructNotFoundResponse(target);
+        } catch (AccessDeniedException e) {
+            return constructForbiddenResponse(target);
+        }
+    }
+
+    /**
+     * Ecrit un morceau du fichier d'une session de televersement, place selon l'en-tete Content-Range de la requete.
+     * Les morceaux d'une meme session peuvent etre envoyes en parallele.
+     * @param request La requete reçue.
+     * @param session La session de televersement.
+     * @return La reponse a renvoyer au client.
+     * @throws IOException En cas d'erreur de lecture du corps ou d'ecriture du fichier temporaire.
+     */
+    private Response putUploadChunk(Request request, UploadSessions.Session session) throws IOException {
+        String contentRange = request.getHeader("Content-Range");
+        ByteRange range = contentRange != null ? ByteRange.parseContentRange(contentRange) : null;
+        if (range == null) {
+            return constructBadRequestResponse();
+        }
+
+        Lock lock = session.getLock().readLock();
+        lock.lock();
+        try {
+            if (session.isClosed()) {
+                return constructNotFoundResponse(request.getResource());
+            }
+            long length = session.getLength();
+            if (length >= 0 && range.getLast() >= length) {
+                return constructRangeNotSatisfiableResponse(request.getResource(), length);
+            }
+
+            // Write the chunk as it is received: what was written before a dropped connection is kept
+            InputStream body = request.getBodyStream();
+            long written = session.write(range.getFirst(), range.length(), body);
+            if (written < range.length() || body.read() >= 0) {
+                return constructBadRequestResponse();
+            }
+            return constructOKNoContentResponse();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Valide une session de televersement : si le fichier a ete entierement reçu, il remplace d'un coup le fichier
+     * cible (comme avec PUT). La taille du fichier doit etre connue : donnee par l'en-tete Upload-Length a l'ouverture
+     * de la session, ou a ce moment.
+     * @param request La requete reçue.
+     * @param session La session de televersement.
+     * @return La reponse a renvoyer au client.
+     * @throws IOException En cas d'erreur de deplacement du fichier.
+     */
+    private Response commitUpload(Request request, UploadSessions.Session session) throws IOException {
+        Lock sessionLock = session.getLock().writeLock();
+        sessionLock.lock();
+        try {
+            if (session.isClosed()) {
+                return constructNotFoundResponse(request.getResource());
+            }
+            long length;
+            try {
+                length = parseUploadLength(request);
+            } catch (NumberFormatException e) {
+                return constructBadRequestResponse();
+            }
+            if (length >= 0 && session.getLength() >= 0 && length != session.getLength()) {
+                return constructBadRequestResponse();
+            } else if (length >= 0) {
+                session.setLength(length);
+            } else if (session.getLength() < 0) {
+                // Without the expected length, a file missing its last chunks would look complete
+                return constructBadRequestResponse();
+            }
+            if (!session.isComplete()) {
+                return constructConflictResponse(request.getResource());
+            }
+
+            String resource = session.getTarget();
+            Path fullPath = session.getTargetPath();
+            Lock lock = locks.get(fullPath).writeLock();
+            lock.lock();
+            try {
+                boolean existedBefore = Files.exists(fullPath);
+                if (existedBefore) {
+                    if (!Files.isReadable(fullPath) || !Files.isWritable(fullPath))
+                        return constructForbiddenResponse(resource);
+                    if (Files.isDirectory(fullPath))
+                        return constructNotAcceptableResponse("PUT", resource);
+                }
+
+                // Replace the file at once, like PUT
+                session.close();
+                uploads.remove(session);
+                try {
+                    Files.move(session.getStaged(), fullPath, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    deleteQuietly(session.getStaged());
+                    throw e;
+                } finally {
+                    invalidate(fullPath);
+                }
+
+                // Return nominal responses
+                if (existedBefore) {
+                    return constructOKNoContentResponse();
+                } else {
+                    return constructCreatedResponse(resource);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /**
+     * Abandonne une session de televersement et supprime son fichier temporaire.
+     * @param request La requete reçue.
+     * @param session La session de televersement.
+     * @return La reponse a renvoyer au client.
+     */
+    private Response abortUpload(Request request, UploadSessions.Session session) {
+        Lock lock = session.getLock().writeLock();
+        lock.lock();
+        try {
+            if (session.isClosed()) {
+                return constructNotFoundResponse(request.getResource());
+            }
+            session.close();
+            uploads.remove(session);
+            deleteQuietly(session.getStaged());
+            return constructOKNoContentResponse();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lit l'en-tete Upload-Length d'une requete sur une session de televersement.
+     * @param request La requete reçue.
+     * @return La taille annoncee du fichier, ou -1 si l'en-tete est absent.
+     * @throws NumberFormatException Si la taille est invalide.
+     */
+    private static long parseUploadLength(Request request) {
+        String lengthHeader = request.getHeader("Upload-Length");
+        if (lengthHeader == null) {
+            return -1;
+        }
+        long length = Long.parseLong(lengthHeader.trim());
+        if (length < 0) {
+            throw new NumberFormatException("Upload-Length negatif : " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Implementation de la methode HTTP DELETE, permettant de supprimer une ressource (si elle peut etre supprimee).
+     * @param request La requete reçue.
+     * @return La reponse a renvoyer au client.
+     * @throws IOException En cas d'erreur de manipulation du fichier.
+     */
+    private Response delete(Request request) throws IOException {
+        // Get resource path
+        String resource = request.getResource();
+        Path fullPath = Path.of(BASE_PATH + "/" + resource);
+
+        Lock lock = locks.get(fullPath).writeLock();
+        lock.lock();
+        try {
+            // Check error cases
+            if (!Files.exists(fullPath)) {
+                return constructNotFoundResponse(resource);
+            } else if (!Files.isReadable(fullPath)) {
+                return constructForbiddenResponse(resource);
+            }
+
+            // Delete the file
+            try {
+                Files.delete(fullPath);
+            } catch (DirectoryNotEmptyException e) {
+                return constructNotAcceptableResponse("DELETE", resource);
+            } finally {
+                invalidate(fullPath);
+            }
+
+            // Return nominal response
+            return constructOKNoContentResponse();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Renvoie une reponse BAD REQUEST entierement construite, pour une requete rejetee avant d'avoir pu etre traitee.
+     * @return Une reponse BAD REQUEST.
+     */
+    Response badRequest() {
+        metrics.recordRejected(HttpStatus.BAD_REQUEST.getCode());
         return constructBadRequestResponse();
     }
 
+    /**
+     * Renvoie une reponse PAYLOAD TOO LARGE entierement construite, pour une requete rejetee car son corps est trop
+     * gros pour etre reçu.
+     * @return Une reponse PAYLOAD TOO LARGE.
+     */
+    Response payloadTooLarge() {
+        metrics.recordRejected(HttpStatus.PAYLOAD_TOO_LARGE.getCode());
+        return constructPayloadTooLargeResponse();
+    }
+
+    /**
+     * Renvoie une reponse SERVICE UNAVAILABLE entierement construite, pour une requete rejetee car les threads de
+     * traitement ne peuvent pas la prendre en charge (leur file d'attente est pleine).
+     * @return Une reponse SERVICE UNAVAILABLE.
+     */
+    Response serviceUnavailable() {
+        metrics.connectionShed();
+        return constructServiceUnavailableResponse();
+    }
+
     /**
      * Renvoie une reponse NOT IMPLEMENTED indiquant que la methode HTTP passee en parametre n'est pas implementee.
      * @param method La methode HTTP non implementee.
@@ -413,74 +1446,532 @@ public class WebServer {
     // #-- The server itself
 
     /**
-     * Lance le serveur HTTP pour qu'il ecoute les connexions de client sur le port passe en parametre.
+     * Lance le serveur HTTP pour qu'il ecoute les connexions de client sur le port passe en parametre, avec le moteur
+     * choisi dans la configuration (bloquant ou NIO).
      * @param port Le port sur lequel ecouter les connexions.
      */
     protected void start(int port) {
-        ServerSocket s;
+        LOG.info("Webserver starting up on port " + port);
+        LOG.info("(press ctrl-c to exit)");
+        metrics.register(port);
 
-        System.out.println("Webserver starting up on port " + port);
-        System.out.println("(press ctrl-c to exit)");
+        if (config.getEngine() == ServerConfig.Engine.NIO) {
+            try {
+                new NioEngine(this, config).start(port);
+            } catch (IOException e) {
+                LOG.error("Error: " + e);
+            }
+        } else {
+            startBlocking(port);
+        }
+    }
+
+    /**
+     * Lance le moteur bloquant du serveur : chaque connexion acceptee est confiee aux threads de traitement, de sorte
+     * qu'un client lent ne bloque pas les autres. Avec plusieurs sockets d'ecoute (voir
+     * {@link ServerConfig#getAcceptors()}), chacun a son propre thread d'acceptation et ses propres threads de
+     * traitement, qui se partagent ceux de la configuration.
+     * @param port Le port sur lequel ecouter les connexions.
+     */
+    private void startBlocking(int port) {
+        List<ServerSocketChannel> listeners;
         try {
-            // create the main server socket
-            s = new ServerSocket(port);
+            // create the server sockets (channels, so that files can be sent with transferTo)
+            listeners = openListeners(port, config.getAcceptors());
         } catch (Exception e) {
-            System.out.println("Error: " + e);
+            LOG.error("Error: " + e);
             return;
         }
 
-        System.out.println("Waiting for connection");
+        reaper = new ConnectionReaper("webserver-reaper", DEADLINE_CHECK_PERIOD, metrics::connectionTimedOut);
+        streamWorkers = createStreamWorkers();
+        int groups = listeners.size();
+        List<ExecutorService> workers = new ArrayList<>(groups);
+        for (int i = 0; i < groups; i++) {
+            workers.add(createWorkers(i, groups));
+        }
+        LOG.info("Waiting for connection" + (groups > 1 ? " (" + groups + " acceptors)" : ""));
+        for (int i = 1; i < groups; i++) {
+            ServerSocketChannel listener = listeners.get(i);
+            ExecutorService groupWorkers = workers.get(i);
+            new Thread(() -> acceptForever(listener, groupWorkers), "webserver-acceptor-" + i).start();
+        }
+        acceptForever(listeners.get(0), workers.get(0));
+    }
+
+    /**
+     * Ouvre les sockets d'ecoute du serveur. S'il en faut plusieurs, ils sont tous lies au meme port avec l'option
+     * SO_REUSEPORT, et le noyau repartit les nouvelles connexions entre eux : chaque thread d'acceptation attend alors
+     * sur son propre socket, au lieu que tous se disputent la file d'un socket unique. Si le systeme ne supporte pas
+     * cette option, un seul socket est ouvert.
+     * @param port Le port sur lequel ecouter les connexions.
+     * @param count Le nombre de sockets souhaite.
+     * @return Les sockets d'ecoute (au moins un).
+     * @throws IOException Si un socket n'a pas pu etre ouvert.
+     */
+    static List<ServerSocketChannel> openListeners(int port, int count) throws IOException {
+        List<ServerSocketChannel> listeners = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocketChannel listener = ServerSocketChannel.open();
+                listeners.add(listener);
+                if (count > 1) {
+                    if (!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        LOG.warn("SO_REUSEPORT non supporte : un seul socket d'ecoute au lieu de " + count);
+                        count = 1;
+                    } else {
+                        listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                }
+                listener.bind(new InetSocketAddress(port));
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+            throw e;
+        }
+        return listeners;
+    }
+
+    /**
+     * Accepte indefiniment les connexions d'un socket d'ecoute, et confie chacune a des threads de traitement.
+     * @param listener Le socket d'ecoute.
+     * @param workers Les threads de traitement de ce socket.
+     */
+    private void acceptForever(ServerSocketChannel listener, ExecutorService workers) {
         for (;;) {
-            // wait for a connection
-            try (Socket remote = s.accept()){
+            // wait for a connection, then hand it to a worker
+            try {
+                SocketChannel remote = listener.accept();
+                long acceptedAt = System.nanoTime();
+                try {
+                    workers.execute(() -> handleConnection(remote, System.nanoTime() - acceptedAt));
+                } catch (RejectedExecutionException e) {
+                    shedConnection(remote);
+                }
+            } catch (Exception e) {
+                LOG.error("Erreur lors de l'acceptation d'une connexion : ", e);
+            }
+        }
+    }
+
+    /**
+     * Cree les threads de traitement d'un socket d'ecoute selon la configuration du serveur : un thread virtuel par
+     * connexion si aucun nombre n'est impose et que la JVM les supporte, sinon un nombre fixe de threads avec une file
+     * d'attente bornee, les threads et la file de la configuration etant partages entre les sockets d'ecoute. Lorsque
+     * cette file est pleine, la connexion est rejetee (voir {@link #shedConnection(SocketChannel)}). Le moteur NIO
+     * utilise un seul groupe de ces threads pour traiter ses requetes.
+     * @param group L'indice du socket d'ecoute.
+     * @param groups Le nombre de sockets d'ecoute.
+     * @return Le service d'execution des connexions.
+     */
+    ExecutorService createWorkers(int group, int groups) {
+        int nbWorkers = workerThreads;
+        if (nbWorkers <= 0) {
+            try {
+                if (group == 0) {
+                    LOG.info("Using one virtual thread per connection");
+                }
+                return (ExecutorService) virtualThreadExecutor().invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Threads virtuels inutilisables", e);
+            }
+        }
 
-                // remote is now the connected socket
-                System.out.println("Connection.");
-                BufferedReader in = new BufferedReader(new InputStreamReader(remote.getInputStream()));
+        if (group == 0) {
+            LOG.info("Using " + nbWorkers + " worker threads");
+        }
+        // Share the threads and the queue between the groups, the first ones taking the remainder
+        int groupWorkers = Math.max(1, nbWorkers / groups + (group < nbWorkers % groups ? 1 : 0));
+        int groupQueue = Math.max(1, config.getQueueSize() / groups + (group < config.getQueueSize() % groups ? 1 : 0));
+        String prefix = groups > 1 ? "webserver-worker-" + group + "-" : "webserver-worker-";
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                groupWorkers, groupWorkers,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(groupQueue),
+                r -> new Thread(r, prefix + threadCount.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
 
-                // Analyze the header to use the proper HTTP service
-                in.mark(512);
-                String str = in.readLine();
-                in.reset();
+    /**
+     * Cree les threads traitant les flux HTTP/2, avec les memes bornes que les threads de traitement des connexions
+     * (nombre de threads et taille de la file d'attente). Ils en sont separes car les threads des connexions HTTP/2
+     * attendent les trames de leurs flux : partager leurs threads pourrait les bloquer tous. Un flux qui ne trouve pas
+     * de place dans la file est refuse (voir {@link Http2Connection}).
+     * @return Le service d'execution des flux.
+     */
+    private ExecutorService createStreamWorkers() {
+        if (workerThreads <= 0) {
+            try {
+                return (ExecutorService) virtualThreadExecutor().invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Threads virtuels inutilisables", e);
+            }
+        }
 
-                // Get the response to send
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                workerThreads, workerThreads,
+                STREAM_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getQueueSize()),
+                r -> new Thread(r, "webserver-h2-stream-" + threadCount.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        // Most servers see little HTTP/2 traffic: don't keep the threads once idle
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Determine le nombre de threads de traitement : celui de la configuration, ou, s'il n'est pas impose, un thread
+     * virtuel par connexion si la JVM les supporte et sinon quatre threads par coeur (au moins 16).
+     * @param config La configuration du serveur.
+     * @return Le nombre de threads de traitement, ou 0 pour un thread virtuel par connexion.
+     */
+    private static int resolveWorkerThreads(ServerConfig config) {
+        if (config.getWorkers() > 0) {
+            return config.getWorkers();
+        }
+        return virtualThreadExecutor() != null ? 0 : Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @return La methode creant un service d'execution a un thread virtuel par tache, ou null si la JVM ne les supporte
+     * pas.
+     */
+    private static Method virtualThreadExecutor() {
+        if (Runtime.version().feature() < 21) {
+            // Before Java 21, virtual threads are a preview feature that fails at runtime unless explicitly enabled
+            return null;
+        }
+        try {
+            // Looked up reflectively so that the server still runs on JVMs without virtual threads
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Refuse une connexion que les threads de traitement ne peuvent pas prendre en charge : une reponse 503 est
+     * envoyee depuis le thread d'acceptation, sans lire la requete, puis la connexion est fermee. La reponse est assez
+     * courte pour tenir dans le buffer d'envoi du socket, si bien que son envoi ne bloque pas l'acceptation.
+     * @param channel Le canal connecte au client.
+     */
+    private void shedConnection(SocketChannel channel) {
+        metrics.connectionShed();
+        try (SocketChannel remote = channel; Response response = constructServiceUnavailableResponse()) {
+            response.setKeepAlive(false);
+            while (!response.writeTo(remote)) ;
+            metrics.addBytesSent(response.getBytesSent());
+            logAccess(remote.socket().getRemoteSocketAddress(), response);
+        } catch (IOException e) {
+            // The client left already: nothing more to do
+        }
+    }
+
+    /**
+     * Traite une connexion client : lit les requetes successives du client, construit les reponses adaptees et les
+     * envoie dans l'ordre, jusqu'a ce que le client ou le serveur ferme la connexion persistante. Cette methode peut
+     * etre appelee depuis plusieurs threads en parallele.
+     *
+     * Chaque etape de la connexion a un delai, surveille par le {@link #reaper} qui ferme la connexion s'il est
+     * depasse : attente de la requete suivante ({@link ServerConfig#getKeepAliveTimeout()}), reception de son en-tete
+     * ({@link ServerConfig#getHeaderTimeout()}), de son corps ({@link ServerConfig#getBodyTimeout()}) et envoi de la
+     * reponse ({@link ServerConfig#getWriteTimeout()}), ces deux derniers etant prolonges selon le debit minimal. Un
+     * client qui envoie ou lit ses donnees au compte-gouttes ne peut donc pas occuper un thread indefiniment.
+     *
+     * Si HTTP/2 est active, une connexion commençant par la preface HTTP/2, ou dont une requete demande le passage a
+     * HTTP/2 en clair (en-tete "Upgrade: h2c"), est ensuite traitee par une {@link Http2Connection}.
+     * @param channel Le canal (bloquant) connecte au client.
+     * @param queueNanos Le temps (en nanosecondes) passe par la connexion dans la file des threads de traitement.
+     */
+    private void handleConnection(SocketChannel channel, long queueNanos) {
+        metrics.connectionOpened();
+        ConnectionReaper.Deadline deadline = reaper.register(channel);
+        try (SocketChannel remote = channel) {
+
+            // remote is now the connected socket
+            SocketAddress address = remote.socket().getRemoteSocketAddress();
+            LOG.debug("Connection from " + address);
+            ConnectionInput in = new ConnectionInput(remote.socket().getInputStream(), READ_BUFFER_SIZE, metrics);
+            RequestParser parser = new RequestParser(config);
+            Request request = new Request();
+            if (config.isHttp2() && readPreface(in, deadline)) {
+                new Http2Connection(this, config, remote, in, deadline, streamWorkers).serve(null);
+                return;
+            }
+
+            boolean keepAlive = true;
+            for (int served = 1; keepAlive; served++) {
                 Response response;
                 try {
-                    if (str != null && !str.equals("")) {
-                        String method = str.split(" ")[0];
-                        switch (method) {
-                            case "GET" -> response = get(in);
-                            case "POST" -> response = post(in);
-                            case "HEAD" -> response = head(in);
-                            case "PUT" -> response = put(in);
-                            case "DELETE" -> response = delete(in);
-                            case "CONNECT", "OPTIONS", "TRACE", "PATCH" -> response = notImplemented(method);
-                            default -> response = badRequest();
-                        }
-                    } else {
-                        response = badRequest();
+                    if (!readHeader(parser, in, request, deadline)) {
+                        break;
+                    }
+                    if (served == 1) {
+                        request.setQueueNanos(queueNanos);
+                    }
+                    deadline.arm(BODY_PHASE, config.getBodyTimeout(), in::getBytesRead, config.getMinDataRate());
+                    request.openBody(in);
+                    if (config.isHttp2() && Http2Connection.isUpgrade(request)) {
+                        new Http2Connection(this, config, remote, in, deadline, streamWorkers).serve(request);
+                        return;
                     }
-                } catch (Exception e) {
-                    response = constructInternalErrorResponse(e.getMessage());
+                    request.setContinueSender(() -> sendContinue(remote));
+                    keepAlive = request.isKeepAlive() && served < config.getMaxKeepAliveRequests();
+                    response = handleRequest(request);
+                    // The client will not send a body it was never asked for: the next request can't be found, nor can
+                    // the end of a response that is only delimited by closing the connection
+                    keepAlive = keepAlive && !request.isAwaitingContinue() && !response.mustCloseConnection();
+                } catch (BadRequestException e) {
+                    keepAlive = false;
+                    response = badRequest();
                 }
 
                 // Send the response
-                response.printOnStream(remote.getOutputStream());
-            } catch (Exception e) {
-                System.err.println("Erreur lors du traitement d'un requete : ");
-                e.printStackTrace();
+                try (Response toSend = response) {
+                    toSend.setKeepAlive(keepAlive);
+                    deadline.arm(WRITE_PHASE, config.getWriteTimeout(), toSend::getBytesSent, config.getMinDataRate());
+                    while (!toSend.writeTo(remote)) ;
+                } finally {
+                    metrics.addBytesSent(response.getBytesSent());
+                    logAccess(address, response);
+                }
+
+                // Skip what the handler did not read of the body, to reach the next request
+                if (keepAlive) {
+                    deadline.arm(BODY_PHASE, config.getBodyTimeout(), in::getBytesRead, config.getMinDataRate());
+                    request.discardBody();
+                }
+            }
+        } catch (EOFException e) {
+            // The client left in the middle of a request: just close the connection
+        } catch (Exception e) {
+            // A connection closed for exceeding a deadline fails in the middle of a read or a write: that's expected
+            if (deadline.getExpiredPhase() == null) {
+                LOG.error("Erreur lors du traitement d'un requete : ", e);
+            }
+        } finally {
+            deadline.close();
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Lit l'en-tete de la requete suivante d'une connexion bloquante, en attendant autant d'octets que necessaire.
+     * L'attente du premier octet de la requete est limitee par le delai d'inactivite des connexions persistantes, et la
+     * reception de l'en-tete, a partir de ce premier octet, par le delai de reception des en-tetes.
+     * @param parser L'analyseur des requetes de la connexion.
+     * @param in Le stream de la connexion.
+     * @param request La requete a remplir.
+     * @param deadline L'echeance de la connexion.
+     * @return false si le client a ferme la connexion avant le debut d'une nouvelle requete.
+     * @throws BadRequestException Si l'en-tete est mal forme.
+     * @throws EOFException Si le client a ferme la connexion au milieu de l'en-tete.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    private boolean readHeader(RequestParser parser, ConnectionInput in, Request request,
+                               ConnectionReaper.Deadline deadline) throws IOException {
+        boolean started = in.buffer().hasRemaining();
+        if (started) {
+            deadline.arm(HEADER_PHASE, config.getHeaderTimeout());
+        } else {
+            deadline.arm(IDLE_PHASE, config.getKeepAliveTimeout());
+        }
+        while (!parser.parse(in.buffer(), request)) {
+            if (!in.fill()) {
+                if (parser.isStarted()) {
+                    throw new EOFException("En-tete de requete incomplet");
+                }
+                return false;
+            }
+            if (!started) {
+                started = true;
+                deadline.arm(HEADER_PHASE, config.getHeaderTimeout());
             }
         }
+        return true;
+    }
+
+    /**
+     * Attend le debut d'une nouvelle connexion pour savoir si le client parle directement HTTP/2 : la connexion
+     * commence alors par la preface HTTP/2, qui est consommee. Sinon, les octets reçus restent dans le buffer, pour
+     * etre lus comme une requete HTTP/1.x.
+     * @param in Le stream de la connexion.
+     * @param deadline L'echeance de la connexion, armee pour l'attente d'une requete.
+     * @return true si la connexion a commence par la preface HTTP/2.
+     * @throws IOException En cas d'erreur de lecture.
+     */
+    private boolean readPreface(ConnectionInput in, ConnectionReaper.Deadline deadline) throws IOException {
+        deadline.arm(IDLE_PHASE, config.getKeepAliveTimeout());
+        ByteBuffer buffer = in.buffer();
+        for (;;) {
+            int available = Math.min(buffer.remaining(), Http2Connection.PREFACE.length);
+            for (int i = 0; i < available; i++) {
+                if (buffer.get(buffer.position() + i) != Http2Connection.PREFACE[i]) {
+                    return false;
+                }
+            }
+            if (available == Http2Connection.PREFACE.length) {
+                buffer.position(buffer.position() + available);
+                return true;
+            }
+            if (!in.fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Envoie au client la reponse intermediaire "100 Continue", l'autorisant a envoyer le corps de sa requete.
+     * @param remote La connexion avec le client.
+     * @throws IOException En cas d'erreur d'ecriture.
+     */
+    private static void sendContinue(SocketChannel remote) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(CONTINUE_RESPONSE);
+        while (buffer.hasRemaining()) {
+            remote.write(buffer);
+        }
+    }
+
+    /**
+     * Envoie la requete passee en parametre a la methode HTTP adaptee, et renvoie la reponse construite. Cette methode
+     * est commune a tous les moteurs du serveur ; elle repond elle-meme aux requetes GET sur le chemin des statistiques
+     * (voir {@link ServerConfig#getMetricsPath()}), et compte chaque requete dans ces statistiques.
+     *
+     * Les requetes passent par le controle d'admission : si trop de requetes sont deja en cours de traitement, la
+     * requete est rejetee immediatement par une reponse 503. Les requetes de statistiques y echappent, pour que le
+     * serveur reste observable pendant une surcharge. La duree mesuree pour adapter la limite est celle que le serveur
+     * maitrise : l'attente d'un thread de traitement plus le traitement lui-meme, sans l'attente du corps de la requete
+     * (qui depend du client et du reseau).
+     * @param request La requete reçue.
+     * @return La reponse a renvoyer au client (une reponse 500 si une erreur est survenue, 503 en cas de surcharge).
+     */
+    Response handleRequest(Request request) {
+        long start = System.nanoTime();
+        long bodyReadAtStart = request.getBodyReadNanos();
+        HttpMethod method = request.getMethod();
+
+        // Get the response to send
+        Response response;
+        boolean metricsRequest = method == HttpMethod.GET && isMetricsPath(request.getResource());
+        int inFlight = metricsRequest ? -1 : admission.tryAcquire();
+        if (inFlight == 0) {
+            response = constructServiceUnavailableResponse();
+        } else {
+            try {
+                response = dispatch(request, metricsRequest);
+            } finally {
+                if (inFlight > 0) {
+                    long service = System.nanoTime() - start - (request.getBodyReadNanos() - bodyReadAtStart);
+                    admission.release(request.getQueueNanos() + Math.max(0, service), inFlight);
+                }
+            }
+        }
+
+        // Chunked transfer coding only exists since HTTP/1.1
+        if (!"HTTP/1.1".equals(request.getVersion())) {
+            response.disableChunkedEncoding();
+        }
+        metrics.recordRequest(method, response.getStatus(), System.nanoTime() - start);
+        response.setRequest(method.name(), request.getResource(), start);
+        return response;
+    }
+
+    /**
+     * Construit la reponse a une requete admise, selon sa methode HTTP.
+     * @param request La requete reçue.
+     * @param metricsRequest La requete est-elle une requete GET sur le chemin des statistiques ?
+     * @return La reponse a renvoyer au client (une reponse 500 si une erreur est survenue).
+     */
+    private Response dispatch(Request request, boolean metricsRequest) {
+        HttpMethod method = request.getMethod();
+        try {
+            if (isUploadsPath(request.getResource())) {
+                return upload(request);
+            }
+            return switch (method) {
+                case GET -> metricsRequest ? constructMetricsResponse() : get(request, true);
+                case POST -> post(request);
+                case HEAD -> head(request);
+                case PUT -> put(request);
+                case DELETE -> delete(request);
+                case PATCH -> patch(request);
+                case CONNECT, OPTIONS, TRACE -> notImplemented(method.name());
+                default -> constructBadRequestResponse();
+            };
+        } catch (Exception e) {
+            return constructInternalErrorResponse(e.getMessage());
+        }
+    }
+
+    /**
+     * Ecrit dans le journal des acces (s'il est active) la ligne decrivant une reponse envoyee, ou dont l'envoi a
+     * echoue : client, requete, code de retour, octets envoyes et duree totale (envoi compris) en microsecondes.
+     * @param remote L'adresse du client.
+     * @param response La reponse envoyee.
+     */
+    void logAccess(SocketAddress remote, Response response) {
+        if (config.isAccessLog()) {
+            LOG.access(
+                    "remote", remote,
+                    "method", response.getRequestMethod(),
+                    "path", response.getRequestResource(),
+                    "status", response.getStatus(),
+                    "bytes", response.getBytesSent(),
+                    "duration_us", (System.nanoTime() - response.getStartTime()) / 1000
+            );
+        }
+    }
+
+    /**
+     * @param resource La ressource demandee.
+     * @return true si la ressource est le chemin reserve aux statistiques du serveur.
+     */
+    private boolean isMetricsPath(String resource) {
+        String metricsPath = config.getMetricsPath();
+        return !metricsPath.isEmpty() && metricsPath.equals(resource);
+    }
+
+    /**
+     * @param resource Le chemin d'une ressource demandee.
+     * @return true si le chemin est celui des sessions de televersement, ou celui d'une session.
+     */
+    private boolean isUploadsPath(String resource) {
+        String uploadsPath = config.getUploadsPath();
+        return !uploadsPath.isEmpty() && resource.startsWith(uploadsPath)
+                && (resource.length() == uploadsPath.length() || resource.charAt(uploadsPath.length()) == '/');
+    }
+
+    /**
+     * @return Les statistiques du serveur, que les moteurs alimentent.
+     */
+    ServerMetrics metrics() {
+        return metrics;
     }
 
     // #-- Main method
 
     /**
      * Fonction principale, lancee au lancement du programme. Elle lance un serveur des son appel.
-     * @param args Les parametres ne sont pas utilises.
+     * @param args Les options du serveur, voir {@link ServerConfig#fromArgs(String[])}.
      */
     public static void main(String[] args) {
-        WebServer ws = new WebServer();
-        ws.start(80);
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(ServerConfig.usage());
+            System.exit(1);
+            return;
+        }
+
+        WebServer ws = new WebServer(config);
+        ws.start(config.getPort());
     }
 }
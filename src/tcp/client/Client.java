@@ -129,7 +129,7 @@ public class Client implements Closeable {
      * @param message Le message a formater.
      * @return Le message formate.
      */
-    private String formatMessage(String message) {
+    String formatMessage(String message) {
         return formatMessage(message, false);
     }
 
@@ -140,7 +140,7 @@ public class Client implements Closeable {
      * @param withPseudo Faut-il afficher le pseudo dans l'en-tete du message ?
      * @return Le message formatte.
      */
-    private String formatMessage(String message, boolean withPseudo) {
+    String formatMessage(String message, boolean withPseudo) {
         String time = DateTimeFormatter.ofPattern("H:m:s").format(LocalTime.now());
         StringBuilder formatted = new StringBuilder();
 
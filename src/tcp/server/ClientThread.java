@@ -5,21 +5,48 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import utils.AsyncLogger;
+import utils.ConnectionReaper;
 
 /**
  * Classe representant un thread serveur s'occuppant de recevoir les messages d'un client en particulier pour ensuite
  * les traiter (si necessaire) et les renvoyer a tous les autres clients.
  *
+ * Un client inactif trop longtemps est deconnecte, et chaque envoi d'un message a un client doit se terminer avant
+ * un delai : un client qui ne lit plus ses messages est deconnecte au lieu de bloquer le chat entier. Un client qui
+ * ne fait que lire n'est pas inactif tant que des messages lui sont diffuses : il n'est deconnecte que si personne
+ * n'a ecrit dans le chat pendant tout le delai d'inactivite.
+ *
  * @author Guillaume Berthomet
  * @author Lola Cremer
  */
 class ClientThread extends Thread {
 
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+
     private final Map<Socket, PrintStream> allClientsOutputStream;
     private final Socket clientSocket;
     private final String clientName;
     private final StringBuilder history;
+    private final ConnectionReaper reaper;
+    /**
+     * L'instant (selon {@link System#nanoTime()}) du dernier message diffuse dans le chat, partage par tous les
+     * clients.
+     */
+    private final AtomicLong lastMessage;
+    /**
+     * Le temps (en millisecondes) au-dela duquel un client est deconnecte si aucun message n'a ete envoye ni diffuse
+     * (0 pour ne jamais le deconnecter).
+     */
+    private final int idleTimeout;
+    /**
+     * Le temps maximal (en millisecondes) de l'envoi d'un message (ou de l'historique) a un client (0 pour ne pas le
+     * limiter).
+     */
+    private final int writeTimeout;
 
     /**
      * Cree un thread d'ecoute client pour un serveur de chat TCP, utilisant le socket passe en parametre.
@@ -27,14 +54,26 @@ class ClientThread extends Thread {
      * @param allClientsOutputStream Une map representant tous les sockets clients et leur printstream associe sur
      *                               lesquels renvoyer un message reçu.
      * @param history L'historique de chat de l'application.
+     * @param reaper Le thread fermant les sockets dont l'envoi d'un message depasse son delai.
+     * @param lastMessage L'instant du dernier message diffuse dans le chat, partage par tous les clients.
+     * @param idleTimeout Le delai d'inactivite (en millisecondes) d'un client, 0 pour ne jamais le deconnecter.
+     * @param writeTimeout Le delai (en millisecondes) de l'envoi d'un message a un client, 0 pour ne pas le limiter.
+     * @throws IOException Si le delai d'inactivite du socket n'a pas pu etre defini.
      */
-    public ClientThread(Socket clientSocket, Map<Socket, PrintStream> allClientsOutputStream, StringBuilder history) {
+    public ClientThread(Socket clientSocket, Map<Socket, PrintStream> allClientsOutputStream, StringBuilder history,
+                        ConnectionReaper reaper, AtomicLong lastMessage, int idleTimeout, int writeTimeout)
+            throws IOException {
         this.allClientsOutputStream = allClientsOutputStream;
         this.clientSocket = clientSocket;
         this.clientName = clientSocket.getInetAddress().toString();
         this.history = history;
+        this.reaper = reaper;
+        this.lastMessage = lastMessage;
+        this.idleTimeout = idleTimeout;
+        this.writeTimeout = writeTimeout;
 
-        allClientsOutputStream.get(clientSocket).println(history.toString());
+        clientSocket.setSoTimeout(idleTimeout);
+        send(clientSocket, allClientsOutputStream.get(clientSocket), history.toString());
     }
 
     /**
@@ -45,28 +84,64 @@ class ClientThread extends Thread {
         try (BufferedReader socIn = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
             boolean quit = false;
             while (!quit) {
-                String msg = socIn.readLine();
+                String msg;
+                try {
+                    msg = socIn.readLine();
+                } catch (SocketTimeoutException e) {
+                    // A client that only reads is still active as long as messages are delivered to it
+                    if (System.nanoTime() - lastMessage.get() < idleTimeout * 1_000_000L) {
+                        continue;
+                    }
+                    throw e;
+                }
                 if (msg == null) {
                     quit = true;
                 } else {
-                    System.out.println("\t[" + clientName + "] " + msg);
+                    LOG.info("[" + clientName + "] " + msg);
                     history.append(msg).append("\n");
-                    synchronized (allClientsOutputStream) {
-                        for (PrintStream socOut : allClientsOutputStream.values()) {
-                            socOut.println(msg);
-                        }
-                    }
+                    broadcast(msg);
                 }
             }
-            System.out.println("[CLOSED] Connection from " + clientName + " closed.");
+            LOG.info("[CLOSED] Connection from " + clientName + " closed.");
+        } catch (SocketTimeoutException e) {
+            LOG.info("[CLOSED] Connection from " + clientName + " closed after " + idleTimeout / 1000
+                    + " seconds of inactivity.");
         } catch (IOException e) {
-            System.out.println("[CLOSED/WARNING] Connection from " + clientName + " forcefully closed (IOException).");
+            LOG.warn("[CLOSED/WARNING] Connection from " + clientName + " forcefully closed (IOException).");
         } finally {
+            allClientsOutputStream.remove(clientSocket);
             try {
                 clientSocket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                LOG.error("Fermeture du socket de " + clientName + " impossible", e);
             }
         }
     }
+
+    /**
+     * Renvoie un message a tous les clients connectes (y compris son auteur).
+     * @param msg Le message a renvoyer.
+     */
+    void broadcast(String msg) {
+        lastMessage.set(System.nanoTime());
+        synchronized (allClientsOutputStream) {
+            for (Map.Entry<Socket, PrintStream> client : allClientsOutputStream.entrySet()) {
+                send(client.getKey(), client.getValue(), msg);
+            }
+        }
+    }
+
+    /**
+     * Envoie un message a un client, en fermant son socket si l'envoi depasse son delai (le client ne lisant plus ses
+     * messages). Son propre thread le retire alors des clients connectes.
+     * @param socket Le socket du client.
+     * @param socOut Le stream du socket.
+     * @param msg Le message a envoyer.
+     */
+    private void send(Socket socket, PrintStream socOut, String msg) {
+        try (ConnectionReaper.Deadline deadline = reaper.register(socket)) {
+            deadline.arm("write", writeTimeout);
+            socOut.println(msg);
+        }
+    }
 }
@@ -14,16 +14,20 @@ public class Server {
 
     /**
      * Methode main lançant un serveur de chat.
-     * @param args Doit contenir un seul argument : le port de lancement.
+     * @param args Le port de lancement, puis optionnellement le delai d'inactivite d'un client et le delai d'envoi
+     *             d'un message a un client (en secondes, 0 pour les desactiver).
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java Server <port>");
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: java Server <port> [<idle timeout (s)> [<write timeout (s)>]]");
             System.exit(1);
         }
 
+        int idleTimeout = args.length > 1 ? Integer.parseInt(args[1]) * 1000 : ServerControlThread.DEFAULT_IDLE_TIMEOUT;
+        int writeTimeout = args.length > 2
+                ? Integer.parseInt(args[2]) * 1000 : ServerControlThread.DEFAULT_WRITE_TIMEOUT;
         try (BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in))) {
-            ServerControlThread server = new ServerControlThread(Integer.parseInt(args[0]));
+            ServerControlThread server = new ServerControlThread(Integer.parseInt(args[0]), idleTimeout, writeTimeout);
             server.start();
             while (!"/close".equalsIgnoreCase(stdIn.readLine()));
             server.close();
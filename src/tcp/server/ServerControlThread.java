@@ -7,6 +7,9 @@ import java.net.SocketException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import utils.AsyncLogger;
+import utils.ConnectionReaper;
 
 /**
  * Classe centrale d'un serveur de chat en ligne, elle implemente le Thread de contrôle du-dit serveur. Ce thread reçoit
@@ -17,18 +20,57 @@ import java.util.Map;
  */
 public class ServerControlThread extends Thread {
 
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+    /**
+     * Le delai d'inactivite (en millisecondes) par defaut d'un client : 30 minutes sans aucun message dans le chat.
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT = 30 * 60 * 1000;
+    /**
+     * Le delai (en millisecondes) par defaut de l'envoi d'un message (ou de l'historique) a un client.
+     */
+    public static final int DEFAULT_WRITE_TIMEOUT = 10 * 1000;
+
     private ServerSocket listenSocket;
 
     private final Map<Socket, PrintStream> allClientSockets = Collections.synchronizedMap(new HashMap<>());
     private final StringBuilder history = new StringBuilder();
     private static final File historyFile = new File("history.txt");
+    /**
+     * Ferme les sockets des clients dont l'envoi d'un message depasse son delai.
+     */
+    private final ConnectionReaper reaper = new ConnectionReaper("chat-reaper", 1000,
+            phase -> LOG.warn("[CLOSED/WARNING] A client stopped reading its messages: connection closed."));
+    /**
+     * L'instant (selon {@link System#nanoTime()}) du dernier message diffuse dans le chat.
+     */
+    private final AtomicLong lastMessage = new AtomicLong(System.nanoTime());
+    private final int idleTimeout;
+    private final int writeTimeout;
 
     /**
-     * Cree le thread de contrôle d'un serveur de chat TCP.
+     * Cree le thread de contrôle d'un serveur de chat TCP, avec les delais par defaut.
      * @param port Le port sur lequel le thread devra ecouter les connections.
      * @throws IOException S'il y a une erreur a l'initialisation du socket d'ecoute.
      */
     public ServerControlThread(int port) throws IOException {
+        this(port, DEFAULT_IDLE_TIMEOUT, DEFAULT_WRITE_TIMEOUT);
+    }
+
+    /**
+     * Cree le thread de contrôle d'un serveur de chat TCP.
+     * @param port Le port sur lequel le thread devra ecouter les connections.
+     * @param idleTimeout Le delai (en millisecondes) au-dela duquel un client est deconnecte si aucun message n'a ete
+     *                    envoye ni diffuse dans le chat, 0 pour ne jamais le deconnecter.
+     * @param writeTimeout Le delai maximal (en millisecondes) de l'envoi d'un message a un client, 0 pour ne pas le
+     *                     limiter.
+     * @throws IOException S'il y a une erreur a l'initialisation du socket d'ecoute.
+     */
+    public ServerControlThread(int port, int idleTimeout, int writeTimeout) throws IOException {
+        if (idleTimeout < 0 || writeTimeout < 0) {
+            throw new IllegalArgumentException("Les delais doivent etre positifs ou nuls");
+        }
+        this.idleTimeout = idleTimeout;
+        this.writeTimeout = writeTimeout;
         listenSocket = new ServerSocket(port);
 
         BufferedReader historyFileReader = new BufferedReader(new FileReader(historyFile));
@@ -45,26 +87,26 @@ public class ServerControlThread extends Thread {
     @Override
     public void run() {
         try {
-            System.out.println("Server ready...");
+            LOG.info("Server ready...");
             while (true) {
                 Socket clientSocket = listenSocket.accept();
-                System.out.println("[CONNECT] Connection from:" + clientSocket.getInetAddress());
+                LOG.info("[CONNECT] Connection from:" + clientSocket.getInetAddress());
                 allClientSockets.put(clientSocket, new PrintStream(clientSocket.getOutputStream()));
-                ClientThread ct = new ClientThread(clientSocket, allClientSockets, history);
+                ClientThread ct = new ClientThread(clientSocket, allClientSockets, history, reaper, lastMessage,
+                        idleTimeout, writeTimeout);
                 ct.start();
             }
         } catch (SocketException e) {
-            System.out.println("Server closed.");
+            LOG.info("Server closed.");
         } catch (IOException e) {
-            System.err.println("Internet server error, see stack trace :");
-            e.printStackTrace();
+            LOG.error("Internet server error, see stack trace :", e);
         } finally {
             try {
                 FileWriter historyFileWriter = new FileWriter(historyFile);
                 historyFileWriter.append(history.toString());
                 historyFileWriter.flush();
             } catch (IOException e) {
-                System.out.println("L'Histoire est inaccessible.");
+                LOG.error("L'Histoire est inaccessible.");
             }
         }
     }
@@ -0,0 +1,353 @@
+package utils;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Journal asynchrone partage par les serveurs (HTTP et chat TCP). Les threads qui journalisent ne font que deposer un
+ * message dans un buffer circulaire sans verrou ; un thread dedie vide ce buffer par lots, met en forme les messages
+ * et les ecrit sur la console en une seule ecriture par lot. Les threads de traitement ne sont donc jamais ralentis
+ * par la console, ni serialises sur le verrou de {@code System.out}.
+ *
+ * Les messages d'un niveau inferieur au niveau du journal sont ignores des leur emission. Si le buffer est plein, les
+ * nouveaux messages sont abandonnes (et leur nombre signale) plutot que de bloquer l'appelant. Les lignes du journal
+ * des acces sont structurees (paires cle=valeur), pour etre facilement analysees par un outil.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public final class AsyncLogger {
+
+    /**
+     * Les niveaux des messages, du plus detaille au plus grave.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * La taille du buffer circulaire (une puissance de deux).
+     */
+    private static final int CAPACITY = 8192;
+    /**
+     * Le nombre maximal de messages ecrits en une seule ecriture.
+     */
+    private static final int BATCH_SIZE = 256;
+    /**
+     * Le temps maximal (en nanosecondes) pendant lequel le thread d'ecriture dort sans verifier le buffer.
+     */
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final AsyncLogger DEFAULT = new AsyncLogger(
+            parseLevel(System.getProperty("log.level", "info")), System.out, System.err);
+
+    /**
+     * Un message en attente d'ecriture : tout ce qui est necessaire a sa mise en forme, faite par le thread
+     * d'ecriture.
+     */
+    private static final class Record {
+        private final Level level;
+        private final long time;
+        private final String thread;
+        private final String message;
+        private final Throwable error;
+        /**
+         * Les paires cle/valeur d'une ligne du journal des acces, ou null pour un message simple.
+         */
+        private final Object[] fields;
+
+        private Record(Level level, String message, Throwable error, Object[] fields) {
+            this.level = level;
+            this.time = System.currentTimeMillis();
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+            this.error = error;
+            this.fields = fields;
+        }
+    }
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private volatile Level level;
+
+    // Bounded multi-producer queue: each slot carries a sequence number telling whether it is free for the producer
+    // of a given turn or filled for the consumer (see D. Vyukov's bounded MPMC queue)
+    private final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * La position du prochain message a lire, modifiee uniquement par le thread d'ecriture.
+     */
+    private long head = 0;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread writer;
+    /**
+     * Le thread d'ecriture dort-il en attendant des messages ?
+     */
+    private volatile boolean sleeping = false;
+
+    /**
+     * Cree un journal et lance son thread d'ecriture.
+     * @param level Le niveau minimal des messages ecrits.
+     * @param out Le stream sur lequel ecrire les messages de niveau DEBUG et INFO.
+     * @param err Le stream sur lequel ecrire les messages de niveau WARN et ERROR.
+     */
+    public AsyncLogger(Level level, PrintStream out, PrintStream err) {
+        this.level = level;
+        this.out = out;
+        this.err = err;
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+
+        writer = new Thread(this::drainForever, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+        // Write what is still buffered when the JVM stops
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "async-logger-flush"));
+    }
+
+    /**
+     * @return Le journal partage par toute l'application, ecrivant sur la console. Son niveau initial est donne par
+     * la propriete systeme "log.level" (INFO par defaut).
+     */
+    public static AsyncLogger getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Convertit un nom de niveau (insensible a la casse) en niveau.
+     * @param name Le nom du niveau (debug, info, warn ou error).
+     * @return Le niveau correspondant.
+     * @throws IllegalArgumentException Si le niveau est inconnu.
+     */
+    public static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Niveau de journal inconnu : '" + name + "'");
+        }
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * @param level Un niveau de message.
+     * @return true si les messages de ce niveau sont ecrits (permet d'eviter de construire un message ignore).
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    /**
+     * Journalise une erreur, suivie de la pile d'appels de l'exception qui l'a causee.
+     * @param message Le message decrivant l'erreur.
+     * @param error L'exception survenue.
+     */
+    public void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    /**
+     * Journalise une ligne structuree du journal des acces (au niveau INFO), ecrite sous la forme
+     * {@code access cle1=valeur1 cle2=valeur2 ...}. Les valeurs ne sont converties en texte que par le thread
+     * d'ecriture : elles ne doivent donc plus etre modifiees apres l'appel.
+     * @param fields Les cles et leurs valeurs, alternees.
+     */
+    public void access(Object... fields) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(new Record(Level.INFO, "access", null, fields));
+        }
+    }
+
+    private void log(Level level, String message, Throwable error) {
+        if (isEnabled(level)) {
+            enqueue(new Record(level, message, error, null));
+        }
+    }
+
+    /**
+     * Depose un message dans le buffer, ou l'abandonne si le buffer est plein.
+     * @param record Le message a deposer.
+     */
+    private void enqueue(Record record) {
+        for (;;) {
+            long position = tail.get();
+            int index = (int) position & (CAPACITY - 1);
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, record);
+                    sequences.set(index, position + 1);
+                    break;
+                }
+            } else if (sequence < position) {
+                // The writer has not freed this slot yet: the buffer is full
+                dropped.incrementAndGet();
+                return;
+            }
+            // Otherwise another producer took this position first: try the next one
+        }
+
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Retire du buffer le plus ancien message, s'il y en a un. Appelee par un seul thread a la fois.
+     * @return Le message retire, ou null si le buffer est vide.
+     */
+    private Record poll() {
+        int index = (int) head & (CAPACITY - 1);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Record record = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + CAPACITY);
+        head++;
+        return record;
+    }
+
+    /**
+     * Boucle du thread d'ecriture : ecrit les messages par lots, et dort lorsque le buffer est vide.
+     */
+    private void drainForever() {
+        for (;;) {
+            if (!drain()) {
+                sleeping = true;
+                // Check again after announcing the sleep, or a message enqueued meanwhile would wait for the timeout
+                if (sequences.get((int) head & (CAPACITY - 1)) == head + 1) {
+                    sleeping = false;
+                    continue;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                sleeping = false;
+            }
+        }
+    }
+
+    /**
+     * Ecrit tous les messages en attente. Appelee a l'arret de la JVM, apres quoi plus rien n'est ecrit.
+     */
+    private synchronized void flush() {
+        while (drain()) ;
+    }
+
+    /**
+     * Ecrit un lot de messages en attente, chaque stream ne recevant qu'une ecriture.
+     * @return false si aucun message n'etait en attente.
+     */
+    private synchronized boolean drain() {
+        StringBuilder normal = new StringBuilder();
+        StringBuilder errors = new StringBuilder();
+        int count = 0;
+        for (Record record = poll(); record != null; record = count < BATCH_SIZE ? poll() : null) {
+            format(record, record.level.compareTo(Level.WARN) >= 0 ? errors : normal);
+            count++;
+        }
+
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            errors.append("Journal sature : ").append(lost).append(" message(s) perdu(s)\n");
+        }
+        if (normal.length() > 0) {
+            out.print(normal);
+            out.flush();
+        }
+        if (errors.length() > 0) {
+            err.print(errors);
+            err.flush();
+        }
+        return count > 0;
+    }
+
+    /**
+     * Met en forme un message sur une ligne : date, niveau, thread et texte (suivi de la pile d'appels de l'erreur
+     * eventuelle).
+     * @param record Le message a mettre en forme.
+     * @param line Le texte auquel ajouter la ligne.
+     */
+    private static void format(Record record, StringBuilder line) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(record.time), line);
+        line.append(' ').append(record.level);
+        for (int i = record.level.name().length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(" [").append(record.thread).append("] ").append(record.message);
+
+        if (record.fields != null) {
+            for (int i = 0; i + 1 < record.fields.length; i += 2) {
+                line.append(' ').append(record.fields[i]).append('=');
+                appendValue(String.valueOf(record.fields[i + 1]), line);
+            }
+        }
+        line.append('\n');
+
+        if (record.error != null) {
+            StringWriter trace = new StringWriter();
+            record.error.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    /**
+     * Ajoute la valeur d'un champ structure, entre guillemets si elle est vide ou contient des espaces, des
+     * guillemets ou un signe egal.
+     */
+    private static void appendValue(String value, StringBuilder line) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\');
+            }
+            line.append(c < ' ' ? ' ' : c);
+        }
+        line.append('"');
+    }
+}
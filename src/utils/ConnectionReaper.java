@@ -0,0 +1,223 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Ferme les connexions bloquantes qui depassent leurs delais, partage par les serveurs (HTTP et chat TCP). Un thread
+ * bloque dans une lecture ou une ecriture ne peut pas surveiller lui-meme le temps qui passe : chaque connexion
+ * enregistre donc une echeance ({@link Deadline}), qu'elle arme au debut de chaque etape (attente d'une requete,
+ * reception d'un en-tete, envoi d'une reponse...), et un thread dedie parcourt periodiquement les echeances et ferme
+ * les connexions expirees, ce qui debloque leur thread sur une exception.
+ *
+ * Armer une echeance ne coute qu'une ecriture volatile : les connexions changent d'etape a chaque requete, bien plus
+ * souvent que le thread ne les parcourt. Une echeance peut etre repoussee au fil de la progression de son etape
+ * (octets reçus ou envoyes), pour imposer un debit minimal plutot qu'une duree totale : un gros transfert reste
+ * possible, mais pas un client qui envoie ou lit un octet de temps en temps. Une telle etape expire aussi si elle ne
+ * progresse pas du tout pendant son delai de base, pour que les octets absorbes d'un coup par les buffers du systeme
+ * ne donnent pas un credit de temps illimite a un client qui ne lit plus rien.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public final class ConnectionReaper {
+
+    /**
+     * L'etape en cours d'une connexion et son echeance, publiees ensemble par une seule ecriture.
+     */
+    private static final class Armed {
+        private final String phase;
+        /**
+         * L'echeance (selon {@link System#nanoTime()}) si l'etape ne progresse pas.
+         */
+        private final long deadline;
+        /**
+         * La progression de l'etape (en octets), ou null si son echeance est fixe.
+         */
+        private final LongSupplier progress;
+        private final long progressAtStart;
+        /**
+         * Le temps (en nanosecondes) dont chaque octet de progression repousse l'echeance.
+         */
+        private final long nanosPerByte;
+        /**
+         * Le delai de base, au-dela duquel l'etape expire si elle ne progresse plus.
+         */
+        private final long timeout;
+        /**
+         * La derniere progression observee et l'instant de son observation (seulement lus et ecrits par le thread de
+         * surveillance).
+         */
+        private long lastProgress;
+        private long lastProgressTime;
+
+        private Armed(String phase, long timeout, LongSupplier progress, long nanosPerByte) {
+            long now = System.nanoTime();
+            this.phase = phase;
+            this.timeout = timeout;
+            this.deadline = now + timeout;
+            this.progress = progress;
+            this.progressAtStart = progress != null ? progress.getAsLong() : 0;
+            this.nanosPerByte = nanosPerByte;
+            this.lastProgress = progressAtStart;
+            this.lastProgressTime = now;
+        }
+
+        private boolean isExpired(long now) {
+            if (now - deadline < 0) {
+                return false;
+            } else if (progress == null) {
+                return true;
+            }
+            long current = progress.getAsLong();
+            if (current != lastProgress) {
+                lastProgress = current;
+                lastProgressTime = now;
+            }
+            return now - lastProgressTime >= timeout || now - deadline - (current - progressAtStart) * nanosPerByte >= 0;
+        }
+    }
+
+    /**
+     * L'echeance d'une connexion enregistree aupres du thread de surveillance. Elle ne doit etre armee que par le
+     * thread traitant la connexion, et doit etre fermee lorsque la connexion l'est.
+     */
+    public final class Deadline implements Closeable {
+        private final Closeable connection;
+        private volatile Armed armed;
+        private volatile String expiredPhase;
+
+        private Deadline(Closeable connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Commence une etape devant se terminer avant le delai passe en parametre.
+         * @param phase Le nom de l'etape, transmis en cas d'expiration.
+         * @param timeoutMillis Le delai, en millisecondes (0 pour une etape sans echeance).
+         */
+        public void arm(String phase, long timeoutMillis) {
+            arm(phase, timeoutMillis, null, 0);
+        }
+
+        /**
+         * Commence une etape dont l'echeance est repoussee d'une seconde chaque fois qu'elle progresse du nombre
+         * d'octets passe en parametre, et qui expire aussi si elle ne progresse pas pendant le delai de base.
+         * @param phase Le nom de l'etape, transmis en cas d'expiration.
+         * @param timeoutMillis Le delai de base, en millisecondes (0 pour une etape sans echeance).
+         * @param progress La progression de l'etape, en octets (lue par le thread de surveillance).
+         * @param minRate Le debit minimal, en octets par seconde (0 pour une echeance fixe).
+         */
+        public void arm(String phase, long timeoutMillis, LongSupplier progress, long minRate) {
+            if (timeoutMillis <= 0) {
+                armed = null;
+                return;
+            }
+            armed = minRate > 0
+                    ? new Armed(phase, timeoutMillis * 1_000_000, progress, Math.max(1, 1_000_000_000 / minRate))
+                    : new Armed(phase, timeoutMillis * 1_000_000, null, 0);
+        }
+
+        /**
+         * Termine l'etape en cours : la connexion n'a plus d'echeance jusqu'a la prochaine etape.
+         */
+        public void disarm() {
+            armed = null;
+        }
+
+        /**
+         * @return L'etape pendant laquelle la connexion a ete fermee pour avoir depasse son echeance, ou null si elle
+         * ne l'a pas ete.
+         */
+        public String getExpiredPhase() {
+            return expiredPhase;
+        }
+
+        /**
+         * Retire la connexion de la surveillance (sans la fermer).
+         */
+        @Override
+        public void close() {
+            deadlines.remove(this);
+        }
+
+        /**
+         * Ferme la connexion si son echeance est depassee.
+         * @param now L'instant courant (selon {@link System#nanoTime()}).
+         */
+        private void check(long now) {
+            Armed current = armed;
+            if (current == null || !current.isExpired(now)) {
+                return;
+            }
+            expiredPhase = current.phase;
+            deadlines.remove(this);
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+            expired.increment();
+            onExpired.accept(current.phase);
+        }
+    }
+
+    private final Set<Deadline> deadlines = ConcurrentHashMap.newKeySet();
+    private final LongAdder expired = new LongAdder();
+    private final Consumer<String> onExpired;
+
+    /**
+     * Cree un thread de surveillance et le demarre (thread demon, qui n'empeche pas la JVM de s'arreter).
+     * @param name Le nom du thread.
+     * @param periodMillis L'intervalle (en millisecondes) entre deux parcours des echeances, qui borne le retard de
+     *                     la fermeture d'une connexion expiree.
+     * @param onExpired Appelee, depuis le thread de surveillance, avec le nom de l'etape de chaque connexion fermee.
+     */
+    public ConnectionReaper(String name, long periodMillis, Consumer<String> onExpired) {
+        this.onExpired = onExpired;
+        Thread thread = new Thread(() -> reapForever(periodMillis), name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Enregistre une connexion, sans echeance tant que la premiere etape n'est pas armee.
+     * @param connection La connexion a fermer si elle depasse son echeance.
+     * @return L'echeance de la connexion.
+     */
+    public Deadline register(Closeable connection) {
+        Deadline deadline = new Deadline(connection);
+        deadlines.add(deadline);
+        return deadline;
+    }
+
+    /**
+     * @return Le nombre de connexions fermees pour avoir depasse leur echeance.
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    private void reapForever(long periodMillis) {
+        for (;;) {
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Deadline deadline : deadlines) {
+                try {
+                    deadline.check(now);
+                } catch (RuntimeException e) {
+                    // A failing callback must not stop the monitoring of the other connections
+                    AsyncLogger.getDefault().error("Erreur lors de la fermeture d'une connexion expiree : ", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogramme de durees a precision relative constante, dans l'esprit de HdrHistogram : chaque puissance de deux est
+ * decoupee en {@value #SUB_BUCKETS} intervalles egaux, de sorte que toute duree est connue a 12,5 % pres, de la
+ * nanoseconde a plusieurs heures, avec un tableau de taille fixe. L'enregistrement d'une valeur ne prend aucun verrou
+ * et n'alloue rien. Il sert aux statistiques du serveur HTTP comme au client de test de charge.
+ *
+ * @author Guillaume Berthomet
+ * @author Lola Cremer
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Enregistre une duree.
+     * @param nanos La duree, en nanosecondes.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return Le nombre de durees enregistrees.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return La somme des durees enregistrees, en nanosecondes.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return La plus grande duree enregistree (exacte), en nanosecondes.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Renvoie le nombre de durees enregistrees inferieures ou egales a la borne passee en parametre (a la precision
+     * de l'histogramme pres).
+     * @param nanos La borne, en nanosecondes.
+     * @return Le nombre de durees sous la borne.
+     */
+    public long countAtOrBelow(long nanos) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT && highestValueOf(i) <= nanos; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Renvoie la duree en dessous de laquelle se trouve la proportion passee en parametre des durees enregistrees.
+     * @param quantile La proportion, entre 0 et 1 (par exemple 0.99 pour le 99e centile).
+     * @return La duree correspondante en nanosecondes (majoree a la precision de l'histogramme), ou 0 si aucune duree
+     * n'a ete enregistree.
+     */
+    public long valueAtQuantile(double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return highestValueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return L'indice de l'intervalle contenant la valeur passee en parametre.
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return La plus grande valeur comprise dans l'intervalle d'indice passe en parametre.
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowest + width - 1;
+    }
+}